@@ -3,6 +3,8 @@ package uk.nhs.careconnect.ri.messaging;
 import ca.uhn.fhir.context.FhirContext;
 
 import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
 import org.apache.camel.component.hl7.HL7MLLPCodec;
 import org.apache.camel.impl.DefaultCamelContextNameStrategy;
 import org.apache.camel.spring.boot.CamelContextConfiguration;
@@ -18,8 +20,15 @@ import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
+import uk.nhs.careconnect.ri.messaging.r3.providers.ValidationFactory;
 import uk.nhs.careconnect.ri.messaging.support.CareConnectDSTU2toSTU3;
 import uk.nhs.careconnect.ri.messaging.support.CorsFilter;
+import uk.nhs.careconnect.ri.messaging.support.IdempotencyStore;
+import uk.nhs.careconnect.ri.messaging.support.MessageJournal;
+import uk.nhs.careconnect.ri.messaging.support.MessageStatusStore;
+
+import java.util.HashMap;
+import java.util.Map;
 
 @SpringBootApplication
 @EnableSwagger2
@@ -32,6 +41,8 @@ public class CcriMessaging {
         System.setProperty("hawtio.authenticationEnabled", "false");
         System.setProperty("management.security.enabled","false");
         System.setProperty("management.contextPath","");
+        // For log4j2-spring.xml, so the access log appender is on the logger AccessLog writes to
+        System.setProperty("hapi.logger.name", HapiProperties.getLoggerName());
         SpringApplication.run(CcriMessaging.class, args);
 
     }
@@ -111,7 +122,30 @@ public class CcriMessaging {
 
             @Override
             public void afterApplicationStart(CamelContext camelContext) {
-                // Empty method
+                if (HapiProperties.getValidationFlag() && HapiProperties.getValidationPrewarm()
+                        && !"remote".equalsIgnoreCase(HapiProperties.getValidationBackend())) {
+                    // Profiles are loaded in the background, the rest of startup doesn't wait for them
+                    Thread warmUp = new Thread(ValidationFactory::warmUp, "validator-warm-up");
+                    warmUp.setDaemon(true);
+                    warmUp.start();
+                }
+                if (!MessageJournal.isEnabled()) return;
+                // Requeue bundles accepted before the last shutdown that didn't complete
+                ProducerTemplate template = camelContext.createProducerTemplate();
+                for (MessageJournal.JournalEntry entry : MessageJournal.recover()) {
+                    MessageStatusStore.queued(entry.getStatusId());
+                    Map<String, Object> headers = new HashMap<>();
+                    headers.put(Exchange.HTTP_METHOD, "POST");
+                    headers.put(Exchange.HTTP_PATH, "Bundle");
+                    headers.put(Exchange.CONTENT_TYPE, "application/fhir+xml");
+                    headers.put(MessageStatusStore.STATUS_HEADER, entry.getStatusId());
+                    headers.put(MessageJournal.SEQUENCE_HEADER, entry.getSequence());
+                    // As enqueued, so the idempotency key matches the one the original request was given
+                    if (entry.getContentHash() != null) {
+                        headers.put(IdempotencyStore.CONTENT_HASH_HEADER, entry.getContentHash());
+                    }
+                    template.sendBodyAndHeaders("seda:FHIRBundleCollection?blockWhenFull=true", entry.getBody(), headers);
+                }
             }
         };
     }
@@ -7,8 +7,22 @@ import ca.uhn.fhir.rest.server.ETagSupportEnum;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class HapiProperties {
 
@@ -33,6 +47,7 @@ public class HapiProperties {
     static final String ETAG_SUPPORT = "etag_support";
     static final String FHIR_VERSION = "fhir_version";
     static final String HAPI_PROPERTIES = "hapi.properties";
+    static final String LOGGER_ACCESS_FORMAT = "logger.access_format";
     static final String LOGGER_ERROR_FORMAT = "logger.error_format";
     static final String LOGGER_FORMAT = "logger.format";
     static final String LOGGER_LOG_EXCEPTIONS = "logger.log_exceptions";
@@ -63,6 +78,13 @@ public class HapiProperties {
 
     static final String VALIDATION_FLAG = "validate.flag";
     static final String VALIDATION_SERVER = "validation.server";
+    static final String VALIDATION_PREWARM = "validation.prewarm";
+    static final String VALIDATION_PARALLELISM = "validation.parallelism";
+    static final String VALIDATION_BACKEND = "validation.backend";
+    static final String VALIDATION_CACHE = "validation.cache";
+    static final String VALIDATION_CACHE_MAX_BYTES = "validation.cache.max_bytes";
+    static final String VALIDATION_CACHE_TTL_SECONDS = "validation.cache.ttl_seconds";
+    static final String VALIDATION_REMOTE_VERSION = "validation.remote_version";
 
     static final String APP_USER = "jolokia.username";
     static final String APP_PASSWORD = "jolokia.password";
@@ -98,14 +120,114 @@ public class HapiProperties {
     static final String CAMEL_ROUTE = "camel.route.";
 
     static final String SNOMED_VERSION_URL = "terminology.snomed.version";
+
+    static final String CLIENT_POOL_MAX_TOTAL = "client.pool.max_total";
+    static final String CLIENT_POOL_MAX_PER_ROUTE = "client.pool.max_per_route";
+    static final String CLIENT_TIMEOUT_CONNECT = "client.timeout.connect";
+    static final String CLIENT_TIMEOUT_SOCKET = "client.timeout.socket";
+    static final String CLIENT_KEEP_ALIVE_MILLIS = "client.keep_alive_millis";
+
+    static final String BUNDLE_RESOLVER_PARALLEL = "bundle.resolver.parallel";
+    static final String BUNDLE_RESOLVER_THREADS = "bundle.resolver.threads";
+    static final String BUNDLE_RESOLVER_BUNDLE_THREADS = "bundle.resolver.bundle_threads";
+
+    static final String EPR_BATCH_LOOKUP = "epr.batch_lookup";
+    static final String EPR_BATCH_LOOKUP_MAX_ENTRIES = "epr.batch_lookup.max_entries";
+
+    static final String EPR_WRITE_MODE = "epr.write_mode";
+    static final String EPR_WRITE_MODE_TRANSACTION_PROFILES = "epr.write_mode.transaction_profiles";
+
+    static final String EPR_REFERENCE_CACHE = "epr.reference_cache";
+    static final String EPR_REFERENCE_CACHE_MAX_SIZE = "epr.reference_cache.max_size";
+    static final String EPR_REFERENCE_CACHE_TTL_SECONDS = "epr.reference_cache.ttl_seconds";
+
+    static final String ODS_CACHE_DIRECTORY = "ods.cache.directory";
+    static final String ODS_CACHE_TTL_SECONDS = "ods.cache.ttl_seconds";
+    static final String ODS_CACHE_STALE_SECONDS = "ods.cache.stale_seconds";
+    static final String ODS_SOURCE_FILE = "ods.source.file";
+
+    static final String MESSAGING_ASYNC = "messaging.async";
+    static final String MESSAGING_ASYNC_WORKERS = "messaging.async.workers";
+    static final String MESSAGING_ASYNC_QUEUE_SIZE = "messaging.async.queue_size";
+    static final String MESSAGING_ASYNC_STATUS_RETENTION_SECONDS = "messaging.async.status_retention_seconds";
+    static final String MESSAGING_ASYNC_STATUS_MAX_ENTRIES = "messaging.async.status_max_entries";
+
+    static final String MESSAGING_JOURNAL = "messaging.journal";
+    static final String MESSAGING_JOURNAL_DIRECTORY = "messaging.journal.directory";
+    static final String MESSAGING_JOURNAL_SEGMENT_BYTES = "messaging.journal.segment_bytes";
+    static final String MESSAGING_JOURNAL_FSYNC = "messaging.journal.fsync";
+    static final String MESSAGING_JOURNAL_FSYNC_INTERVAL_MILLIS = "messaging.journal.fsync_interval_millis";
+
+    static final String IDEMPOTENCY = "idempotency";
+    static final String IDEMPOTENCY_DIRECTORY = "idempotency.directory";
+    static final String IDEMPOTENCY_MAX_ENTRIES = "idempotency.max_entries";
+    static final String IDEMPOTENCY_TTL_SECONDS = "idempotency.ttl_seconds";
+    static final String IDEMPOTENCY_WAIT_SECONDS = "idempotency.wait_seconds";
+
+    static final String DOCUMENT_MODE = "document.mode";
+
+    static final String RESILIENCE = "resilience";
+    static final String RESILIENCE_MAX_CONCURRENT = "resilience.max_concurrent";
+    static final String RESILIENCE_MAX_QUEUE = "resilience.max_queue";
+    static final String RESILIENCE_QUEUE_TIMEOUT_MILLIS = "resilience.queue_timeout_millis";
+    static final String RESILIENCE_BREAKER_WINDOW = "resilience.breaker.window";
+    static final String RESILIENCE_BREAKER_MIN_CALLS = "resilience.breaker.min_calls";
+    static final String RESILIENCE_BREAKER_FAILURE_PERCENT = "resilience.breaker.failure_percent";
+    static final String RESILIENCE_BREAKER_OPEN_MILLIS = "resilience.breaker.open_millis";
+    static final String RESILIENCE_BREAKER_HALF_OPEN_CALLS = "resilience.breaker.half_open_calls";
+    static final String RESILIENCE_RETRY_MAX_ATTEMPTS = "resilience.retry.max_attempts";
+    static final String RESILIENCE_RETRY_BACKOFF_MILLIS = "resilience.retry.backoff_millis";
+    static final String RESILIENCE_RETRY_MAX_BACKOFF_MILLIS = "resilience.retry.max_backoff_millis";
+    static final String RESILIENCE_TIMEOUT_PERCENTILE = "resilience.timeout.percentile";
+    static final String RESILIENCE_TIMEOUT_MULTIPLIER = "resilience.timeout.multiplier";
+    static final String RESILIENCE_TIMEOUT_MIN_MILLIS = "resilience.timeout.min_millis";
+    static final String RESILIENCE_TIMEOUT_MAX_MILLIS = "resilience.timeout.max_millis";
+
+    static final String TRACING = "tracing";
+    static final String TRACING_BUFFER_SIZE = "tracing.buffer_size";
+    static final String TRACING_SLOWEST = "tracing.slowest";
+    static final String TRACING_MAX_SPANS = "tracing.max_spans";
+    static final String TRACING_EXPORT_FILE = "tracing.export_file";
+
+    static final String EDMS_BINARY_STREAMING = "edms.binary.streaming";
+    static final String EDMS_BINARY_STREAMING_THRESHOLD_BYTES = "edms.binary.streaming.threshold_bytes";
+    static final String EDMS_BINARY_SPOOL_DIRECTORY = "edms.binary.spool_directory";
+    static final String EDMS_BINARY_DEDUP = "edms.binary.dedup";
+    static final String EDMS_BINARY_DEDUP_MAX_ENTRIES = "edms.binary.dedup.max_entries";
+    static final String EDMS_BINARY_DEDUP_FILE = "edms.binary.dedup.file";
+
+    static final String CONFIG_WATCH = "config.watch";
+
     private static Properties properties;
 
+    private static volatile Snapshot snapshot;
+
+    private static final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private static Thread watcher;
+
+    /*
+        Told the names of the properties whose value changed when the configuration is reloaded, so components which
+        hold on to settings (clients, caches) can pick up the new ones.
+     */
+    public interface ChangeListener {
+        void onChange(Set<String> changed);
+    }
+
+    public static void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
     /*
      * Force the configuration to be reloaded
      */
     public static void forceReload() {
-        properties = null;
-        getProperties();
+        Properties previous;
+        synchronized (HapiProperties.class) {
+            previous = properties;
+            properties = null;
+        }
+        reload(previous);
     }
 
     /**
@@ -114,28 +236,141 @@ public class HapiProperties {
      */
     @VisibleForTesting
     public static void setProperty(String theKey, String theValue) {
-        getProperties().setProperty(theKey, theValue);
+        synchronized (HapiProperties.class) {
+            getProperties().setProperty(theKey, theValue);
+        }
+        reload(null);
     }
 
-    public static Properties getProperties() {
+    public static synchronized Properties getProperties() {
         if (properties == null) {
             // Load the configurable properties file
+            Properties loaded = new Properties();
             try (InputStream in = HapiProperties.class.getClassLoader().getResourceAsStream(HAPI_PROPERTIES)){
-                HapiProperties.properties = new Properties();
-                HapiProperties.properties.load(in);
+                loaded.load(in);
             } catch (Exception e) {
                 throw new ConfigurationException("Could not load HAPI properties", e);
             }
 
             Properties overrideProps = loadOverrideProperties();
             if(overrideProps != null) {
-                properties.putAll(overrideProps);
+                loaded.putAll(overrideProps);
             }
+            properties = loaded;
         }
 
         return properties;
     }
 
+    /*
+        The configuration as resolved at load, see Snapshot. Replaced as a whole on reload, so a caller which reads
+        several settings from one snapshot sees them consistently.
+     */
+    public static Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (HapiProperties.class) {
+                if (snapshot == null) {
+                    snapshot = new Snapshot(resolve());
+                    startWatcher();
+                }
+                current = snapshot;
+            }
+        }
+        return current;
+    }
+
+    /*
+        A configuration which can't be read or resolved (e.g. a malformed number) isn't swapped in, the current
+        snapshot stays and restore, if given, is put back as the file properties.
+     */
+    private static void reload(Properties restore) {
+        Set<String> changed;
+        synchronized (HapiProperties.class) {
+            Snapshot previous = snapshot;
+            Snapshot next;
+            try {
+                next = new Snapshot(resolve());
+            } catch (RuntimeException ex) {
+                if (restore != null) properties = restore;
+                throw ex;
+            }
+            snapshot = next;
+            if (previous == null) return;
+            changed = previous.changedIn(snapshot);
+        }
+        if (changed.isEmpty()) return;
+        log.info("Configuration reloaded, changed {}", changed);
+        for (ChangeListener listener : listeners) {
+            try {
+                listener.onChange(changed);
+            } catch (RuntimeException ex) {
+                log.error("Configuration change listener failed", ex);
+            }
+        }
+    }
+
+    /*
+        Environment variables override system properties, which override the properties files. Any name the code asks
+        for can be set from the environment or a system property, not only those in the files.
+     */
+    private static Map<String, String> resolve() {
+        Map<String, String> values = new HashMap<>();
+        Properties fileProperties = getProperties();
+        for (String name : fileProperties.stringPropertyNames()) {
+            values.put(name, fileProperties.getProperty(name));
+        }
+        Properties systemProperties = System.getProperties();
+        for (String name : systemProperties.stringPropertyNames()) {
+            values.put(name, systemProperties.getProperty(name));
+        }
+        values.putAll(System.getenv());
+        return values;
+    }
+
+    /*
+        Reloads when the -Dhapi.properties file changes, unless config.watch is false. The hapi.properties on the
+        classpath is packaged in the jar and isn't watched.
+     */
+    private static void startWatcher() {
+        String confFile = System.getProperty(HAPI_PROPERTIES);
+        if (confFile == null || watcher != null || !snapshot.getBoolean(CONFIG_WATCH, true)) return;
+        Path path = Paths.get(confFile).toAbsolutePath();
+        watcher = new Thread(() -> watch(path), "config-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static void watch(Path path) {
+        try (WatchService service = path.getFileSystem().newWatchService()) {
+            path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            log.info("Watching {} for configuration changes", path);
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (path.getFileName().equals(event.context())) changed = true;
+                }
+                key.reset();
+                if (changed) {
+                    // Editors and config map updates write in more than one step
+                    Thread.sleep(250);
+                    key.pollEvents();
+                    try {
+                        forceReload();
+                    } catch (RuntimeException ex) {
+                        // Keep watching, the next edit may well fix it
+                        log.error("Configuration not reloaded ({}), keeping the current settings", ex.toString());
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            log.error("Not watching {} for configuration changes ({})", path, ex.getMessage());
+        }
+    }
+
     /**
      * If a configuration file path is explicitly specified via -Dhapi.properties=<path>, the properties there will
      * be used to override the entries in the default hapi.properties file (currently under WEB-INF/classes)
@@ -144,9 +379,9 @@ public class HapiProperties {
     private static Properties loadOverrideProperties() {
         String confFile = System.getProperty(HAPI_PROPERTIES);
         if(confFile != null) {
-            try {
+            try (InputStream in = new FileInputStream(confFile)) {
                 Properties props = new Properties();
-                props.load(new FileInputStream(confFile));
+                props.load(in);
                 return props;
             }
             catch (Exception e) {
@@ -158,58 +393,107 @@ public class HapiProperties {
     }
 
     private static String getProperty(String propertyName) {
-        Properties properties = HapiProperties.getProperties();
-        log.info("Looking for property = {}", propertyName);
-        if (System.getenv(propertyName)!= null) {
-            String value= System.getenv(propertyName);
-            log.info("System Environment property Found {} = {}", propertyName, value);
-            return value;
-        }
-        if (System.getProperty(propertyName)!= null) {
-            String value= System.getenv(propertyName);
-            log.info("System Property Found {} = {}" , propertyName, value);
-            return value;
-        }
-        if (properties != null) {
-            return properties.getProperty(propertyName);
-        }
-
-        return null;
+        return getSnapshot().get(propertyName);
     }
 
     private static String getProperty(String propertyName, String defaultValue) {
-        Properties properties = HapiProperties.getProperties();
+        return getSnapshot().getString(propertyName, defaultValue);
+    }
 
-        if (properties != null) {
+    private static boolean getBooleanProperty(String propertyName, boolean defaultValue) {
+        return getSnapshot().getBoolean(propertyName, defaultValue);
+    }
 
-            String value = properties.getProperty(propertyName);
+    private static Integer getIntegerProperty(String propertyName, Integer defaultValue) {
+        return getSnapshot().getInteger(propertyName, defaultValue);
+    }
 
-            if (value != null && value.length() > 0) {
-                return value;
+    /*
+        Immutable, resolved configuration. Settings read for every message are parsed once into fields here, and
+        their getters below return the field. Anything else is a map lookup, parsed on each call.
+     */
+    public static final class Snapshot {
+
+        private final Map<String, String> values;
+
+        // server.base.<system>
+        private final Map<String, String> serverBases = new HashMap<>();
+
+        private final String serverBase;
+        private final boolean validationFlag;
+        private final boolean bundleResolverParallel;
+        private final boolean eprBatchLookup;
+        private final int eprBatchLookupMaxEntries;
+        private final String eprWriteMode;
+        private final String eprWriteModeTransactionProfiles;
+        private final boolean eprReferenceCache;
+        private final int odsCacheTtlSeconds;
+        private final int odsCacheStaleSeconds;
+        private final boolean messagingAsync;
+        private final boolean messagingJournal;
+        private final String messagingJournalFsync;
+        private final boolean idempotency;
+        private final boolean edmsBinaryStreaming;
+        private final int edmsBinaryStreamingThresholdBytes;
+        private final boolean edmsBinaryDedup;
+
+        private Snapshot(Map<String, String> values) {
+            this.values = Collections.unmodifiableMap(values);
+            String prefix = SERVER_BASE + ".";
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getKey().startsWith(prefix) && !entry.getValue().isEmpty()) {
+                    serverBases.put(entry.getKey().substring(prefix.length()), entry.getValue());
+                }
             }
+            serverBase = getString(SERVER_BASE, "/fhir");
+            validationFlag = getBoolean(VALIDATION_FLAG, false);
+            bundleResolverParallel = getBoolean(BUNDLE_RESOLVER_PARALLEL, true);
+            eprBatchLookup = getBoolean(EPR_BATCH_LOOKUP, true);
+            eprBatchLookupMaxEntries = getInteger(EPR_BATCH_LOOKUP_MAX_ENTRIES, 100);
+            eprWriteMode = getString(EPR_WRITE_MODE, "resource");
+            eprWriteModeTransactionProfiles = getString(EPR_WRITE_MODE_TRANSACTION_PROFILES, "");
+            eprReferenceCache = getBoolean(EPR_REFERENCE_CACHE, true);
+            odsCacheTtlSeconds = getInteger(ODS_CACHE_TTL_SECONDS, 86400);
+            odsCacheStaleSeconds = getInteger(ODS_CACHE_STALE_SECONDS, 604800);
+            messagingAsync = getBoolean(MESSAGING_ASYNC, false);
+            messagingJournal = getBoolean(MESSAGING_JOURNAL, false);
+            messagingJournalFsync = getString(MESSAGING_JOURNAL_FSYNC, "always");
+            idempotency = getBoolean(IDEMPOTENCY, false);
+            edmsBinaryStreaming = getBoolean(EDMS_BINARY_STREAMING, true);
+            edmsBinaryStreamingThresholdBytes = getInteger(EDMS_BINARY_STREAMING_THRESHOLD_BYTES, 65536);
+            edmsBinaryDedup = getBoolean(EDMS_BINARY_DEDUP, true);
         }
 
-        return defaultValue;
-    }
-
-    private static boolean getBooleanProperty(String propertyName, boolean defaultValue) {
-        String value = HapiProperties.getProperty(propertyName);
-
-        if (value == null || value.length() == 0) {
-            return defaultValue;
+        public String get(String propertyName) {
+            return values.get(propertyName);
         }
 
-        return Boolean.parseBoolean(value);
-    }
+        // Unset and empty properties take the default
+        public String getString(String propertyName, String defaultValue) {
+            String value = values.get(propertyName);
+            return (value == null || value.isEmpty()) ? defaultValue : value;
+        }
 
-    private static Integer getIntegerProperty(String propertyName, Integer defaultValue) {
-        String value = HapiProperties.getProperty(propertyName);
+        public boolean getBoolean(String propertyName, boolean defaultValue) {
+            String value = values.get(propertyName);
+            return (value == null || value.isEmpty()) ? defaultValue : Boolean.parseBoolean(value);
+        }
 
-        if (value == null || value.length() == 0) {
-            return defaultValue;
+        public Integer getInteger(String propertyName, Integer defaultValue) {
+            String value = values.get(propertyName);
+            return (value == null || value.isEmpty()) ? defaultValue : Integer.valueOf(value);
         }
 
-        return Integer.parseInt(value);
+        private Set<String> changedIn(Snapshot next) {
+            Set<String> changed = new TreeSet<>();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (!entry.getValue().equals(next.values.get(entry.getKey()))) changed.add(entry.getKey());
+            }
+            for (String name : next.values.keySet()) {
+                if (!values.containsKey(name)) changed.add(name);
+            }
+            return changed;
+        }
     }
 
     public static FhirVersionEnum getFhirVersion() {
@@ -282,6 +566,11 @@ public class HapiProperties {
         return HapiProperties.getBooleanProperty(LOGGER_LOG_EXCEPTIONS, true);
     }
 
+    // Access log line written to logger.name as each request completes, see AccessLog
+    public static String getLoggerAccessFormat() {
+        return HapiProperties.getProperty(LOGGER_ACCESS_FORMAT, "httpVerb[${requestVerb}] Source[${remoteAddr}] Operation[${operationType} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] RequestId[${requestHeader.x-request-id}] ForwardedFor[${requestHeader.x-forwarded-for}] ForwardedHost[${requestHeader.x-forwarded-host}] CorrelationId[${requestHeader.x-request-id}] ProcessingTime[${processingTimeMillis}] ResponseCode[${responseCode}]");
+    }
+
     public static String getDataSourceDriver() {
         return HapiProperties.getProperty(DATASOURCE_DRIVER);
     }
@@ -331,11 +620,11 @@ public class HapiProperties {
     }
 
     public static String getServerBase() {
-        return HapiProperties.getProperty(SERVER_BASE, "/fhir");
+        return getSnapshot().serverBase;
     }
 
     public static String getServerBase(String  system) {
-        return HapiProperties.getProperty(SERVER_BASE+"."+system, "/fhir");
+        return getSnapshot().serverBases.getOrDefault(system, "/fhir");
     }
 
     public static String getCamelRoute(String system) {
@@ -424,13 +713,44 @@ public class HapiProperties {
     }
 
     public static boolean getValidationFlag() {
-        return HapiProperties.getBooleanProperty(VALIDATION_FLAG, false);
+        return getSnapshot().validationFlag;
     }
 
     public static String getValidationServer() {
         return HapiProperties.getProperty(VALIDATION_SERVER);
     }
 
+    // remote (the TKW server), local or local-then-remote
+    public static String getValidationBackend() {
+        return HapiProperties.getProperty(VALIDATION_BACKEND, "remote");
+    }
+
+    public static boolean getValidationCache() {
+        return HapiProperties.getBooleanProperty(VALIDATION_CACHE, true);
+    }
+
+    public static Integer getValidationCacheMaxBytes() {
+        return HapiProperties.getIntegerProperty(VALIDATION_CACHE_MAX_BYTES, 67108864);
+    }
+
+    public static Integer getValidationCacheTtlSeconds() {
+        return HapiProperties.getIntegerProperty(VALIDATION_CACHE_TTL_SECONDS, 3600);
+    }
+
+    public static String getValidationRemoteVersion() {
+        return HapiProperties.getProperty(VALIDATION_REMOTE_VERSION, "");
+    }
+
+    public static boolean getValidationPrewarm() {
+        return HapiProperties.getBooleanProperty(VALIDATION_PREWARM, true);
+    }
+
+    // Threads validating bundle entries, 0 for one per processor
+    public static Integer getValidationParallelism() {
+        Integer parallelism = HapiProperties.getIntegerProperty(VALIDATION_PARALLELISM, 0);
+        return (parallelism > 0) ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
     public static String getAppUser() {
         return HapiProperties.getProperty(APP_USER);
     }
@@ -529,4 +849,262 @@ public class HapiProperties {
     public static boolean getServerCrudDelete() {
         return HapiProperties.getBooleanProperty(SERVER_CRUD_DELETE, false);
     }
+
+    public static Integer getClientPoolMaxTotal() {
+        return HapiProperties.getIntegerProperty(CLIENT_POOL_MAX_TOTAL, 100);
+    }
+
+    public static Integer getClientPoolMaxPerRoute() {
+        return HapiProperties.getIntegerProperty(CLIENT_POOL_MAX_PER_ROUTE, 20);
+    }
+
+    public static Integer getClientConnectTimeout() {
+        return HapiProperties.getIntegerProperty(CLIENT_TIMEOUT_CONNECT, 10000);
+    }
+
+    public static Integer getClientSocketTimeout() {
+        return HapiProperties.getIntegerProperty(CLIENT_TIMEOUT_SOCKET, 60000);
+    }
+
+    public static Integer getClientKeepAliveMillis() {
+        return HapiProperties.getIntegerProperty(CLIENT_KEEP_ALIVE_MILLIS, 30000);
+    }
+
+    public static boolean getBundleResolverParallel() {
+        return getSnapshot().bundleResolverParallel;
+    }
+
+    public static Integer getBundleResolverThreads() {
+        return HapiProperties.getIntegerProperty(BUNDLE_RESOLVER_THREADS, 8);
+    }
+
+    // At least one and no more than the pool
+    public static Integer getBundleResolverBundleThreads() {
+        int threads = HapiProperties.getIntegerProperty(BUNDLE_RESOLVER_BUNDLE_THREADS, 4);
+        return Math.max(1, Math.min(threads, getBundleResolverThreads()));
+    }
+
+    public static boolean getEprBatchLookup() {
+        return getSnapshot().eprBatchLookup;
+    }
+
+    public static Integer getEprBatchLookupMaxEntries() {
+        return getSnapshot().eprBatchLookupMaxEntries;
+    }
+
+    public static String getEprWriteMode() {
+        return getSnapshot().eprWriteMode;
+    }
+
+    public static String getEprWriteModeTransactionProfiles() {
+        return getSnapshot().eprWriteModeTransactionProfiles;
+    }
+
+    public static boolean getEprReferenceCache() {
+        return getSnapshot().eprReferenceCache;
+    }
+
+    public static Integer getEprReferenceCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(EPR_REFERENCE_CACHE_MAX_SIZE, 10000);
+    }
+
+    public static Integer getEprReferenceCacheTtlSeconds() {
+        return HapiProperties.getIntegerProperty(EPR_REFERENCE_CACHE_TTL_SECONDS, 3600);
+    }
+
+    public static String getOdsCacheDirectory() {
+        return HapiProperties.getProperty(ODS_CACHE_DIRECTORY, "");
+    }
+
+    public static Integer getOdsCacheTtlSeconds() {
+        return getSnapshot().odsCacheTtlSeconds;
+    }
+
+    public static Integer getOdsCacheStaleSeconds() {
+        return getSnapshot().odsCacheStaleSeconds;
+    }
+
+    public static String getOdsSourceFile() {
+        return HapiProperties.getProperty(ODS_SOURCE_FILE, "");
+    }
+
+    public static boolean getMessagingAsync() {
+        return getSnapshot().messagingAsync;
+    }
+
+    public static Integer getMessagingAsyncWorkers() {
+        return HapiProperties.getIntegerProperty(MESSAGING_ASYNC_WORKERS, 4);
+    }
+
+    public static Integer getMessagingAsyncQueueSize() {
+        return HapiProperties.getIntegerProperty(MESSAGING_ASYNC_QUEUE_SIZE, 1000);
+    }
+
+    public static Integer getMessagingAsyncStatusRetentionSeconds() {
+        return HapiProperties.getIntegerProperty(MESSAGING_ASYNC_STATUS_RETENTION_SECONDS, 3600);
+    }
+
+    public static Integer getMessagingAsyncStatusMaxEntries() {
+        return HapiProperties.getIntegerProperty(MESSAGING_ASYNC_STATUS_MAX_ENTRIES, 10000);
+    }
+
+    public static boolean getMessagingJournal() {
+        return getSnapshot().messagingJournal;
+    }
+
+    public static String getMessagingJournalDirectory() {
+        return HapiProperties.getProperty(MESSAGING_JOURNAL_DIRECTORY, "journal");
+    }
+
+    public static Integer getMessagingJournalSegmentBytes() {
+        return HapiProperties.getIntegerProperty(MESSAGING_JOURNAL_SEGMENT_BYTES, 67108864);
+    }
+
+    public static String getMessagingJournalFsync() {
+        return getSnapshot().messagingJournalFsync;
+    }
+
+    public static Integer getMessagingJournalFsyncIntervalMillis() {
+        return HapiProperties.getIntegerProperty(MESSAGING_JOURNAL_FSYNC_INTERVAL_MILLIS, 100);
+    }
+
+    public static boolean getIdempotency() {
+        return getSnapshot().idempotency;
+    }
+
+    public static String getIdempotencyDirectory() {
+        return HapiProperties.getProperty(IDEMPOTENCY_DIRECTORY, "idempotency");
+    }
+
+    public static Integer getIdempotencyMaxEntries() {
+        return HapiProperties.getIntegerProperty(IDEMPOTENCY_MAX_ENTRIES, 10000);
+    }
+
+    public static Integer getIdempotencyTtlSeconds() {
+        return HapiProperties.getIntegerProperty(IDEMPOTENCY_TTL_SECONDS, 86400);
+    }
+
+    public static Integer getIdempotencyWaitSeconds() {
+        return HapiProperties.getIntegerProperty(IDEMPOTENCY_WAIT_SECONDS, 30);
+    }
+
+    public static boolean getEdmsBinaryStreaming() {
+        return getSnapshot().edmsBinaryStreaming;
+    }
+
+    public static Integer getEdmsBinaryStreamingThresholdBytes() {
+        return getSnapshot().edmsBinaryStreamingThresholdBytes;
+    }
+
+    public static String getEdmsBinarySpoolDirectory() {
+        return HapiProperties.getProperty(EDMS_BINARY_SPOOL_DIRECTORY, "");
+    }
+
+    public static boolean getEdmsBinaryDedup() {
+        return getSnapshot().edmsBinaryDedup;
+    }
+
+    public static Integer getEdmsBinaryDedupMaxEntries() {
+        return HapiProperties.getIntegerProperty(EDMS_BINARY_DEDUP_MAX_ENTRIES, 100000);
+    }
+
+    public static String getEdmsBinaryDedupFile() {
+        return HapiProperties.getProperty(EDMS_BINARY_DEDUP_FILE, "binary-index.log");
+    }
+
+    public static String getDocumentMode() {
+        return HapiProperties.getProperty(DOCUMENT_MODE, "sequential");
+    }
+
+    public static boolean getResilience() {
+        return HapiProperties.getBooleanProperty(RESILIENCE, true);
+    }
+
+    public static Integer getResilienceMaxConcurrent(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_MAX_CONCURRENT, 20);
+    }
+
+    public static Integer getResilienceMaxQueue(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_MAX_QUEUE, 50);
+    }
+
+    public static Integer getResilienceQueueTimeoutMillis(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_QUEUE_TIMEOUT_MILLIS, 2000);
+    }
+
+    public static Integer getResilienceBreakerWindow(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_BREAKER_WINDOW, 20);
+    }
+
+    public static Integer getResilienceBreakerMinCalls(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_BREAKER_MIN_CALLS, 10);
+    }
+
+    public static Integer getResilienceBreakerFailurePercent(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_BREAKER_FAILURE_PERCENT, 50);
+    }
+
+    public static Integer getResilienceBreakerOpenMillis(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_BREAKER_OPEN_MILLIS, 30000);
+    }
+
+    public static Integer getResilienceBreakerHalfOpenCalls(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_BREAKER_HALF_OPEN_CALLS, 1);
+    }
+
+    public static Integer getResilienceRetryMaxAttempts(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_RETRY_MAX_ATTEMPTS, 3);
+    }
+
+    public static Integer getResilienceRetryBackoffMillis(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_RETRY_BACKOFF_MILLIS, 100);
+    }
+
+    public static Integer getResilienceRetryMaxBackoffMillis(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_RETRY_MAX_BACKOFF_MILLIS, 2000);
+    }
+
+    public static Integer getResilienceTimeoutPercentile(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_TIMEOUT_PERCENTILE, 99);
+    }
+
+    public static Integer getResilienceTimeoutMultiplier(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_TIMEOUT_MULTIPLIER, 3);
+    }
+
+    public static Integer getResilienceTimeoutMinMillis(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_TIMEOUT_MIN_MILLIS, 2000);
+    }
+
+    public static Integer getResilienceTimeoutMaxMillis(String downstream) {
+        return HapiProperties.getResilienceProperty(downstream, RESILIENCE_TIMEOUT_MAX_MILLIS, getClientSocketTimeout());
+    }
+
+    // resilience.<downstream>.<setting> overrides resilience.<setting> for one downstream (epr, edms, ods, tkw)
+    private static Integer getResilienceProperty(String downstream, String propertyName, Integer defaultValue) {
+        String setting = propertyName.substring(RESILIENCE.length() + 1);
+        return HapiProperties.getIntegerProperty(RESILIENCE + "." + downstream + "." + setting,
+                HapiProperties.getIntegerProperty(propertyName, defaultValue));
+    }
+
+    public static boolean getTracing() {
+        return HapiProperties.getBooleanProperty(TRACING, true);
+    }
+
+    public static Integer getTracingBufferSize() {
+        return HapiProperties.getIntegerProperty(TRACING_BUFFER_SIZE, 1000);
+    }
+
+    public static Integer getTracingSlowest() {
+        return HapiProperties.getIntegerProperty(TRACING_SLOWEST, 50);
+    }
+
+    public static Integer getTracingMaxSpans() {
+        return HapiProperties.getIntegerProperty(TRACING_MAX_SPANS, 2000);
+    }
+
+    // Empty for no export
+    public static String getTracingExportFile() {
+        return HapiProperties.getProperty(TRACING_EXPORT_FILE, "");
+    }
 }
@@ -6,8 +6,10 @@ import ca.uhn.hl7v2.DefaultHapiContext;
 import ca.uhn.hl7v2.HapiContext;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.hl7.HL7DataFormat;
+import org.apache.camel.model.RouteDefinition;
 import org.apache.camel.impl.DefaultCamelContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -16,10 +18,21 @@ import org.springframework.stereotype.Component;
 import uk.nhs.careconnect.ri.messaging.HapiProperties;
 import uk.nhs.careconnect.ri.messaging.camel.interceptor.GatewayPostProcessor;
 import uk.nhs.careconnect.ri.messaging.camel.interceptor.GatewayPreProcessor;
+import uk.nhs.careconnect.ri.messaging.camel.interceptor.MetricsRoutePolicyFactory;
+import uk.nhs.careconnect.ri.messaging.camel.interceptor.TracingRoutePolicyFactory;
 import uk.nhs.careconnect.ri.messaging.camel.processor.BundleMessage;
 import uk.nhs.careconnect.ri.messaging.camel.processor.CompositionDocumentBundle;
+import uk.nhs.careconnect.ri.messaging.camel.processor.DocumentFanOutProcessor;
+import uk.nhs.careconnect.ri.messaging.camel.processor.DownstreamProcessor;
+import uk.nhs.careconnect.ri.messaging.camel.processor.EdmsDedupProcessor;
 import uk.nhs.careconnect.ri.messaging.camel.processor.EdmsProcessor;
 import uk.nhs.careconnect.ri.messaging.camel.processor.HL7v2A05toFHIRBundle;
+import uk.nhs.careconnect.ri.messaging.camel.processor.IdempotentProcessor;
+import uk.nhs.careconnect.ri.messaging.camel.processor.LocalValidationProcessor;
+import uk.nhs.careconnect.ri.messaging.camel.processor.MessageStatusProcessor;
+import uk.nhs.careconnect.ri.messaging.camel.processor.ResourceBodyEncoder;
+import uk.nhs.careconnect.ri.messaging.support.FhirClientRegistry;
+import uk.nhs.careconnect.ri.messaging.support.MessageStatusStore;
 
 import java.io.InputStream;
 
@@ -38,17 +51,27 @@ public class CamelRoute extends RouteBuilder {
     {
 		CamelContext context = new DefaultCamelContext();
 
+		// Route timers for the actuator's prometheus endpoint
+		getContext().addRoutePolicyFactory(new MetricsRoutePolicyFactory());
+		// Per message trace spans, see Tracer
+		getContext().addRoutePolicyFactory(new TracingRoutePolicyFactory());
+
 
 		GatewayPreProcessor camelProcessor = new GatewayPreProcessor();
 
 		GatewayPostProcessor camelPostProcessor = new GatewayPostProcessor();
 
-		FhirContext ctx = FhirContext.forDstu3();
+		// Shared context, the processors below and BundleCore obtain pooled clients from the same registry
+		FhirContext ctx = FhirClientRegistry.getContext();
 		EdmsProcessor edmsProcessor = new EdmsProcessor(ctx);
+		ResourceBodyEncoder resourceBodyEncoder = new ResourceBodyEncoder(ctx);
 
 		BundleMessage bundleMessage = new BundleMessage(ctx, HapiProperties.getServerBase("epr"), HapiProperties.getServerBase("edms"));
         CompositionDocumentBundle compositionDocumentBundle = new CompositionDocumentBundle(ctx, HapiProperties.getServerBase(), HapiProperties.getServerBase("edms"));
 
+		// TKW and EDMS endpoints are called through their bulkhead and circuit breaker (see Downstream)
+		ProducerTemplate downstreamTemplate = getContext().createProducerTemplate();
+
 		hapiContext = new DefaultHapiContext();
 
 		hapiContext.getParserConfiguration().setValidating(false);
@@ -59,27 +82,67 @@ public class CamelRoute extends RouteBuilder {
 		hl7.setHapiContext(hapiContext);
 
 
-		from("direct:FHIRValidate")
+		// $validate in process, on the TKW server, or in process falling back to TKW when the local validator fails
+		RouteDefinition validation = from("direct:FHIRValidate")
 				.routeId("FHIR Validation")
-				.process(camelProcessor) // Add in correlation Id if not present
-				.to("direct:TKWServer");
+				.process(camelProcessor); // Add in correlation Id if not present
+		String validationBackend = HapiProperties.getValidationBackend();
+		if ("local".equalsIgnoreCase(validationBackend)) {
+			validation.process(new LocalValidationProcessor(ctx));
+		} else if ("local-then-remote".equalsIgnoreCase(validationBackend)) {
+			validation
+				.doTry()
+					.process(new LocalValidationProcessor(ctx, true))
+				.doCatch(Exception.class)
+					.to("log:uk.nhs.careconnect.FHIRGateway.validation?level=WARN&showCaughtException=true")
+					.to("direct:TKWServer")
+				.end();
+		} else {
+			validation.to("direct:TKWServer");
+		}
 
 
 		// Complex processing
 
-		// This bundle goes to the EDMS Server. See also Binary
+		// Resubmitted bundles are answered from the idempotency store (see IdempotentProcessor)
+		ProducerTemplate documentTemplate = getContext().createProducerTemplate();
 		from("direct:FHIRBundleDocument")
 				.routeId("Bundle Document")
-				.process(camelProcessor) // Add in correlation Id if not present
+				.process(new IdempotentProcessor(ctx, "document",
+						exchange -> documentTemplate.send("direct:FHIRBundleDocumentProcessing", exchange)));
+
+		// This bundle goes to the EDMS Server. See also Binary
+		RouteDefinition documentProcessing = from("direct:FHIRBundleDocumentProcessing")
+				.routeId("Bundle Document Processing")
+				.process(camelProcessor); // Add in correlation Id if not present
+		if ("parallel".equalsIgnoreCase(HapiProperties.getDocumentMode())) {
+			// EDMS and EPR concurrently, DocumentReference last
+			documentProcessing.process(new DocumentFanOutProcessor(ctx, documentTemplate, compositionDocumentBundle,
+					HapiProperties.getServerBase(), HapiProperties.getServerBase("edms")));
+		} else {
+			documentProcessing
 				.enrich("direct:EDMSServer", compositionDocumentBundle)
 				.choice()
 					.when(header(Exchange.HTTP_RESPONSE_CODE).isEqualTo("200") ).enrich("direct:FHIRBundleMessage")
 					.when(header(Exchange.HTTP_RESPONSE_CODE).isEqualTo("201") ).enrich("direct:FHIRBundleMessage")
 				.end(); // Send a copy to EPR for main CCRI load
+		}
 
 		from("direct:FHIRBundleMessage")
 				.routeId("Bundle Message Processing")
-				.process(bundleMessage); // Goes direct to EPR FHIR Server
+				.process(new IdempotentProcessor(ctx, "message", bundleMessage)); // Goes direct to EPR FHIR Server
+
+		// Asynchronous ingest. Bundles accepted with 202 (see BundleResourceProvider) are drained by a pool of workers
+		from("seda:FHIRBundleCollection?size=" + HapiProperties.getMessagingAsyncQueueSize()
+					+ "&concurrentConsumers=" + HapiProperties.getMessagingAsyncWorkers())
+				.routeId("Bundle Message Queue")
+				.process(new MessageStatusProcessor(ctx, MessageStatusStore.State.PROCESSING))
+				.doTry()
+					.to("direct:FHIRBundleMessage")
+				.doCatch(Exception.class)
+					.to("log:uk.nhs.careconnect.FHIRGateway.queue?level=ERROR&showCaughtException=true")
+				.end()
+				.process(new MessageStatusProcessor(ctx, MessageStatusStore.State.COMPLETE));
 
 
 	// Integration Server (TIE)
@@ -100,8 +163,9 @@ public class CamelRoute extends RouteBuilder {
 		from("direct:TKWServer")
 			.routeId("TKW FHIR Server")
 			.process(camelProcessor)
+			.process(resourceBodyEncoder)
 			.to("log:uk.nhs.careconnect.FHIRGateway.start?level=INFO&showHeaders=true&showExchangeId=true")
-			.to(HapiProperties.getCamelRoute("tkw"))
+			.process(new DownstreamProcessor("tkw", downstreamTemplate, HapiProperties.getCamelRoute("tkw")))
 			.process(camelPostProcessor)
 			.to("log:uk.nhs.careconnect.FHIRGateway.complete?level=INFO&showHeaders=true&showExchangeId=true")
 			.convertBodyTo(InputStream.class);
@@ -111,13 +175,21 @@ public class CamelRoute extends RouteBuilder {
 
 		from("direct:EDMSServer")
 				.routeId("EDMS FHIR Server")
-				.to("log:uk.nhs.careconnect.FHIRGateway.start?level=INFO&showHeaders=true&showExchangeId=true")
-				.to(HapiProperties.getCamelRoute("edms"))
-				//.unmarshal().fhirXml("DSTU3")
-				.process(edmsProcessor)
-				.process(camelPostProcessor)
-				.to("log:uk.nhs.careconnect.FHIRGateway.complete?level=INFO&showHeaders=true&showExchangeId=true")
-				.convertBodyTo(InputStream.class);
+				.process(new ResourceBodyEncoder(ctx, true)) // Serialised here, for the post to EDMS, large documents to a file
+				.process(new EdmsDedupProcessor(EdmsDedupProcessor.Mode.LOOKUP))
+				.choice()
+					.when(header(EdmsDedupProcessor.DUPLICATE_HEADER).isEqualTo(true))
+						.to("log:uk.nhs.careconnect.FHIRGateway.duplicate?level=INFO&showHeaders=true&showExchangeId=true")
+					.otherwise()
+						.to("log:uk.nhs.careconnect.FHIRGateway.start?level=INFO&showHeaders=true&showExchangeId=true")
+						.process(new DownstreamProcessor("edms", downstreamTemplate, HapiProperties.getCamelRoute("edms")))
+						//.unmarshal().fhirXml("DSTU3")
+						.process(edmsProcessor)
+						.process(camelPostProcessor)
+						.process(new EdmsDedupProcessor(EdmsDedupProcessor.Mode.RECORD))
+						.to("log:uk.nhs.careconnect.FHIRGateway.complete?level=INFO&showHeaders=true&showExchangeId=true")
+						.convertBodyTo(InputStream.class)
+				.end();
 
 
     }
@@ -0,0 +1,47 @@
+package uk.nhs.careconnect.ri.messaging.camel.interceptor;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.spi.RoutePolicy;
+import org.apache.camel.spi.RoutePolicyFactory;
+import org.apache.camel.support.RoutePolicySupport;
+import uk.nhs.careconnect.ri.messaging.support.MessagingMetrics;
+
+/*
+    Times every exchange through every route (messaging.route, tagged with the routeId), see MessagingMetrics.
+ */
+public class MetricsRoutePolicyFactory implements RoutePolicyFactory {
+
+    @Override
+    public RoutePolicy createRoutePolicy(CamelContext camelContext, String routeId, RouteDefinition route) {
+        return new MetricsRoutePolicy(routeId);
+    }
+
+    private static class MetricsRoutePolicy extends RoutePolicySupport {
+
+        private final String routeId;
+
+        // Exchange property holding the start time, one per route as an exchange can pass through several
+        private final String startProperty;
+
+        private MetricsRoutePolicy(String routeId) {
+            this.routeId = routeId;
+            this.startProperty = "MetricsRouteStart." + routeId;
+        }
+
+        @Override
+        public void onExchangeBegin(Route route, Exchange exchange) {
+            exchange.setProperty(startProperty, System.nanoTime());
+        }
+
+        @Override
+        public void onExchangeDone(Route route, Exchange exchange) {
+            Long start = exchange.getProperty(startProperty, Long.class);
+            if (start == null) return;
+            exchange.removeProperty(startProperty);
+            MessagingMetrics.recordRoute(routeId, System.nanoTime() - start, exchange.getException() != null);
+        }
+    }
+}
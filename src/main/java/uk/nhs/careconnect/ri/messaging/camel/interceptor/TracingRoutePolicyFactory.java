@@ -0,0 +1,84 @@
+package uk.nhs.careconnect.ri.messaging.camel.interceptor;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.spi.RoutePolicy;
+import org.apache.camel.spi.RoutePolicyFactory;
+import org.apache.camel.support.RoutePolicySupport;
+import uk.nhs.careconnect.ri.messaging.support.Tracer;
+
+/*
+    Opens a span for every exchange through every route, see Tracer.
+
+    The first route an exchange enters starts the trace, using the X-Request-ID header, the X-Request-ID of the HTTP
+    request on this thread, or the exchange id, and sets the header if it was missing. Routes entered from a route are
+    child spans, whether called on the same thread or sent on another with the exchange (SPAN_PROPERTY). An exchange
+    consumed after its trace finished (the seda queue) starts a new trace with the same X-Request-ID.
+ */
+public class TracingRoutePolicyFactory implements RoutePolicyFactory {
+
+    @Override
+    public RoutePolicy createRoutePolicy(CamelContext camelContext, String routeId, RouteDefinition route) {
+        return new TracingRoutePolicy(routeId);
+    }
+
+    private static class TracingRoutePolicy extends RoutePolicySupport {
+
+        private final String routeId;
+
+        // Exchange properties holding this route's span and the one it replaced as SPAN_PROPERTY
+        private final String spanProperty;
+
+        private final String parentProperty;
+
+        private TracingRoutePolicy(String routeId) {
+            this.routeId = routeId;
+            this.spanProperty = "TracerSpan." + routeId;
+            this.parentProperty = "TracerParent." + routeId;
+        }
+
+        @Override
+        public void onExchangeBegin(Route route, Exchange exchange) {
+            if (!Tracer.isEnabled()) return;
+            Tracer.Span parent = Tracer.current();
+            if (parent == null) {
+                parent = exchange.getProperty(Tracer.SPAN_PROPERTY, Tracer.Span.class);
+            }
+            Tracer.Span span;
+            if (parent != null && parent.isActive()) {
+                span = Tracer.startSpan(parent, "route", routeId);
+            } else {
+                String requestId = exchange.getIn().getHeader(Tracer.REQUEST_ID_HEADER, String.class);
+                if (requestId == null || requestId.isEmpty()) {
+                    requestId = Tracer.takeIncomingRequestId();
+                    if (requestId == null || requestId.isEmpty()) requestId = exchange.getExchangeId();
+                    exchange.getIn().setHeader(Tracer.REQUEST_ID_HEADER, requestId);
+                }
+                span = Tracer.startTrace(requestId, routeId);
+            }
+            if (parent != null) exchange.setProperty(parentProperty, parent);
+            exchange.setProperty(spanProperty, span);
+            exchange.setProperty(Tracer.SPAN_PROPERTY, span);
+        }
+
+        @Override
+        public void onExchangeDone(Route route, Exchange exchange) {
+            Tracer.Span span = exchange.getProperty(spanProperty, Tracer.Span.class);
+            if (span == null) return;
+            Tracer.Span parent = exchange.getProperty(parentProperty, Tracer.Span.class);
+            exchange.removeProperty(spanProperty);
+            exchange.removeProperty(parentProperty);
+            if (parent != null) {
+                exchange.setProperty(Tracer.SPAN_PROPERTY, parent);
+            } else {
+                exchange.removeProperty(Tracer.SPAN_PROPERTY);
+            }
+            if (exchange.getException() != null) {
+                span.setError(exchange.getException().getMessage());
+            }
+            span.close();
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package uk.nhs.careconnect.ri.messaging.camel.processor;
 
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.UrlUtil;
 import org.apache.camel.*;
 import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.dstu3.model.*;
@@ -16,8 +21,15 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.BinaryContentIndex;
+import uk.nhs.careconnect.ri.messaging.support.BinarySpool;
+import uk.nhs.careconnect.ri.messaging.support.FhirClientRegistry;
+import uk.nhs.careconnect.ri.messaging.support.MessagingMetrics;
+import uk.nhs.careconnect.ri.messaging.support.OdsOrganizationResolver;
 import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeException;
 import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeFactory;
+import uk.nhs.careconnect.ri.messaging.support.ReferenceDataCache;
+import uk.nhs.careconnect.ri.messaging.support.Tracer;
 
 import javax.print.Doc;
 import java.io.InputStream;
@@ -25,29 +37,41 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 public class BundleCore {
 
     public BundleCore(FhirContext ctx, CamelContext camelContext, Bundle bundle, String eprBase, String edmsBase) {
         this.ctx = ctx;
         this.bundle = bundle;
+        this.bundleIndex = new BundleIndex(bundle);
         this.context = camelContext;
-        this.clientODS = FhirContext.forDstu3().newRestfulGenericClient(HapiProperties.getServerBase("ods"));
-        this.clientEPR = FhirContext.forDstu3().newRestfulGenericClient(eprBase);
-        this.clientEDMS = FhirContext.forDstu3().newRestfulGenericClient(edmsBase);
+        this.clientEPR = FhirClientRegistry.getClient(eprBase);
+        this.clientEDMS = FhirClientRegistry.getClient(edmsBase);
         this.eprBase = eprBase;
         this.edmsBase = edmsBase;
+        if (camelContext != null) {
+            this.template = camelContext.createProducerTemplate();
+        }
     }
 
     CamelContext context;
 
     FhirContext ctx;
 
-    IGenericClient clientODS;
-
     IGenericClient clientEPR;
 
     IGenericClient clientEDMS;
@@ -63,14 +87,75 @@ public class BundleCore {
             fhirMedicationStatementToFHIRMedicationRequestTransformer = new  FHIRMedicationStatementToFHIRMedicationRequestTransformer();
 */
 
-    private Map<String, Resource> resourceMap = new HashMap<>();;
+    // Concurrent as bundle entries of the same dependency level are resolved in parallel (see searchAddBundle)
+    private Map<String, Resource> resourceMap = new ConcurrentHashMap<>();
+
+    private final ReferenceResolutions resolutions = new ReferenceResolutions();
+
+    // Results of batched identifier searches keyed on resourceName|system|value, each is consumed by queryResource once
+    private final Map<String, Bundle> identifierSearches = new ConcurrentHashMap<>();
+
+    private boolean transactionWrite = false;
+
+    // Queued EPR writes in transaction write mode, guarded by itself
+    private final List<Bundle.BundleEntryComponent> transactionEntries = new ArrayList<>();
+
+    // Resources queued for create in transaction write mode keyed on resourceName|system|value
+    private final Map<String, Resource> transactionCreates = new ConcurrentHashMap<>();
+
+    private static final TokenClientParam IDENTIFIER = new TokenClientParam("identifier");
+
+    // Resource types queryResource searches by identifier
+    private static final Set<String> IDENTIFIER_SEARCH_TYPES = new HashSet<>(Arrays.asList(
+            "AllergyIntolerance", "Appointment", "CarePlan", "ClinicalImpression", "Condition", "Consent",
+            "DocumentReference", "Encounter", "EpisodeOfCare", "Flag", "HealthcareService", "Immunization", "List",
+            "Location", "MedicationDispense", "MedicationRequest", "MedicationAdministration", "MedicationStatement",
+            "Observation", "Organization", "Practitioner", "Procedure", "QuestionnaireResponse", "ReferralRequest",
+            "RelatedPerson", "Schedule", "Slot", "Patient", "Questionnaire"));
 
     private Bundle bundle;
 
-    private OperationOutcome operationOutcome = null;
+    private final BundleIndex bundleIndex;
+
+    private volatile OperationOutcome operationOutcome = null;
 
     private static final Logger log = LoggerFactory.getLogger(BundleCore.class);
 
+    // Dispatch of bundle entries by resource type, see searchAddReference
+    static {
+        ResourceHandlerRegistry.register(ResourceType.AllergyIntolerance, AllergyIntolerance.class, BundleCore::searchAddAllergyIntolerance);
+        ResourceHandlerRegistry.register(ResourceType.Binary, Binary.class, BundleCore::searchAddBinary);
+        ResourceHandlerRegistry.register(ResourceType.CarePlan, CarePlan.class, BundleCore::searchAddCarePlan);
+        ResourceHandlerRegistry.register(ResourceType.CareTeam, CareTeam.class, BundleCore::searchAddCareTeam);
+        ResourceHandlerRegistry.register(ResourceType.ClinicalImpression, ClinicalImpression.class, BundleCore::searchAddClinicalImpression);
+        ResourceHandlerRegistry.register(ResourceType.Condition, Condition.class, BundleCore::searchAddCondition);
+        ResourceHandlerRegistry.register(ResourceType.Consent, Consent.class, BundleCore::searchAddConsent);
+        ResourceHandlerRegistry.register(ResourceType.DocumentReference, DocumentReference.class, BundleCore::searchAddDocumentReference);
+        ResourceHandlerRegistry.register(ResourceType.Encounter, Encounter.class, BundleCore::searchAddEncounter);
+        ResourceHandlerRegistry.register(ResourceType.EpisodeOfCare, EpisodeOfCare.class, BundleCore::searchAddEpisodeOfCare);
+        ResourceHandlerRegistry.register(ResourceType.Flag, Flag.class, BundleCore::searchAddFlag);
+        ResourceHandlerRegistry.register(ResourceType.Goal, Goal.class, BundleCore::searchAddGoal);
+        ResourceHandlerRegistry.register(ResourceType.HealthcareService, HealthcareService.class, BundleCore::searchAddHealthcareService);
+        ResourceHandlerRegistry.register(ResourceType.Immunization, Immunization.class, BundleCore::searchAddImmunization);
+        ResourceHandlerRegistry.register(ResourceType.List, ListResource.class, BundleCore::searchAddList);
+        ResourceHandlerRegistry.register(ResourceType.Location, Location.class, BundleCore::searchAddLocation);
+        ResourceHandlerRegistry.register(ResourceType.Medication, Medication.class, BundleCore::searchAddMedication);
+        ResourceHandlerRegistry.register(ResourceType.MedicationAdministration, MedicationAdministration.class, BundleCore::searchAddMedicationAdministration);
+        ResourceHandlerRegistry.register(ResourceType.MedicationDispense, MedicationDispense.class, BundleCore::searchAddMedicationDispense);
+        ResourceHandlerRegistry.register(ResourceType.MedicationRequest, MedicationRequest.class, BundleCore::searchAddMedicationRequest);
+        ResourceHandlerRegistry.register(ResourceType.MedicationStatement, MedicationStatement.class, BundleCore::searchAddMedicationStatement);
+        ResourceHandlerRegistry.register(ResourceType.Observation, Observation.class, BundleCore::searchAddObservation);
+        ResourceHandlerRegistry.register(ResourceType.Organization, Organization.class, BundleCore::searchAddOrganisation);
+        ResourceHandlerRegistry.register(ResourceType.Patient, Patient.class, BundleCore::searchAddPatient);
+        ResourceHandlerRegistry.register(ResourceType.Practitioner, Practitioner.class, BundleCore::searchAddPractitioner);
+        ResourceHandlerRegistry.register(ResourceType.Procedure, Procedure.class, BundleCore::searchAddProcedure);
+        ResourceHandlerRegistry.register(ResourceType.Questionnaire, Questionnaire.class, BundleCore::searchAddQuestionnaire);
+        ResourceHandlerRegistry.register(ResourceType.QuestionnaireResponse, QuestionnaireResponse.class, BundleCore::searchAddQuestionnaireResponse);
+        ResourceHandlerRegistry.register(ResourceType.ReferralRequest, ReferralRequest.class, BundleCore::searchAddReferralRequest);
+        ResourceHandlerRegistry.register(ResourceType.RelatedPerson, RelatedPerson.class, BundleCore::searchAddRelatedPerson);
+        // Not enabled: Composition, DiagnosticReport, RiskAssessment
+    }
+
     public Reference getReference(Resource resource) {
         Reference reference = new Reference();
         reference.setReference(resource.getId());
@@ -92,7 +177,10 @@ public class BundleCore {
         updatedBundle.setType(this.bundle.getType());
         updatedBundle.setIdentifier(this.bundle.getIdentifier());
         for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-            Resource iResource = resourceMap.get(entry.getResource().getId());
+            Resource iResource = null;
+            if (entry.getResource().getId() != null) {
+                iResource = resourceMap.get(entry.getResource().getId());
+            }
             if (iResource == null) {
                 iResource = searchAddResource(entry.getResource().getId());
             }
@@ -112,32 +200,38 @@ public class BundleCore {
         return bundle;
     }
 
+    /*
+        Records a resource resolved elsewhere (the EPR copy of a bundle entry), references to it then resolve to it
+        without another EPR search.
+     */
+    public void addResolved(String referenceId, Resource resource) {
+        if (referenceId != null && resource != null) setResourceMap(referenceId, resource);
+    }
+
     public Boolean checkCircularReference(Encounter encounter) {
         Boolean found = false;
         log.debug("Checking Encounter id="+encounter.getId());
         log.debug("Checking Encounter idElement="+encounter.getIdElement());
         if (encounter.hasDiagnosis()) {
-            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.getResource() instanceof Condition) {
-                    Condition condition = (Condition) entry.getResource();
-                    log.debug("Check condition = "+condition.getId());
-                    if (condition.hasContext()) {
-                        for (Encounter.DiagnosisComponent diagnosis : encounter.getDiagnosis()) {
-                            log.debug("Check encounter.diagnosis = "+diagnosis.getCondition().getReference());
-                            if (diagnosis.getCondition().getReference().equals(condition.getId())) {
-
-                                if (condition.getContext().getReference().equals(encounter.getId())) {
-                                    OperationOutcome outcome = new OperationOutcome();
-                                    outcome.addIssue()
-                                            .setCode(OperationOutcome.IssueType.BUSINESSRULE)
-                                            .setSeverity(OperationOutcome.IssueSeverity.FATAL)
-                                            .setDiagnostics("Encounter "+encounter.getId()+" has a circular diagnosis reference to Condition "+condition.getId())
-                                            .setDetails(
-                                                    new CodeableConcept().setText("Circular Reference")
-                                            );
-                                    setOperationOutcome(outcome);
-                                    OperationOutcomeFactory.convertToException(outcome);
-                                }
+            // Only Conditions whose context is this Encounter can form the loop
+            for (Condition condition : bundleIndex.getConditionsByContext(encounter.getId())) {
+                log.debug("Check condition = "+condition.getId());
+                if (condition.hasContext()) {
+                    for (Encounter.DiagnosisComponent diagnosis : encounter.getDiagnosis()) {
+                        log.debug("Check encounter.diagnosis = "+diagnosis.getCondition().getReference());
+                        if (diagnosis.getCondition().getReference().equals(condition.getId())) {
+
+                            if (condition.getContext().getReference().equals(encounter.getId())) {
+                                OperationOutcome outcome = new OperationOutcome();
+                                outcome.addIssue()
+                                        .setCode(OperationOutcome.IssueType.BUSINESSRULE)
+                                        .setSeverity(OperationOutcome.IssueSeverity.FATAL)
+                                        .setDiagnostics("Encounter "+encounter.getId()+" has a circular diagnosis reference to Condition "+condition.getId())
+                                        .setDetails(
+                                                new CodeableConcept().setText("Circular Reference")
+                                        );
+                                setOperationOutcome(outcome);
+                                OperationOutcomeFactory.convertToException(outcome);
                             }
                         }
                     }
@@ -147,10 +241,143 @@ public class BundleCore {
         return found;
     }
 
+    /*
+        Resolves every entry of the bundle. Entries are planned into dependency levels first, the entries of a
+        level are independent of each other so are resolved concurrently. Entries in reference cycles are
+        resolved serially afterwards, which is where checkCircularReference reports them.
+     */
+    public void searchAddBundle() throws OperationOutcomeException {
+        BundleDependencyPlanner planner = new BundleDependencyPlanner(ctx, bundle, bundleIndex);
+
+        for (List<String> level : planner.getLevels()) {
+            prefetchIdentifierSearches(level);
+            if (!HapiProperties.getBundleResolverParallel() || level.size() == 1) {
+                for (String referenceId : level) {
+                    searchAddResource(referenceId);
+                }
+            } else {
+                // The pool is shared by every bundle, the permits keep this one to its share of the workers
+                Semaphore permits = new Semaphore(HapiProperties.getBundleResolverBundleThreads());
+                List<Future<Resource>> futures = new ArrayList<>();
+                Throwable failure = null;
+                for (String referenceId : level) {
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        failure = ex;
+                        break;
+                    }
+                    futures.add(BundleDependencyPlanner.getExecutor().submit(Tracer.propagate(() -> {
+                        try {
+                            return searchAddResource(referenceId);
+                        } finally {
+                            permits.release();
+                        }
+                    })));
+                }
+                // Wait for the whole level before reporting a failure so no resolution is still running afterwards
+                for (Future<Resource> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        if (failure == null) failure = ex.getCause();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        if (failure == null) failure = ex;
+                    }
+                }
+                if (failure instanceof OperationOutcomeException) throw (OperationOutcomeException) failure;
+                if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+                if (failure instanceof Error) throw (Error) failure;
+                if (failure != null) throw new InternalErrorException(failure.getMessage());
+            }
+            if (this.operationOutcome != null) return;
+        }
+        prefetchIdentifierSearches(planner.getUnordered());
+        for (String referenceId : planner.getUnordered()) {
+            searchAddResource(referenceId);
+        }
+    }
+
+    /*
+        Sends the identifier searches the searchAddXxx methods will make for the given entries to the EPR as FHIR
+        batch Bundles of GET entries, one round trip per epr.batch_lookup.max_entries searches rather than one each.
+
+        The searchset of each successful GET is held for queryResource. Anything not prefetched (failed entries, a
+        failed batch, identifiers added while resolving) falls back to an individual search.
+     */
+    public void prefetchIdentifierSearches(Collection<String> referenceIds) {
+        if (!HapiProperties.getEprBatchLookup() || referenceIds.isEmpty()) return;
+
+        List<String> keys = new ArrayList<>();
+        Set<String> requested = new HashSet<>();
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+
+        for (String referenceId : referenceIds) {
+            Resource resource = bundleIndex.getResource(referenceId);
+            if (resource == null) continue;
+
+            String resourceName = resource.getResourceType().name();
+            if (!IDENTIFIER_SEARCH_TYPES.contains(resourceName)) continue;
+            boolean cached = ReferenceDataCache.isCached(resourceName);
+
+            for (Identifier identifier : getIdentifiers(resource)) {
+                if (!identifier.hasSystem() || !identifier.hasValue()) continue;
+                if (cached && ReferenceDataCache.contains(resourceName, identifier)) continue;
+                String key = getIdentifierSearchKey(identifier, resourceName);
+                if (identifierSearches.containsKey(key) || !requested.add(key)) continue;
+                keys.add(key);
+                batch.addEntry().getRequest()
+                        .setMethod(Bundle.HTTPVerb.GET)
+                        .setUrl(resourceName + "?identifier=" + UrlUtil.escapeUrlParam(identifier.getSystem() + "|" + identifier.getValue()));
+            }
+        }
+
+        int maxEntries = HapiProperties.getEprBatchLookupMaxEntries();
+        for (int start = 0; start < keys.size(); start = start + maxEntries) {
+            int end = Math.min(start + maxEntries, keys.size());
+            Bundle chunk = batch;
+            if (start > 0 || end < keys.size()) {
+                chunk = new Bundle();
+                chunk.setType(Bundle.BundleType.BATCH);
+                chunk.setEntry(new ArrayList<>(batch.getEntry().subList(start, end)));
+            }
+            log.info("Batch search of {} identifiers", end - start);
+            Bundle response;
+            long started = System.nanoTime();
+            try {
+                response = clientEPR.transaction().withBundle(chunk).execute();
+            } catch (Exception ex) {
+                log.warn("Batch identifier search failed, searching individually ({})", ex.getMessage());
+                continue;
+            } finally {
+                MessagingMetrics.recordEpr(MessagingMetrics.EprOperation.BATCH_SEARCH, System.nanoTime() - started);
+            }
+            // Batch responses are in request order
+            for (int i = 0; i < response.getEntry().size() && start + i < end; i++) {
+                Bundle.BundleEntryComponent entry = response.getEntry().get(i);
+                if (entry.getResource() instanceof Bundle && entry.getResponse().getStatus() != null && entry.getResponse().getStatus().startsWith("200")) {
+                    identifierSearches.put(keys.get(start + i), (Bundle) entry.getResource());
+                }
+            }
+        }
+    }
+
+    private String getIdentifierSearchKey(Identifier identifier, String resourceName) {
+        return resourceName + "|" + identifier.getSystem() + "|" + identifier.getValue();
+    }
+
     public Resource searchAddResource(String referenceId) throws OperationOutcomeException {
-        if (this.template == null) {
-            this.template = context.createProducerTemplate();
+        if (referenceId == null) {
+            return null;
         }
+        // Concurrent entries can share a reference to a resource outside the bundle (e.g. ODS), resolve it once
+        return resolutions.resolve(referenceId, this::searchAddReference);
+    }
+
+    private Resource searchAddReference(String referenceId) throws OperationOutcomeException {
         try {
             log.debug("searchAddResource " + referenceId);
             if (referenceId == null) {
@@ -170,12 +397,8 @@ public class BundleCore {
             if (referenceId.contains("directory.spineservices.nhs.uk")) {
                 if (referenceId.contains("Organization")) {
                     String sdsCode = referenceId.replace("https://directory.spineservices.nhs.uk/STU3/Organization/","");
-                    Organization sdsOrganization = null;
-                    try {
-                        sdsOrganization = clientODS.read().resource(Organization.class).withId(sdsCode).execute();
-                    } catch(Exception ex) {
-                        throw new ResourceNotFoundException("https://directory.spineservices.nhs.uk/STU3/Organization/"+sdsCode);
-                    }
+                    // Cached and coalesced, throws ResourceNotFoundException if the code is unknown
+                    Organization sdsOrganization = OdsOrganizationResolver.getOrganization(sdsCode);
                     if (sdsOrganization != null) {
                         resource = searchAddOrganisation(referenceId, sdsOrganization);
                     }
@@ -192,113 +415,25 @@ public class BundleCore {
                 */
             } else {
 
-                for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                    Resource iResource = null;
-                    if ((entry.getFullUrl() != null && entry.getFullUrl().equals(referenceId)) || (iResource == null && entry.getResource() != null && entry.getResource().getId() != null && entry.getResource().getId().equals(referenceId))) {
-                        iResource = entry.getResource();
-
-                        if (iResource instanceof Patient) {
-                            resource = searchAddPatient(referenceId, (Patient) iResource);
-                        } else if (iResource instanceof Practitioner) {
-                            resource = searchAddPractitioner(referenceId, (Practitioner) iResource);
-                        } else if (iResource instanceof Encounter) {
-                            resource = searchAddEncounter(referenceId, (Encounter) iResource);
-                        } else if (iResource instanceof Organization) {
-                            resource = searchAddOrganisation(referenceId, (Organization) iResource);
-                        } else if (iResource instanceof Location) {
-                            resource = searchAddLocation(referenceId, (Location) iResource);
-                        } else if (iResource instanceof Observation) {
-                            resource = searchAddObservation(referenceId, (Observation) iResource);
-                        } else if (iResource instanceof AllergyIntolerance) {
-                            resource = searchAddAllergyIntolerance(referenceId, (AllergyIntolerance) iResource);
-                        } else if (iResource instanceof Condition) {
-                            resource = searchAddCondition(referenceId, (Condition) iResource);
-                        } else if (iResource instanceof Procedure) {
-                            resource = searchAddProcedure(referenceId, (Procedure) iResource);
-                      //  } else if (iResource instanceof Composition) {
-                      //      resource = searchAddComposition(referenceId, (Composition) iResource);
-                      //  } else if (iResource instanceof DiagnosticReport) {
-                      //      resource = searchAddDiagnosticReport(referenceId, (DiagnosticReport) iResource);
-                        } else if (iResource instanceof MedicationRequest) {
-                            resource = searchAddMedicationRequest(referenceId, (MedicationRequest) iResource);
-                        } else if (iResource instanceof MedicationStatement) {
-                            resource = searchAddMedicationStatement(referenceId, (MedicationStatement) iResource);
-                       } else if (iResource instanceof ListResource) {
-                           resource = searchAddList(referenceId, (ListResource) iResource);
-                        } else if (iResource instanceof Immunization) {
-                            resource = searchAddImmunization(referenceId, (Immunization) iResource);
-
-                        } else {
-
-                            switch (iResource.getClass().getSimpleName()) {
-                                case "Binary":
-                                    resource = searchAddBinary(referenceId, (Binary) iResource);
-                                    break;
-                                case "CarePlan":
-                                    resource = searchAddCarePlan(referenceId, (CarePlan) iResource);
-                                    break;
-                                case "CareTeam":
-                                    resource = searchAddCareTeam(referenceId, (CareTeam) iResource);
-                                    break;
-                                case "ClinicalImpression":
-                                    resource = searchAddClinicalImpression(referenceId, (ClinicalImpression) iResource);
-                                    break;
-                                case "Consent":
-                                    resource = searchAddConsent(referenceId, (Consent) iResource);
-                                    break;
-                                case "DocumentReference":
-                                    resource = searchAddDocumentReference(referenceId, (DocumentReference) iResource);
-                                    break;
-                                case "EpisodeOfCare":
-                                    resource = searchAddEpisodeOfCare(referenceId, (EpisodeOfCare) iResource);
-                                    break;
-                                case "Flag":
-                                    resource = searchAddFlag(referenceId, (Flag) iResource);
-                                    break;
-                                case "Goal":
-                                    resource = searchAddGoal(referenceId, (Goal) iResource);
-                                    break;
-                                case "HealthcareService":
-                                    resource = searchAddHealthcareService(referenceId, (HealthcareService) iResource);
-                                    break;
-                                case "MedicationAdministration":
-                                    resource = searchAddMedicationAdministration(referenceId, (MedicationAdministration) iResource);
-                                    break;
-                                case "MedicationDispense":
-                                    resource = searchAddMedicationDispense(referenceId, (MedicationDispense) iResource);
-                                    break;
-                                case "MedicationRequest":
-                                    resource = searchAddMedicationRequest(referenceId, (MedicationRequest) iResource);
-                                    break;
-                                case "QuestionnaireResponse":
-                                    resource = searchAddQuestionnaireResponse(referenceId, (QuestionnaireResponse) iResource);
-                                    break;
-                                case "Questionnaire":
-                                    resource = searchAddQuestionnaire(referenceId, (Questionnaire) iResource);
-                                    break;
-                                case "RelatedPerson":
-                                    resource = searchAddRelatedPerson(referenceId, (RelatedPerson) iResource);
-                                    break;
-                                case "ReferralRequest":
-                                    resource = searchAddReferralRequest(referenceId, (ReferralRequest) iResource);
-                                    break;
-                              /*  case "RiskAssessment":
-                                    resource = searchAddRiskAssessment(referenceId, (RiskAssessment) iResource);
-                                    break; */
-                                case "Medication":
-                                    resource = searchAddMedication(referenceId, (Medication) iResource);
-                                    break;
-                                default:
-                                    log.debug("Found in Bundle. Not processed (" + iResource.getClass());
-                            }
-
+                // Indexed on fullUrl, id, Type/id and urn:uuid forms
+                Resource iResource = bundleIndex.getResource(referenceId);
+                if (iResource != null) {
+                    ResourceHandler<Resource> handler = ResourceHandlerRegistry.getHandler(iResource.getResourceType());
+                    if (handler != null) {
+                        long start = System.nanoTime();
+                        try (Tracer.Span span = Tracer.startSpan("resolve", iResource.getResourceType().name())) {
+                            resource = handler.searchAdd(this, referenceId, iResource);
+                        } finally {
+                            MessagingMetrics.recordHandler(iResource.getResourceType(), System.nanoTime() - start);
                         }
+                    } else {
+                        log.debug("Found in Bundle. Not processed (" + iResource.getClass());
                     }
-
-                    //else if (iResource instanceof PractitionerRole) {
-                    //    resource = searchAddReferralRequest(referenceId, (ReferralRequest) iResource);
-                    //}
                 }
+
+                //else if (iResource instanceof PractitionerRole) {
+                //    resource = searchAddReferralRequest(referenceId, (ReferralRequest) iResource);
+                //}
             }
             if (resource == null) log.debug("Search Not Found " + referenceId);
             if (this.operationOutcome != null) return operationOutcome;
@@ -366,100 +501,78 @@ public class BundleCore {
 
     public IBaseResource queryResource(Identifier identifier, String resourceName) throws OperationOutcomeException {
 
+        Resource queued = transactionCreates.get(getIdentifierSearchKey(identifier, resourceName));
+        if (queued != null) return getSearchSet(queued);
+
+        // Most types aren't reference data, they skip the cache altogether
+        boolean cacheable = ReferenceDataCache.isCached(resourceName);
+        Resource cached = cacheable ? ReferenceDataCache.get(resourceName, identifier) : null;
+        if (cached != null) {
+            log.debug("Cached "+resourceName+"?identifier="+identifier.getSystem()+"|"+identifier.getValue());
+            return getSearchSet(cached);
+        }
+
+        // Use the batched result once only, a repeat search may follow a create of the same identifier
+        IBaseResource result = identifierSearches.remove(getIdentifierSearchKey(identifier, resourceName));
+        if (result != null) {
+            log.debug("Batched "+resourceName+"?identifier="+identifier.getSystem()+"|"+identifier.getValue());
+        } else {
+            result = searchResource(identifier, resourceName);
+        }
+
+        if (cacheable && result instanceof Bundle && ((Bundle) result).getEntry().size() > 0) {
+            ReferenceDataCache.put(resourceName, identifier, ((Bundle) result).getEntry().get(0).getResource());
+        }
+        return result;
+    }
+
+    private Bundle getSearchSet(Resource resource) {
+        Bundle searchSet = new Bundle();
+        searchSet.setType(Bundle.BundleType.SEARCHSET);
+        searchSet.addEntry().setFullUrl(resource.getId()).setResource(resource);
+        return searchSet;
+    }
+
+    private IBaseResource searchResource(Identifier identifier, String resourceName) throws OperationOutcomeException {
+
+        if (!IDENTIFIER_SEARCH_TYPES.contains(resourceName)) {
+            log.info("Not processed "+resourceName);
+            throw new InternalErrorException("Identifier search not supported for "+resourceName);
+        }
+
         log.info("Search "+resourceName+"?identifier="+identifier.getSystem()+"|"+identifier.getValue());
-        Class resourceType = null;
-
-        switch (resourceName) {
-            case "AllergyIntolerance":
-                return clientEPR.search().forResource(AllergyIntolerance.class).where(AllergyIntolerance.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Appointment":
-                return clientEPR.search().forResource(Appointment.class).where(Appointment.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "CarePlan":
-                return clientEPR.search().forResource(CarePlan.class).where(CarePlan.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "ClinicalImpression":
-                return clientEPR.search().forResource(ClinicalImpression.class).where(ClinicalImpression.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-
-                case "Condition":
-                return clientEPR.search().forResource(Condition.class).where(Condition.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Consent":
-                return clientEPR.search().forResource(Consent.class).where(Consent.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-
-            case "DocumentReference":
-                return clientEPR.search().forResource(DocumentReference.class).where(DocumentReference.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Encounter":
-                return clientEPR.search().forResource(Encounter.class).where(Encounter.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "EpisodeOfCare":
-                return clientEPR.search().forResource(EpisodeOfCare.class).where(EpisodeOfCare.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Flag":
-                return clientEPR.search().forResource(Flag.class).where(Flag.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "HealthcareService":
-                return clientEPR.search().forResource(HealthcareService.class).where(HealthcareService.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Immunization":
-                return clientEPR.search().forResource(Immunization.class).where(Immunization.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "List":
-                return clientEPR.search().forResource(ListResource.class).where(ListResource.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-
-            case "Location":
-                return clientEPR.search().forResource(Location.class).where(Location.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-          //  case "Medication":
-          //      return clientEPR.search().forResource(Medication.class).where(Medication.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "MedicationDispense":
-                return clientEPR.search().forResource(MedicationDispense.class).where(MedicationDispense.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "MedicationRequest":
-                return clientEPR.search().forResource(MedicationRequest.class).where(MedicationRequest.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "MedicationAdministration":
-                return clientEPR.search().forResource(MedicationAdministration.class).where(MedicationAdministration.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "MedicationStatement":
-                return clientEPR.search().forResource(MedicationStatement.class).where(MedicationStatement.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Observation":
-                return clientEPR.search().forResource(Observation.class).where(Observation.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Organization":
-                return clientEPR.search().forResource(Organization.class).where(Organization.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Practitioner":
-                return clientEPR.search().forResource(Practitioner.class).where(Practitioner.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Procedure":
-                return clientEPR.search().forResource(Procedure.class).where(Procedure.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "QuestionnaireResponse":
-                return clientEPR.search().forResource(QuestionnaireResponse.class).where(QuestionnaireResponse.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "ReferralRequest":
-                return clientEPR.search().forResource(ReferralRequest.class).where(ReferralRequest.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "RelatedPerson":
-                return clientEPR.search().forResource(RelatedPerson.class).where(RelatedPerson.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Schedule":
-                return clientEPR.search().forResource(Schedule.class).where(Schedule.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            case "Slot":
-                return clientEPR.search().forResource(Slot.class).where(Slot.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-
-            case "Patient":
-                return clientEPR.search().forResource(Patient.class).where(Patient.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-
-            case "Questionnaire":
-                return clientEPR.search().forResource(Questionnaire.class).where(Questionnaire.IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue())).returnBundle(Bundle.class).execute();
-            default:
-                log.info("Not processed "+resourceName);
-        }
-
-        log.info("Query Resource " + resourceType.getSimpleName());
-
-       /* Exchange exchange = template.send("direct:EPRServer", ExchangePattern.InOut, new Processor() {
-            public void process(Exchange exchange) throws Exception {
-                exchange.getIn().setHeader(Exchange.HTTP_QUERY, );
-                exchange.getIn().setHeader(Exchange.HTTP_METHOD, "GET");
-                exchange.getIn().setHeader(Exchange.HTTP_PATH, xhttpPath);
-            }
-        });
-        return getResource(exchange); */
-       return null;
+        long start = System.nanoTime();
+        try {
+            return clientEPR.search().forResource(ctx.getResourceDefinition(resourceName).getImplementingClass())
+                    .where(IDENTIFIER.exactly().systemAndCode(identifier.getSystem(),identifier.getValue()))
+                    .returnBundle(Bundle.class).execute();
+        } finally {
+            MessagingMetrics.recordEpr(MessagingMetrics.EprOperation.SEARCH, System.nanoTime() - start);
+        }
     }
 
     public IBaseResource createResource( IBaseResource resource) throws OperationOutcomeException
     {
+        if (transactionWrite) return addTransactionEntry((Resource) resource, Bundle.HTTPVerb.POST);
 
         log.info("Create {}", resource.getClass().getSimpleName());
         log.debug("OUT {}",ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(resource));
-        MethodOutcome outcome =  clientEPR.create().resource(resource).execute();
+        long start = System.nanoTime();
+        MethodOutcome outcome;
+        try {
+            outcome = clientEPR.create().resource(resource).execute();
+        } finally {
+            MessagingMetrics.recordEpr(MessagingMetrics.EprOperation.CREATE, System.nanoTime() - start);
+        }
 
-        if (outcome.getCreated() != null) return outcome.getResource();
+        if (outcome.getCreated() != null) {
+            if (outcome.getResource() instanceof Resource
+                    && ReferenceDataCache.isCached(((Resource) outcome.getResource()).getResourceType().name())) {
+                Resource created = (Resource) outcome.getResource();
+                ReferenceDataCache.putAll(created.getResourceType().name(), getIdentifiers(created), created);
+            }
+            return outcome.getResource();
+        }
 
         processOperationOutcome((OperationOutcome) outcome.getOperationOutcome());
 
@@ -469,17 +582,222 @@ public class BundleCore {
 
     public IBaseResource updateResource( IBaseResource resource) throws OperationOutcomeException
     {
+        if (transactionWrite) return addTransactionEntry((Resource) resource, Bundle.HTTPVerb.PUT);
+
         log.info("Update "+resource.getClass().getSimpleName()+"/"+resource.getIdElement().getIdPart());
-        MethodOutcome outcome =  clientEPR.update().resource(resource).execute();
+        long start = System.nanoTime();
+        MethodOutcome outcome;
+        try {
+            outcome = clientEPR.update().resource(resource).execute();
+        } finally {
+            MessagingMetrics.recordEpr(MessagingMetrics.EprOperation.UPDATE, System.nanoTime() - start);
+        }
 
         if (outcome.getOperationOutcome() != null) processOperationOutcome((OperationOutcome) outcome.getOperationOutcome());
 
         if (outcome.getResource() instanceof OperationOutcome) processOperationOutcome((OperationOutcome) outcome.getResource());
 
+        if (outcome.getResource() instanceof Resource
+                && ReferenceDataCache.isCached(((Resource) outcome.getResource()).getResourceType().name())) {
+            Resource updated = (Resource) outcome.getResource();
+            ReferenceDataCache.updated(updated.getResourceType().name(), getIdentifiers(updated), updated);
+        }
         return outcome.getResource();
 
     }
 
+    public boolean isTransactionWrite() {
+        return transactionWrite;
+    }
+
+    public void setTransactionWrite(boolean transactionWrite) {
+        this.transactionWrite = transactionWrite;
+    }
+
+    /*
+        Transaction write mode. Instead of a POST/PUT per entry the write is queued and a copy of the resource is
+        returned to the searchAddXxx method, new resources being given a urn:uuid id which the resources resolved
+        after them reference. commitTransaction then sends everything to the EPR as one transaction Bundle.
+     */
+    private Resource addTransactionEntry(Resource resource, Bundle.HTTPVerb method) {
+        String resourceName = resource.getResourceType().name();
+        Resource pending = resource.copy();
+
+        synchronized (transactionEntries) {
+            String id = resource.getId();
+            if (id != null && id.startsWith("urn:uuid:")) {
+                // Update of a resource created earlier in this transaction, replace the queued create
+                for (Bundle.BundleEntryComponent entry : transactionEntries) {
+                    if (id.equals(entry.getFullUrl())) {
+                        log.info("Transaction {} {}", entry.getRequest().getMethod(), resourceName);
+                        entry.setResource(pending);
+                        registerTransactionCreate(pending, resourceName);
+                        return pending;
+                    }
+                }
+            }
+
+            Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+            if (method == Bundle.HTTPVerb.POST) {
+                String fullUrl = "urn:uuid:" + UUID.randomUUID().toString();
+                pending.setId(fullUrl);
+                entry.setFullUrl(fullUrl);
+                entry.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl(resourceName);
+                // Conditional create so a replayed message does not duplicate the resource
+                Identifier identifier = getFirstIdentifier(pending);
+                if (identifier != null) {
+                    entry.getRequest().setIfNoneExist("identifier=" + UrlUtil.escapeUrlParam(identifier.getSystem() + "|" + identifier.getValue()));
+                }
+                registerTransactionCreate(pending, resourceName);
+            } else {
+                IdType idType = pending.getIdElement().withServerBase(eprBase, resourceName).toVersionless();
+                pending.setIdElement(idType);
+                entry.setFullUrl(idType.getValue());
+                entry.getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl(resourceName + "/" + idType.getIdPart());
+            }
+            log.info("Transaction {} {}", method, resourceName);
+            entry.setResource(pending);
+            transactionEntries.add(entry);
+        }
+        return pending;
+    }
+
+    // Queued creates are not on the EPR yet so queryResource answers identifier searches for them
+    private void registerTransactionCreate(Resource resource, String resourceName) {
+        for (Identifier identifier : getIdentifiers(resource)) {
+            if (identifier.hasSystem() && identifier.hasValue()) {
+                transactionCreates.put(getIdentifierSearchKey(identifier, resourceName), resource);
+            }
+        }
+    }
+
+    private Identifier getFirstIdentifier(Resource resource) {
+        for (Identifier identifier : getIdentifiers(resource)) {
+            if (identifier.hasSystem() && identifier.hasValue()) return identifier;
+        }
+        return null;
+    }
+
+    private List<Identifier> getIdentifiers(Resource resource) {
+        List<Identifier> identifiers = new ArrayList<>();
+        BaseRuntimeChildDefinition identifierChild = ctx.getResourceDefinition(resource).getChildByName("identifier");
+        if (identifierChild != null) {
+            for (IBase value : identifierChild.getAccessor().getValues(resource)) {
+                identifiers.add((Identifier) value);
+            }
+        }
+        return identifiers;
+    }
+
+    /*
+        Sends the queued writes as a single FHIR transaction and replaces the urn:uuid ids and references of the
+        resolved resources with the ids the EPR assigned. Servers that do not support transactions (405/501) are
+        written to one entry at a time, in the order the entries were queued (dependencies first).
+     */
+    public void commitTransaction() throws OperationOutcomeException {
+        if (!transactionWrite || this.operationOutcome != null) return;
+
+        List<Bundle.BundleEntryComponent> entries;
+        synchronized (transactionEntries) {
+            entries = new ArrayList<>(transactionEntries);
+            transactionEntries.clear();
+        }
+        if (entries.isEmpty()) return;
+
+        Bundle transaction = new Bundle();
+        transaction.setType(Bundle.BundleType.TRANSACTION);
+        transaction.setEntry(entries);
+
+        log.info("Transaction of {} entries", entries.size());
+        Bundle response = null;
+        long start = System.nanoTime();
+        try {
+            response = clientEPR.transaction().withBundle(transaction).execute();
+        } catch (NotImplementedOperationException | MethodNotAllowedException ex) {
+            log.warn("EPR does not support transactions, writing resources individually ({})", ex.getMessage());
+        } catch (BaseServerResponseException ex) {
+            if (ex.getOperationOutcome() instanceof OperationOutcome) processOperationOutcome((OperationOutcome) ex.getOperationOutcome());
+            throw ex;
+        } finally {
+            MessagingMetrics.recordEpr(MessagingMetrics.EprOperation.TRANSACTION, System.nanoTime() - start);
+        }
+        if (response == null) {
+            writeEntries(entries);
+            return;
+        }
+
+        Map<String, String> ids = new HashMap<>();
+        for (int i = 0; i < entries.size() && i < response.getEntry().size(); i++) {
+            Bundle.BundleEntryComponent entry = entries.get(i);
+            String location = response.getEntry().get(i).getResponse().getLocation();
+            if (location == null) continue;
+            IdType idType = new IdType(location);
+            if (!idType.hasBaseUrl()) {
+                idType = idType.withServerBase(eprBase, entry.getResource().getResourceType().name());
+            }
+            ids.put(entry.getFullUrl(), idType.getValue());
+        }
+        applyTransactionIds(ids);
+        transactionCreates.clear();
+
+        for (Bundle.BundleEntryComponent entry : entries) {
+            Resource resource = entry.getResource();
+            if (resource.getId() == null || resource.getId().startsWith("urn:")) continue;
+            if (!ReferenceDataCache.isCached(resource.getResourceType().name())) continue;
+            if (entry.getRequest().getMethod() == Bundle.HTTPVerb.POST) {
+                ReferenceDataCache.putAll(resource.getResourceType().name(), getIdentifiers(resource), resource);
+            } else {
+                ReferenceDataCache.updated(resource.getResourceType().name(), getIdentifiers(resource), resource);
+            }
+        }
+    }
+
+    private void writeEntries(List<Bundle.BundleEntryComponent> entries) throws OperationOutcomeException {
+        Map<String, String> ids = new HashMap<>();
+        boolean transaction = this.transactionWrite;
+        this.transactionWrite = false;
+        try {
+            for (Bundle.BundleEntryComponent entry : entries) {
+                Resource resource = entry.getResource();
+                rewriteIds(resource, ids);
+                IBaseResource written;
+                if (entry.getRequest().getMethod() == Bundle.HTTPVerb.POST) {
+                    Resource create = resource.copy();
+                    create.setId((String) null);
+                    written = createResource(create);
+                } else {
+                    written = updateResource(resource);
+                }
+                if (written instanceof Resource) {
+                    ids.put(entry.getFullUrl(), ((Resource) written).getId());
+                }
+            }
+        } finally {
+            this.transactionWrite = transaction;
+        }
+        applyTransactionIds(ids);
+        transactionCreates.clear();
+    }
+
+    private void applyTransactionIds(Map<String, String> ids) {
+        Set<Resource> resources = Collections.newSetFromMap(new IdentityHashMap<>());
+        resources.addAll(resourceMap.values());
+        for (Resource resource : resources) {
+            rewriteIds(resource, ids);
+        }
+    }
+
+    private void rewriteIds(Resource resource, Map<String, String> ids) {
+        if (resource.getId() != null && ids.containsKey(resource.getId())) {
+            resource.setId(ids.get(resource.getId()));
+        }
+        for (Reference reference : ctx.newTerser().getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+            if (reference.getReference() != null && ids.containsKey(reference.getReference())) {
+                reference.setReference(ids.get(reference.getReference()));
+            }
+        }
+    }
+
 /*
     public IBaseResource sendResource( String xhttpMethod, String xhttpPath, Object httpBody) throws OperationOutcomeException
     {
@@ -2724,18 +3042,47 @@ public class BundleCore {
 
     public Binary searchAddBinary(String binaryId, Binary binary) throws OperationOutcomeException {
 
-        ProducerTemplate template = context.createProducerTemplate();
-        String jsonResource = ctx.newXmlParser().encodeResourceToString(binary);
+        // Content already in EDMS is referenced rather than uploaded again
+        String digest = BinaryContentIndex.isEnabled() ? BinarySpool.getDigest(binary) : null;
+        if (digest != null) {
+            String existingId = BinaryContentIndex.get(digest);
+            if (existingId != null) {
+                log.info("Binary content already in EDMS, Binary resource Id = " + existingId);
+                binary.setId(existingId);
+                return binary;
+            }
+        }
+
+        // Large content was spooled to disk by BundleMessage. An http EDMS route is given the raw content to stream,
+        // the camel-fhir one takes the resource as text so the content is read back for it.
+        InputStream spooled = null;
         try {
+            if (BinarySpool.isSpooled(binary)) {
+                if (BinarySpool.isStreamable()) {
+                    spooled = BinarySpool.open(binary);
+                } else {
+                    BinarySpool.load(binary);
+                }
+            }
+            InputStream content = spooled;
+            ProducerTemplate template = context.createProducerTemplate();
             Exchange edmsExchange = template.send("direct:EDMSServer", ExchangePattern.InOut, new Processor() {
                 public void process(Exchange exchange) throws Exception {
                     exchange.getIn().setHeader(Exchange.HTTP_QUERY, "");
                     exchange.getIn().setHeader(Exchange.HTTP_METHOD, "POST");
                     exchange.getIn().setHeader(Exchange.HTTP_PATH, "Binary");
-                    exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/fhir+xml");
-                    exchange.getIn().setBody(jsonResource);
+                    if (content != null) {
+                        exchange.getIn().setHeader(Exchange.CONTENT_TYPE,
+                                binary.hasContentType() ? binary.getContentType() : "application/octet-stream");
+                        exchange.getIn().setBody(content);
+                    } else {
+                        exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/fhir+xml");
+                        exchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(binary));
+                    }
                 }
             });
+            // Spooled content stays out of the bundle model
+            if (BinarySpool.isSpooled(binary)) binary.setContent(null);
 
             if (edmsExchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE) != null && (edmsExchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE).toString().equals("201"))) {
                 // Now update the document links
@@ -2744,10 +3091,13 @@ public class BundleCore {
                 log.info("Binary resource Id = " + resourceId);
 
                 binary.setId(resourceId);
+                if (digest != null) BinaryContentIndex.put(digest, resourceId);
             }
         } catch(Exception ex) {
             log.error("JSON Parse failed " + ex.getMessage());
             throw new InternalErrorException(ex.getMessage());
+        } finally {
+            IOUtils.closeQuietly(spooled);
         }
         return binary;
     }
@@ -0,0 +1,151 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.Attachment;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Builds the reference graph of a bundle before any EPR calls are made.
+
+    Each bundle entry is a node (keyed on the id BundleMessage resolves it by) and each in-bundle reference is an edge
+    to the entry it points at, looked up through the BundleIndex. The nodes are then sorted into levels (Kahn) so that every entry in a level only depends
+    on entries in earlier levels, i.e. the entries of one level can be resolved concurrently.
+
+    Entries that take part in a reference cycle (e.g. Encounter.diagnosis <-> Condition.context) never reach a level.
+    These are returned by getUnordered() and are resolved serially, so BundleCore.checkCircularReference still reports them.
+ */
+public class BundleDependencyPlanner {
+
+    private static final Logger log = LoggerFactory.getLogger(BundleDependencyPlanner.class);
+
+    private static ThreadPoolExecutor executor;
+
+    static {
+        // The pool is resized on reload, its queue keeps the capacity it was created with
+        HapiProperties.addChangeListener(changed -> {
+            if (changed.contains("bundle.resolver.threads")) resize();
+        });
+    }
+
+    private final List<List<String>> levels = new ArrayList<>();
+
+    private final List<String> unordered = new ArrayList<>();
+
+    public BundleDependencyPlanner(FhirContext ctx, Bundle bundle, BundleIndex bundleIndex) {
+
+        Map<String, Resource> nodes = new LinkedHashMap<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource == null || resource.getId() == null) continue;
+            nodes.putIfAbsent(resource.getId(), resource);
+        }
+
+        Map<String, Set<String>> dependants = new HashMap<>();
+        Map<String, Integer> inDegree = new LinkedHashMap<>();
+        for (Map.Entry<String, Resource> node : nodes.entrySet()) {
+            Set<String> dependencies = new LinkedHashSet<>();
+            for (IBase element : ResourceHandlerRegistry.getReferenceElements(ctx, node.getValue())) {
+                if (element instanceof Reference) {
+                    addDependency(dependencies, bundleIndex, nodes, node.getKey(), ((Reference) element).getReference());
+                } else {
+                    // DocumentReference content points at bundled Binary entries by attachment url
+                    addDependency(dependencies, bundleIndex, nodes, node.getKey(), ((Attachment) element).getUrl());
+                }
+            }
+            inDegree.put(node.getKey(), dependencies.size());
+            for (String dependency : dependencies) {
+                dependants.computeIfAbsent(dependency, k -> new LinkedHashSet<>()).add(node.getKey());
+            }
+        }
+
+        List<String> current = new ArrayList<>();
+        for (Map.Entry<String, Integer> node : inDegree.entrySet()) {
+            if (node.getValue() == 0) current.add(node.getKey());
+        }
+        while (!current.isEmpty()) {
+            levels.add(current);
+            List<String> next = new ArrayList<>();
+            for (String nodeId : current) {
+                inDegree.remove(nodeId);
+                for (String dependant : dependants.getOrDefault(nodeId, new LinkedHashSet<>())) {
+                    int remaining = inDegree.get(dependant) - 1;
+                    inDegree.put(dependant, remaining);
+                    if (remaining == 0) next.add(dependant);
+                }
+            }
+            current = next;
+        }
+        // Whatever is left is part of, or depends on, a cycle
+        unordered.addAll(inDegree.keySet());
+
+        log.debug("Bundle plan: {} entries, {} levels, {} unordered", nodes.size(), levels.size(), unordered.size());
+    }
+
+    private void addDependency(Set<String> dependencies, BundleIndex bundleIndex, Map<String, Resource> nodes, String nodeId, String reference) {
+        // Resolved the same way BundleCore resolves the reference (fullUrl, id, Type/id or urn:uuid)
+        Resource target = bundleIndex.getResource(reference);
+        if (target == null || nodes.get(target.getId()) != target) return;
+        if (!target.getId().equals(nodeId)) {
+            dependencies.add(target.getId());
+        }
+    }
+
+    public List<List<String>> getLevels() {
+        return levels;
+    }
+
+    public List<String> getUnordered() {
+        return unordered;
+    }
+
+    // Shared by all bundles, each is held to bundle.resolver.bundle_threads of it by BundleCore.searchAddBundle
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = HapiProperties.getBundleResolverThreads();
+            AtomicInteger count = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, "bundle-resolver-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            // Bounded queue, when full the submitting thread resolves the entry itself
+            executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(threads * 16), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    private static synchronized void resize() {
+        if (executor == null) return;
+        int threads = HapiProperties.getBundleResolverThreads();
+        // The core size may never exceed the maximum, so the order depends on the direction
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        log.info("Bundle resolver pool resized to {} threads", threads);
+    }
+}
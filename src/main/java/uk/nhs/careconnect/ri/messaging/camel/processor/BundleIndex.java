@@ -0,0 +1,66 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Condition;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Lookup of bundle entries by the forms a reference to them can take, built once per bundle so resolving a
+    reference does not scan the bundle.
+
+    Each entry is indexed on its fullUrl, resource id, Type/id and urn:uuid:id. Where two entries share a form the
+    first entry in the bundle wins. Conditions are also indexed on their context reference for checkCircularReference.
+    The index reflects the bundle as it was when built, later changes to resource ids do not affect it.
+ */
+public class BundleIndex {
+
+    private final Map<String, Resource> resources;
+
+    private final Map<String, List<Condition>> conditionsByContext;
+
+    public BundleIndex(Bundle bundle) {
+        Map<String, Resource> resources = new HashMap<>();
+        Map<String, List<Condition>> conditionsByContext = new HashMap<>();
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource == null) continue;
+
+            if (entry.getFullUrl() != null) resources.putIfAbsent(entry.getFullUrl(), resource);
+            if (resource.getId() != null) {
+                resources.putIfAbsent(resource.getId(), resource);
+                String idPart = resource.getIdElement().getIdPart();
+                if (idPart != null && !resource.getId().startsWith("urn:")) {
+                    resources.putIfAbsent(resource.getResourceType().name() + "/" + idPart, resource);
+                    resources.putIfAbsent("urn:uuid:" + idPart, resource);
+                }
+            }
+
+            if (resource instanceof Condition) {
+                Condition condition = (Condition) resource;
+                if (condition.hasContext() && condition.getContext().getReference() != null) {
+                    conditionsByContext.computeIfAbsent(condition.getContext().getReference(), key -> new ArrayList<>()).add(condition);
+                }
+            }
+        }
+
+        this.resources = Collections.unmodifiableMap(resources);
+        this.conditionsByContext = Collections.unmodifiableMap(conditionsByContext);
+    }
+
+    public Resource getResource(String reference) {
+        if (reference == null) return null;
+        return resources.get(reference);
+    }
+
+    public List<Condition> getConditionsByContext(String reference) {
+        if (reference == null) return Collections.emptyList();
+        return conditionsByContext.getOrDefault(reference, Collections.emptyList());
+    }
+}
@@ -13,11 +13,12 @@ import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.BinarySpool;
+import uk.nhs.careconnect.ri.messaging.support.MessagingMetrics;
 import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeException;
 import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeFactory;
 
-import java.util.HashMap;
-import java.util.Map;
 
 public class BundleMessage implements Processor {
 
@@ -28,7 +29,7 @@ public class BundleMessage implements Processor {
         this.edmsBase = edmsBase;
     }
 
-    CamelContext context;
+    // Shared by concurrent exchanges (HTTP threads and queue workers), per bundle state is kept in locals and BundleCore
 
     FhirContext ctx;
 
@@ -36,30 +37,36 @@ public class BundleMessage implements Processor {
 
     private String edmsBase;
 
-    private Map<String, Resource> resourceMap;
-
-    private Bundle bundle;
+    // Route level override of epr.write_mode, either resource or transaction
+    public static final String EPR_WRITE_MODE_HEADER = "EprWriteMode";
 
     private static final Logger log = LoggerFactory.getLogger(BundleMessage.class);
 
     @Override
     public void process(Exchange exchange) throws Exception {
-        // Bundles should be in XML format. Previous step should enforce this.
+        // The providers pass the parsed Bundle, bundles replayed from the journal arrive as XML.
 
         log.info("Starting Message Bundle Processing");
-        this.context = exchange.getContext();
-
-        resourceMap = new HashMap<>();
+        CamelContext context = exchange.getContext();
 
-        String bundleString = exchange.getIn().getBody().toString();
+        Object body = exchange.getIn().getBody();
 
-        IParser parser = ctx.newXmlParser();
         IBaseResource iresource = null;
-        try {
-            iresource = parser.parseResource(bundleString);
-        } catch (Exception ex) {
-            log.info("Failed to parse: "+bundleString);
-            throw ex;
+        Bundle bundle = null;
+        if (body instanceof IBaseResource) {
+            iresource = (IBaseResource) body;
+        } else {
+            String bundleString = body.toString();
+            IParser parser = ctx.newXmlParser();
+            long start = System.nanoTime();
+            try {
+                iresource = parser.parseResource(bundleString);
+            } catch (Exception ex) {
+                log.info("Failed to parse: "+bundleString);
+                throw ex;
+            } finally {
+                MessagingMetrics.recordParse(System.nanoTime() - start);
+            }
         }
         if (iresource instanceof Bundle) {
             bundle = (Bundle) iresource;
@@ -68,12 +75,25 @@ public class BundleMessage implements Processor {
             log.error("Server Returned: Status Code = " +responseCode + " "+ ctx.newJsonParser().encodeResourceToString(iresource));
             OperationOutcomeFactory.convertToException((OperationOutcome) iresource);
         } else {
-            throw new UnprocessableEntityException(bundleString);
+            throw new UnprocessableEntityException("Expected a Bundle, received " + iresource.getClass().getSimpleName());
 
         }
+        // Every entry needs an id before the bundle is planned
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() != null && entry.getResource().getId() == null) {
+                entry.getResource().setId(java.util.UUID.randomUUID().toString());
+            }
+        }
+        // Large Binary content goes to disk for the rest of processing, see BinarySpool
+        BinarySpool.spool(bundle);
         BundleCore bundleCore = new BundleCore(ctx,context,bundle, hapiBase, edmsBase);
+        bundleCore.setTransactionWrite(isTransactionWrite(exchange, bundle));
         try {
 
+            // Resolve the bundle by dependency level, the loop below then picks up the resolved resources
+            bundleCore.searchAddBundle();
+            // In transaction write mode nothing has been written to the EPR until this point
+            bundleCore.commitTransaction();
 
             // Process resources
             for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
@@ -101,14 +121,14 @@ public class BundleMessage implements Processor {
                 }
 
             }
-            exchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(bundleCore.getUpdatedBundle()));
-            //log.info(ctx.newXmlParser().encodeResourceToString(bundleCore.getBundle()));
+            // Left as a resource, it is only encoded if it is persisted or leaves the server
+            exchange.getIn().setBody(bundleCore.getUpdatedBundle());
 
         }
         catch (OperationOutcomeException ex) {
             log.error("BundleMessage Exception OperationExchange");
             exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE,"400");
-            exchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(ex.getOutcome()));
+            exchange.getIn().setBody(ex.getOutcome());
         }
         catch (Exception ex) {
             // A number of the HAPI related function will return exceptions.
@@ -138,13 +158,27 @@ public class BundleMessage implements Processor {
 
             setExchange(exchange,operationOutcome);
         }
+        finally {
+            BinarySpool.release(bundle);
+        }
         log.debug("Finishing Message Bundle Processing");
 
     }
 
+    private boolean isTransactionWrite(Exchange exchange, Bundle bundle) {
+        String writeMode = exchange.getIn().getHeader(EPR_WRITE_MODE_HEADER, String.class);
+        if (writeMode == null) {
+            for (String profile : HapiProperties.getEprWriteModeTransactionProfiles().split(",")) {
+                if (!profile.trim().isEmpty() && bundle.getMeta().hasProfile(profile.trim())) return true;
+            }
+            writeMode = HapiProperties.getEprWriteMode();
+        }
+        return "transaction".equalsIgnoreCase(writeMode);
+    }
+
     private void setExchange(Exchange exchange, OperationOutcome operationOutcome) {
         exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE,"400");
-        exchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(operationOutcome));
+        exchange.getIn().setBody(operationOutcome);
     }
 
 
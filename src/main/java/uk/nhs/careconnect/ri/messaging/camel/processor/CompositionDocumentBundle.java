@@ -12,8 +12,6 @@ import org.slf4j.LoggerFactory;
 import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeException;
 import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeFactory;
 
-import java.util.Map;
-
 public class CompositionDocumentBundle implements AggregationStrategy {
 
 
@@ -30,15 +28,9 @@ public class CompositionDocumentBundle implements AggregationStrategy {
         this.edmsBase = edmsBase;
     }
 
-    CamelContext context;
+    // Shared by concurrent exchanges, per document state is kept in locals
 
     FhirContext ctx;
-    private Map<String, Resource> resourceMap;
-
-    private Bundle bundle;
-
-    private Patient patient;
-    private Composition composition;
 
     private static final Logger log = LoggerFactory.getLogger(CompositionDocumentBundle.class);
 
@@ -49,16 +41,22 @@ public class CompositionDocumentBundle implements AggregationStrategy {
     @Override
     public Exchange aggregate(Exchange originalExchange, Exchange edmsExchange) {
 
-        this.context = originalExchange.getContext();
+        CamelContext context = originalExchange.getContext();
 
         if (edmsExchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE) != null) {
 
 
             if (edmsExchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE).toString().equals("201")) {
-                IBaseResource resource = ctx.newXmlParser().parseResource((String) originalExchange.getIn().getBody());
+                // The provider passes the parsed Bundle, anything else is XML
+                Object body = originalExchange.getIn().getBody();
+                IBaseResource resource = (body instanceof IBaseResource)
+                        ? (IBaseResource) body
+                        : ctx.newXmlParser().parseResource(originalExchange.getIn().getBody(String.class));
 
                 if (resource instanceof Bundle) {
-                    bundle = (Bundle) resource;
+                    Bundle bundle = (Bundle) resource;
+                    Patient patient = null;
+                    Composition composition = null;
 
                     for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
 
@@ -85,60 +83,10 @@ public class CompositionDocumentBundle implements AggregationStrategy {
                 Use location from edms post
 */
                             if (composition != null) {
-                                DocumentReference documentReference = new DocumentReference();
-                                documentReference.setId(java.util.UUID.randomUUID().toString());
-                                if (bundle.getIdentifier() != null) {
-                                    documentReference.addIdentifier().setSystem(bundle.getIdentifier().getSystem())
-                                            .setValue(bundle.getIdentifier().getValue());
-                                }
-                                // This should be resolved
-                                documentReference.setSubject(new Reference(patient.getId()));
-                                if (composition.hasType()) {
-                                    documentReference.setType(composition.getType());
-                                }
-                                if (composition.hasClass_()) {
-                                    documentReference.setClass_(composition.getClass_());
-                                }
-                                if (composition.hasStatus()) {
-                                    // TODO convert from Composition status
-                                    documentReference.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
-                                }
-                                if (composition.hasAuthor()) {
-                                    for (Reference reference : composition.getAuthor()) {
-                                        documentReference.addAuthor(reference);
-                                    }
-                                }
-                                if (composition.hasCustodian()) {
-                                    documentReference.setCustodian(composition.getCustodian());
-                                }
-                                for (Extension extension : composition.getExtension()) {
-                                    if (extension.getUrl().equals("https://fhir.nhs.uk/STU3/StructureDefinition/Extension-ITK-CareSettingType-1")) {
-                                        documentReference.getContext().setPracticeSetting((CodeableConcept) extension.getValue());
-                                    }
-                                }
-                                if (composition.hasEncounter()) {
-                                    documentReference.getContext().setEncounter(composition.getEncounter());
-                                }
-                                if (composition.hasDate()) {
-                                    documentReference.setCreated(composition.getDate());
-                                }
-                                DocumentReference.DocumentReferenceContentComponent content = documentReference.addContent();
-                                //log.info("### Content-Location = " + edmsExchange.getIn().getHeader("Content-Location"));
-                                //log.info("### Location = " + edmsExchange.getIn().getHeader("Location"));
-                                if (edmsExchange.getIn().getHeader("Location") != null) {
-
-                                    String[] path = edmsExchange.getIn().getHeader("Location").toString().split("/");
-                                    String resourceId = path[path.length - 1];
-                                    log.trace("Binary resource Id = " + resourceId);
-                                    content.getAttachment().setContentType("application/fhir+xml").setUrl(edmsBase + "/Binary/" + resourceId);
-                                } else {
-                                    if (edmsExchange.getIn().getHeader("Content-Location") != null) {
-
-                                        String[] path = edmsExchange.getIn().getHeader("Content-Location").toString().split("/");
-                                        String resourceId = path[path.length - 1];
-                                        log.trace("Binary resource Id = " + resourceId);
-                                        content.getAttachment().setContentType("application/fhir+xml").setUrl(edmsBase + "/Binary/" + resourceId);
-                                    }
+                                DocumentReference documentReference = createDocumentReference(bundle, patient, composition);
+                                String binaryId = getBinaryId(edmsExchange);
+                                if (binaryId != null) {
+                                    setAttachment(documentReference, binaryId);
                                 }
 
                                 // Add the new DocumentReference to the bundle
@@ -151,13 +99,11 @@ public class CompositionDocumentBundle implements AggregationStrategy {
                             }
 
                         }
-                        edmsExchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(bundleCore.getUpdatedBundle()));
-
-                        //log.info(ctx.newXmlParser().encodeResourceToString(bundleCore.getBundle()));
+                        edmsExchange.getIn().setBody(bundleCore.getUpdatedBundle());
                     }
                     catch (OperationOutcomeException ex) {
                         edmsExchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE,"400");
-                        edmsExchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(ex.getOutcome()));
+                        edmsExchange.getIn().setBody(ex.getOutcome());
                     }
                     catch (Exception ex) {
                         // A number of the HAPI related function will return exceptions.
@@ -171,7 +117,7 @@ public class CompositionDocumentBundle implements AggregationStrategy {
                                 .setCode(issueType)
                                 .setDiagnostics(ex.getMessage());
                         edmsExchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE,"400");
-                        edmsExchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(operationOutcome));
+                        edmsExchange.getIn().setBody(operationOutcome);
                     }
 
                 }
@@ -180,4 +126,67 @@ public class CompositionDocumentBundle implements AggregationStrategy {
 
         return edmsExchange;
     }
+
+    /*
+        DocumentReference indexing the document in the EPR, the attachment is added by setAttachment once the EDMS
+        Binary id is known. Also used by DocumentFanOutProcessor.
+     */
+    public DocumentReference createDocumentReference(Bundle bundle, Patient patient, Composition composition) {
+        DocumentReference documentReference = new DocumentReference();
+        documentReference.setId(java.util.UUID.randomUUID().toString());
+        if (bundle.getIdentifier() != null) {
+            documentReference.addIdentifier().setSystem(bundle.getIdentifier().getSystem())
+                    .setValue(bundle.getIdentifier().getValue());
+        }
+        // This should be resolved
+        documentReference.setSubject(new Reference(patient.getId()));
+        if (composition.hasType()) {
+            documentReference.setType(composition.getType());
+        }
+        if (composition.hasClass_()) {
+            documentReference.setClass_(composition.getClass_());
+        }
+        if (composition.hasStatus()) {
+            // TODO convert from Composition status
+            documentReference.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
+        }
+        if (composition.hasAuthor()) {
+            for (Reference reference : composition.getAuthor()) {
+                documentReference.addAuthor(reference);
+            }
+        }
+        if (composition.hasCustodian()) {
+            documentReference.setCustodian(composition.getCustodian());
+        }
+        for (Extension extension : composition.getExtension()) {
+            if (extension.getUrl().equals("https://fhir.nhs.uk/STU3/StructureDefinition/Extension-ITK-CareSettingType-1")) {
+                documentReference.getContext().setPracticeSetting((CodeableConcept) extension.getValue());
+            }
+        }
+        if (composition.hasEncounter()) {
+            documentReference.getContext().setEncounter(composition.getEncounter());
+        }
+        if (composition.hasDate()) {
+            documentReference.setCreated(composition.getDate());
+        }
+        documentReference.addContent();
+        return documentReference;
+    }
+
+    public void setAttachment(DocumentReference documentReference, String binaryId) {
+        documentReference.getContentFirstRep().getAttachment().setContentType("application/fhir+xml").setUrl(edmsBase + "/Binary/" + binaryId);
+    }
+
+    /*
+        Id of the Binary created by the EDMS post, from Location or failing that Content-Location.
+     */
+    public static String getBinaryId(Exchange edmsExchange) {
+        Object location = edmsExchange.getIn().getHeader("Location");
+        if (location == null) location = edmsExchange.getIn().getHeader("Content-Location");
+        if (location == null) return null;
+        String[] path = location.toString().split("/");
+        String resourceId = path[path.length - 1];
+        log.trace("Binary resource Id = " + resourceId);
+        return resourceId;
+    }
 }
@@ -0,0 +1,213 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.util.ExchangeHelper;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Composition;
+import org.hl7.fhir.dstu3.model.DocumentReference;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.support.BinaryContentIndex;
+import uk.nhs.careconnect.ri.messaging.support.FhirClientRegistry;
+import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeException;
+import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/*
+    Parallel mode of the Bundle Document route (document.mode=parallel).
+
+    The sequential route posts the document to EDMS and only then loads the bundle into the EPR. Here the EDMS post
+    runs on the template's executor while the calling thread loads a copy of the bundle into the EPR (the
+    direct:FHIRBundleMessage route), so a document takes as long as the slower of the two. The DocumentReference
+    needs the EDMS Binary id, so it is created last, once both have completed. Its subject, authors and custodian are
+    the resources the EPR load resolved, only the DocumentReference itself goes to the EPR then.
+
+    The document is encoded to XML before the EDMS post is started, the bundle is not shared between the two.
+
+    If the EPR load or the DocumentReference fails after EDMS has stored the document, the Binary is deleted from EDMS
+    again (unless it was an existing Binary found by EdmsDedupProcessor) and the EPR response is returned. If EDMS
+    fails the EDMS response is returned as in sequential mode, the EPR load is left in place: EPR resources are
+    matched on identifier, so a resubmission updates rather than duplicates them.
+ */
+public class DocumentFanOutProcessor implements Processor {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentFanOutProcessor.class);
+
+    private final FhirContext ctx;
+
+    private final ProducerTemplate template;
+
+    private final CompositionDocumentBundle compositionDocumentBundle;
+
+    private final String hapiBase;
+
+    private final String edmsBase;
+
+    public DocumentFanOutProcessor(FhirContext ctx, ProducerTemplate template, CompositionDocumentBundle compositionDocumentBundle,
+                                   String hapiBase, String edmsBase) {
+        this.ctx = ctx;
+        this.template = template;
+        this.compositionDocumentBundle = compositionDocumentBundle;
+        this.hapiBase = hapiBase;
+        this.edmsBase = edmsBase;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Object body = exchange.getIn().getBody();
+        IBaseResource resource = (body instanceof IBaseResource)
+                ? (IBaseResource) body
+                : ctx.newXmlParser().parseResource(exchange.getIn().getBody(String.class));
+        if (!(resource instanceof Bundle)) {
+            // Nothing to fan out, EDMS will reject it as it would in sequential mode
+            Exchange edmsExchange = template.send("direct:EDMSServer", exchange.copy());
+            ExchangeHelper.copyResultsPreservePattern(exchange, compositionDocumentBundle.aggregate(exchange, edmsExchange));
+            return;
+        }
+        Bundle bundle = (Bundle) resource;
+        // Ids given here are kept by the EPR copy, so its entries can be matched up with these afterwards
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() != null && entry.getResource().getId() == null) {
+                entry.getResource().setId(java.util.UUID.randomUUID().toString());
+            }
+        }
+
+        Exchange edmsRequest = exchange.copy();
+        // Encoded before the send, so the EDMS thread never sees the bundle. Large documents are spooled, not held as text
+        ResourceBodyEncoder.encodeBody(ctx, edmsRequest, bundle);
+        Future<Exchange> edmsFuture = template.asyncSend("direct:EDMSServer", edmsRequest);
+
+        // BundleMessage updates the resources it resolves, so the EPR load works on its own copy
+        Exchange eprExchange = exchange.copy();
+        eprExchange.getIn().setBody(bundle.copy());
+        eprExchange = template.send("direct:FHIRBundleMessage", eprExchange);
+
+        Exchange edmsExchange;
+        try {
+            edmsExchange = edmsFuture.get();
+        } catch (ExecutionException ex) {
+            edmsExchange = edmsRequest;
+            edmsExchange.setException(ex.getCause());
+        }
+
+        if (edmsExchange.getException() != null) {
+            log.warn("EDMS post failed, EPR load of the document left in place");
+            exchange.setException(edmsExchange.getException());
+            return;
+        }
+        // As the sequential route, 200 (e.g. an existing Binary) or 201
+        Object edmsResponseCode = edmsExchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE);
+        if (edmsResponseCode == null
+                || !(edmsResponseCode.toString().equals("200") || edmsResponseCode.toString().equals("201"))) {
+            log.warn("EDMS returned {}, EPR load of the document left in place", edmsResponseCode);
+            ExchangeHelper.copyResultsPreservePattern(exchange, edmsExchange);
+            return;
+        }
+        String binaryId = CompositionDocumentBundle.getBinaryId(edmsExchange);
+
+        if (eprExchange.getException() != null || !(eprExchange.getIn().getBody() instanceof Bundle)) {
+            compensate(edmsExchange, binaryId);
+            ExchangeHelper.copyResultsPreservePattern(exchange, eprExchange);
+            return;
+        }
+
+        try {
+            Bundle updatedBundle = (Bundle) eprExchange.getIn().getBody();
+            DocumentReference documentReference = createDocumentReference(exchange, bundle, updatedBundle, binaryId);
+            if (documentReference != null) {
+                updatedBundle.addEntry().setResource(documentReference);
+                log.trace("Document Reference Location " + documentReference.getId());
+                eprExchange.getIn().setHeader("Location", documentReference.getId());
+                eprExchange.getIn().setHeader("Content-Location", documentReference.getId());
+            }
+            eprExchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "201");
+            eprExchange.getIn().setBody(updatedBundle);
+        } catch (Exception ex) {
+            compensate(edmsExchange, binaryId);
+            OperationOutcome operationOutcome;
+            if (ex instanceof OperationOutcomeException) {
+                operationOutcome = ((OperationOutcomeException) ex).getOutcome();
+            } else {
+                log.error("Error creating DocumentReference = " + ex.getMessage() + " " + ex.getClass().getSimpleName());
+                operationOutcome = new OperationOutcome();
+                operationOutcome.addIssue()
+                        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                        .setCode(OperationOutcomeFactory.getIssueType(ex))
+                        .setDiagnostics(ex.getMessage());
+            }
+            eprExchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "400");
+            eprExchange.getIn().setBody(operationOutcome);
+        }
+        ExchangeHelper.copyResultsPreservePattern(exchange, eprExchange);
+    }
+
+    /*
+        Creates the DocumentReference for the Composition with the attachment pointing at the EDMS Binary. The EPR
+        load returns its entries in the order of the bundle, each entry it resolved stands in for the bundle's entry.
+        Anything it didn't resolve is resolved here.
+     */
+    private DocumentReference createDocumentReference(Exchange exchange, Bundle bundle, Bundle updatedBundle,
+                                                      String binaryId) throws OperationOutcomeException {
+        Patient patient = null;
+        Composition composition = null;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Patient) {
+                patient = (Patient) entry.getResource();
+            }
+            if (entry.getResource() instanceof Composition) {
+                composition = (Composition) entry.getResource();
+            }
+        }
+        if (patient == null || composition == null) return null;
+        int entries = bundle.getEntry().size();
+
+        DocumentReference documentReference = compositionDocumentBundle.createDocumentReference(bundle, patient, composition);
+        if (binaryId != null) {
+            compositionDocumentBundle.setAttachment(documentReference, binaryId);
+        }
+        // Added before the BundleCore is built so the bundle index includes it
+        bundle.addEntry().setResource(documentReference);
+        BundleCore bundleCore = new BundleCore(ctx, exchange.getContext(), bundle, hapiBase, edmsBase);
+        if (updatedBundle.getEntry().size() == entries) {
+            for (int i = 0; i < entries; i++) {
+                Resource original = bundle.getEntry().get(i).getResource();
+                Resource resolved = updatedBundle.getEntry().get(i).getResource();
+                // An entry the EPR load couldn't resolve comes back as it was sent
+                if (original == null || resolved == null || original.getId().equals(resolved.getId())) continue;
+                bundleCore.addResolved(original.getId(), resolved);
+                bundleCore.addResolved(bundle.getEntry().get(i).getFullUrl(), resolved);
+            }
+        }
+        Resource created = bundleCore.searchAddResource(documentReference.getId());
+        if (created instanceof OperationOutcome) {
+            throw new OperationOutcomeException((OperationOutcome) created);
+        }
+        return created instanceof DocumentReference ? (DocumentReference) created : documentReference;
+    }
+
+    private void compensate(Exchange edmsExchange, String binaryId) {
+        if (binaryId == null) return;
+        if (Boolean.TRUE.equals(edmsExchange.getIn().getHeader(EdmsDedupProcessor.DUPLICATE_HEADER, Boolean.class))) {
+            // An existing Binary, other documents may refer to it
+            return;
+        }
+        try {
+            FhirClientRegistry.getClient(edmsBase).delete().resourceById("Binary", binaryId).execute();
+            if (BinaryContentIndex.isEnabled()) {
+                BinaryContentIndex.remove(binaryId);
+            }
+            log.info("EPR processing failed, Binary/{} removed from EDMS", binaryId);
+        } catch (Exception ex) {
+            log.error("EPR processing failed and Binary/{} could not be removed from EDMS ({})", binaryId, ex.getMessage());
+        }
+    }
+}
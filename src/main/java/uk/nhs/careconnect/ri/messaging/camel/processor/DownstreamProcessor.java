@@ -0,0 +1,96 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.spi.Synchronization;
+import org.apache.camel.util.ExchangeHelper;
+import uk.nhs.careconnect.ri.messaging.support.Downstream;
+import uk.nhs.careconnect.ri.messaging.support.DownstreamUnavailableException;
+import uk.nhs.careconnect.ri.messaging.support.Tracer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+    Sends the exchange to a Camel endpoint (camel.route.edms, camel.route.tkw) through the named Downstream.
+
+    These endpoints have their own HTTP clients, so the bulkhead and breaker are applied here rather than in
+    DownstreamExecChain. The call is made on the template's executor and waited for up to the downstream's timeout,
+    after which the route carries on with a DownstreamUnavailableException. The late call keeps its bulkhead slot
+    until it finishes. Nothing is retried, the EDMS and TKW calls are posts.
+ */
+public class DownstreamProcessor implements Processor {
+
+    private final String name;
+
+    private final ProducerTemplate template;
+
+    private final String endpointUri;
+
+    public DownstreamProcessor(String name, ProducerTemplate template, String endpointUri) {
+        this.name = name;
+        this.template = template;
+        this.endpointUri = endpointUri;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        try (Tracer.Span span = Tracer.startSpan("call", name)) {
+            try {
+                call(exchange);
+            } catch (Exception ex) {
+                span.setError(ex.getMessage());
+                throw ex;
+            }
+        }
+    }
+
+    private void call(Exchange exchange) throws Exception {
+        if (!Downstream.isEnabled()) {
+            template.send(endpointUri, exchange);
+            return;
+        }
+        Downstream downstream = Downstream.get(name);
+        Downstream.Permit permit = downstream.acquire();
+
+        CompletableFuture<Exchange> done = new CompletableFuture<>();
+        // Sent as a copy, the original isn't touched by a call that outlives the timeout
+        template.asyncCallback(endpointUri, exchange.copy(), new Synchronization() {
+            @Override
+            public void onComplete(Exchange result) {
+                permit.release(!isServerError(result));
+                done.complete(result);
+            }
+
+            @Override
+            public void onFailure(Exchange result) {
+                permit.release(false);
+                done.complete(result);
+            }
+        });
+
+        int timeout = downstream.getTimeoutMillis();
+        Exchange result;
+        try {
+            result = done.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            permit.timedOut();
+            throw new DownstreamUnavailableException(name + " did not respond within " + timeout + "ms");
+        }
+        ExchangeHelper.copyResultsPreservePattern(exchange, result);
+    }
+
+    private static boolean isServerError(Exchange result) {
+        Object responseCode = result.hasOut()
+                ? result.getOut().getHeader(Exchange.HTTP_RESPONSE_CODE)
+                : result.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE);
+        if (responseCode == null) return false;
+        try {
+            return Integer.parseInt(responseCode.toString()) >= 500;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+}
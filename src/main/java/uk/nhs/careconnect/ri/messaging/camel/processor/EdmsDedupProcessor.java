@@ -0,0 +1,79 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.support.BinaryContentIndex;
+import uk.nhs.careconnect.ri.messaging.support.BinarySpool;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/*
+    Content deduplication for FHIR documents posted to EDMS (the direct:EDMSServer route), see BinaryContentIndex.
+
+    LOOKUP runs before the post. If the document is already held it sets DUPLICATE_HEADER and answers as EDMS would,
+    201 with the Location of the existing Binary, so the route can skip the post. RECORD runs after a post and adds a
+    201 response to the index. Binary posts from BundleCore are deduplicated in searchAddBinary and not here.
+ */
+public class EdmsDedupProcessor implements Processor {
+
+    private static final Logger log = LoggerFactory.getLogger(EdmsDedupProcessor.class);
+
+    public static final String DUPLICATE_HEADER = "EdmsDuplicate";
+
+    private static final String DIGEST_PROPERTY = "EdmsDigest";
+
+    private static final String DOCUMENT_CONTENT_TYPE = "application/fhir+xml";
+
+    public enum Mode { LOOKUP, RECORD }
+
+    private final Mode mode;
+
+    public EdmsDedupProcessor(Mode mode) {
+        this.mode = mode;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        if (!BinaryContentIndex.isEnabled()) return;
+
+        if (mode == Mode.LOOKUP) {
+            exchange.getIn().setHeader(DUPLICATE_HEADER, false);
+            if (!"POST".equals(exchange.getIn().getHeader(Exchange.HTTP_METHOD, String.class))
+                    || !"Bundle".equals(exchange.getIn().getHeader(Exchange.HTTP_PATH, String.class))) return;
+            String digest;
+            Path spooled = exchange.getProperty(BinarySpool.SPOOL_FILE_PROPERTY, Path.class);
+            if (spooled != null) {
+                // Read from the file, the body is the stream EDMS is sent
+                digest = BinaryContentIndex.getDigest(spooled, DOCUMENT_CONTENT_TYPE);
+            } else {
+                String body = exchange.getIn().getBody(String.class);
+                if (body == null) return;
+                digest = BinaryContentIndex.getDigest(body.getBytes(StandardCharsets.UTF_8), DOCUMENT_CONTENT_TYPE);
+            }
+            String binaryId = BinaryContentIndex.get(digest);
+            if (binaryId == null) {
+                exchange.setProperty(DIGEST_PROPERTY, digest);
+                return;
+            }
+            log.info("Document already in EDMS as Binary/{}, not posted", binaryId);
+            exchange.getIn().setHeader(DUPLICATE_HEADER, true);
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 201);
+            exchange.getIn().setHeader("Location", "Binary/" + binaryId);
+            // A spooled body is closed, and its file removed, when the exchange completes
+            exchange.getIn().setBody("");
+            return;
+        }
+
+        String digest = exchange.getProperty(DIGEST_PROPERTY, String.class);
+        Object location = exchange.getIn().getHeader("Location");
+        Object responseCode = exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE);
+        if (digest != null && location != null && responseCode != null && responseCode.toString().equals("201")) {
+            String[] path = location.toString().split("/");
+            BinaryContentIndex.put(digest, path[path.length - 1]);
+        }
+        exchange.removeProperty(DIGEST_PROPERTY);
+    }
+}
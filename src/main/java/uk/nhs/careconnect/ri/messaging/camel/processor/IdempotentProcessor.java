@@ -0,0 +1,214 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.IdempotencyStore;
+import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+    Answers an exact resubmission of a bundle (same Bundle.identifier and content) from IdempotencyStore instead of
+    passing it to the delegate. A resubmission arriving while the original is still being processed waits for it, up to
+    idempotency.wait_seconds, and is then answered 409 with a Retry-After. If the original doesn't reach a final response
+    one of the waiters takes its place and is processed, the others wait on that one.
+
+    Only final responses are stored, the updated bundle or an OperationOutcome describing a problem with the bundle.
+    5xx responses, exchange exceptions and outcomes with a transient issue type are not, so a retry is processed again.
+    Bundles without an identifier go straight to the delegate.
+ */
+public class IdempotentProcessor implements Processor {
+
+    private static final Logger log = LoggerFactory.getLogger(IdempotentProcessor.class);
+
+    private static final Set<OperationOutcome.IssueType> TRANSIENT_ISSUES = EnumSet.copyOf(Arrays.asList(
+            OperationOutcome.IssueType.EXCEPTION,
+            OperationOutcome.IssueType.TRANSIENT,
+            OperationOutcome.IssueType.TIMEOUT,
+            OperationOutcome.IssueType.THROTTLED,
+            OperationOutcome.IssueType.LOCKERROR,
+            OperationOutcome.IssueType.NOSTORE,
+            OperationOutcome.IssueType.INCOMPLETE));
+
+    private static final String CHECKED_PROPERTY = "IdempotencyChecked";
+
+    private final FhirContext ctx;
+
+    private final String route;
+
+    private final Processor delegate;
+
+    // Key -> bundle being processed, completed with true once its response is in the store
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    public IdempotentProcessor(FhirContext ctx, String route, Processor delegate) {
+        this.ctx = ctx;
+        this.route = route;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        String key = IdempotencyStore.isEnabled() ? getKey(exchange) : null;
+        if (key == null) {
+            delegate.process(exchange);
+            return;
+        }
+
+        IdempotencyStore.StoredResponse response = IdempotencyStore.get(key);
+        if (response != null) {
+            log.info("Duplicate bundle on {}, returning stored response", route);
+            setResponse(exchange, response);
+            return;
+        }
+
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        long waitSeconds = HapiProperties.getIdempotencyWaitSeconds();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
+        CompletableFuture<Boolean> original;
+        while ((original = inFlight.putIfAbsent(key, future)) != null) {
+            log.info("Duplicate bundle on {} in flight, waiting for the original", route);
+            boolean originalStored;
+            try {
+                originalStored = original.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                log.info("Duplicate bundle on {} still in flight after {}s", route, waitSeconds);
+                setInFlightResponse(exchange, waitSeconds);
+                return;
+            }
+            response = originalStored ? IdempotencyStore.get(key) : null;
+            if (response != null) {
+                setResponse(exchange, response);
+                return;
+            }
+            // The original didn't reach a final response. The first waiter back to putIfAbsent is processed in its
+            // place, the rest wait on that one.
+        }
+
+        boolean stored = false;
+        try {
+            // The original may have completed between the first lookup and putIfAbsent
+            response = IdempotencyStore.get(key);
+            if (response != null) {
+                setResponse(exchange, response);
+                stored = true;
+                return;
+            }
+            delegate.process(exchange);
+            stored = storeFinalResponse(key, exchange);
+        } finally {
+            inFlight.remove(key, future);
+            future.complete(stored);
+        }
+    }
+
+    private String getKey(Exchange exchange) {
+        // A bundle nested in one already checked (the EPR copy of a document) is covered by the outer check
+        if (exchange.getProperty(CHECKED_PROPERTY, false, Boolean.class)) return null;
+        exchange.setProperty(CHECKED_PROPERTY, true);
+
+        Object body = exchange.getIn().getBody();
+        IBaseResource resource;
+        if (body instanceof IBaseResource) {
+            resource = (IBaseResource) body;
+        } else {
+            String text = exchange.getIn().getBody(String.class);
+            if (text == null) return null;
+            try {
+                resource = text.trim().startsWith("{")
+                        ? ctx.newJsonParser().parseResource(text)
+                        : ctx.newXmlParser().parseResource(text);
+            } catch (Exception ex) {
+                // Left for the delegate to report
+                return null;
+            }
+        }
+        if (!(resource instanceof Bundle)) return null;
+        Bundle bundle = (Bundle) resource;
+        if (!bundle.hasIdentifier() || !bundle.getIdentifier().hasValue()) return null;
+
+        // Providers hash the request as received, otherwise hash the encoded bundle
+        String contentHash = exchange.getIn().getHeader(IdempotencyStore.CONTENT_HASH_HEADER, String.class);
+        if (contentHash == null) {
+            if (body instanceof IBaseResource) {
+                // Encoded straight into the digest
+                Hasher hasher = IdempotencyStore.newContentHasher();
+                ResourceBodyEncoder.encodeTo(ctx, resource, Funnels.asOutputStream(hasher));
+                contentHash = hasher.hash().toString();
+            } else {
+                contentHash = IdempotencyStore.getContentHash(exchange.getIn().getBody(String.class).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return IdempotencyStore.getKey(route, bundle.getIdentifier().getSystem(), bundle.getIdentifier().getValue(), contentHash);
+    }
+
+    private boolean storeFinalResponse(String key, Exchange exchange) {
+        if (exchange.getException() != null) return false;
+        Object responseCode = exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE);
+        int code = (responseCode != null) ? Integer.parseInt(responseCode.toString()) : 0;
+        if (code >= 500) return false;
+
+        Object body = exchange.getIn().getBody();
+        if (!(body instanceof IBaseResource)) {
+            body = exchange.getIn().getBody(String.class);
+        }
+        if (code >= 400) {
+            try {
+                IBaseResource resource = (body instanceof IBaseResource) ? (IBaseResource) body : ctx.newXmlParser().parseResource((String) body);
+                if (!(resource instanceof OperationOutcome)) return false;
+                for (OperationOutcome.OperationOutcomeIssueComponent issue : ((OperationOutcome) resource).getIssue()) {
+                    if (TRANSIENT_ISSUES.contains(issue.getCode())) return false;
+                }
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+        String location = exchange.getIn().getHeader("Location", "", String.class);
+        if (body instanceof IBaseResource) {
+            IBaseResource resource = (IBaseResource) body;
+            return IdempotencyStore.put(key, code, location, writer -> ctx.newXmlParser().encodeResourceToWriter(resource, writer));
+        }
+        String text = (String) body;
+        return IdempotencyStore.put(key, code, location, writer -> writer.write(text != null ? text : ""));
+    }
+
+    private void setInFlightResponse(Exchange exchange, long retryAfter) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.CONFLICT)
+                .setDiagnostics("A bundle with the same identifier and content is still being processed, please retry later");
+        outcome.setUserData(OperationOutcomeFactory.RETRY_AFTER, retryAfter);
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "409");
+        exchange.getIn().setHeader("Retry-After", Long.toString(retryAfter));
+        exchange.getIn().setBody(outcome);
+    }
+
+    private void setResponse(Exchange exchange, IdempotencyStore.StoredResponse response) {
+        if (response.getResponseCode() != 0) {
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, Integer.toString(response.getResponseCode()));
+        }
+        if (!response.getLocation().isEmpty()) {
+            exchange.getIn().setHeader("Location", response.getLocation());
+            exchange.getIn().setHeader("Content-Location", response.getLocation());
+        }
+        exchange.getIn().setBody(response.getBody());
+    }
+}
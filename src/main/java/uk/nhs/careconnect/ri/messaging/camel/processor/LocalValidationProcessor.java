@@ -0,0 +1,95 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.dstu3.model.BaseResource;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import uk.nhs.careconnect.ri.messaging.r3.providers.ValidationFactory;
+
+/*
+    $validate in process, with the shared validator of ValidationFactory (validation.backend local or
+    local-then-remote). The body becomes the OperationOutcome, as the TKW server would have returned it.
+
+    Bodies are normally the parsed resource, text bodies are parsed first. Anything the local validator can't take
+    (not a DSTU3 resource, the validator failing to load, the delete mode, a profile for a Bundle) is thrown, for the
+    route to fall back to the TKW server. A requested profile is validated by adding it to the meta of a copy of the
+    resource, as the instance validator checks the profiles a resource claims. With fallback an outcome with a fatal
+    issue, which is how the validator reports its own failures, is thrown too.
+ */
+public class LocalValidationProcessor implements Processor {
+
+    // $validate profile and mode, set by ResourceTestProvider
+    public static final String PROFILE_HEADER = "ValidationProfile";
+
+    public static final String MODE_HEADER = "ValidationMode";
+
+    private final FhirContext ctx;
+
+    private final boolean fallback;
+
+    public LocalValidationProcessor(FhirContext ctx) {
+        this(ctx, false);
+    }
+
+    public LocalValidationProcessor(FhirContext ctx, boolean fallback) {
+        this.ctx = ctx;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Object body = exchange.getIn().getBody();
+        IBaseResource resource;
+        if (body instanceof IBaseResource) {
+            resource = (IBaseResource) body;
+        } else {
+            String text = exchange.getIn().getBody(String.class);
+            if (text == null) throw new UnprocessableEntityException("No resource to validate");
+            IParser parser = text.trim().startsWith("<") ? ctx.newXmlParser() : ctx.newJsonParser();
+            resource = parser.parseResource(text);
+        }
+        if (!(resource instanceof BaseResource)) {
+            throw new UnprocessableEntityException("Local validation supports STU3 resources only, not "
+                    + resource.getClass().getName());
+        }
+
+        if ("delete".equalsIgnoreCase(exchange.getIn().getHeader(MODE_HEADER, String.class))) {
+            throw new UnprocessableEntityException("Local validation doesn't support the delete mode");
+        }
+        String profile = exchange.getIn().getHeader(PROFILE_HEADER, String.class);
+        if (profile != null && !profile.isEmpty()) {
+            if (resource instanceof Bundle) {
+                throw new UnprocessableEntityException("Local validation of a Bundle against a profile isn't supported");
+            }
+            Resource profiled = ((Resource) resource).copy();
+            if (!profiled.getMeta().hasProfile(profile)) profiled.getMeta().addProfile(profile);
+            resource = profiled;
+        }
+
+        // With fallback only a fatal issue matters, so the validation stops at the first one
+        OperationOutcome outcome = validate((BaseResource) resource, fallback ? OperationOutcome.IssueSeverity.FATAL : null);
+        if (fallback) {
+            for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+                if (issue.getSeverity() == OperationOutcome.IssueSeverity.FATAL) {
+                    throw new UnprocessableEntityException("Local validation failed (" + issue.getDiagnostics() + ")");
+                }
+            }
+        }
+
+        exchange.getIn().setBody(outcome);
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+        exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/fhir+xml");
+    }
+
+    @VisibleForTesting
+    OperationOutcome validate(BaseResource resource, OperationOutcome.IssueSeverity failOn) {
+        return ValidationFactory.validateResource(resource, failOn);
+    }
+}
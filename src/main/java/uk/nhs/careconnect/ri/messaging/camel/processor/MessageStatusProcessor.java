@@ -0,0 +1,89 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.support.MessageJournal;
+import uk.nhs.careconnect.ri.messaging.support.MessageStatusStore;
+import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeFactory;
+import uk.nhs.careconnect.ri.messaging.support.ProviderResponseLibrary;
+
+/*
+    Records the progress of a queued bundle in MessageStatusStore, keyed on the MessageStatusId header.
+    PROCESSING is set before the bundle goes through BundleMessage, COMPLETE afterwards with its response code, the
+    Location of the resulting resource and an OperationOutcome (the one returned, or an informational one on success).
+    On COMPLETE the bundle's MessageJournal entry is committed, so it isn't replayed on restart.
+ */
+public class MessageStatusProcessor implements Processor {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageStatusProcessor.class);
+
+    private final FhirContext ctx;
+
+    private final MessageStatusStore.State state;
+
+    public MessageStatusProcessor(FhirContext ctx, MessageStatusStore.State state) {
+        this.ctx = ctx;
+        this.state = state;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        String statusId = exchange.getIn().getHeader(MessageStatusStore.STATUS_HEADER, String.class);
+        if (statusId == null) return;
+
+        if (state == MessageStatusStore.State.PROCESSING) {
+            MessageStatusStore.processing(statusId);
+            return;
+        }
+
+        Long sequence = exchange.getIn().getHeader(MessageJournal.SEQUENCE_HEADER, Long.class);
+        if (sequence != null) {
+            MessageJournal.commit(sequence);
+        }
+
+        Exception exception = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        if (exception != null) {
+            log.error("Queued message {} failed {}", statusId, exception.getMessage());
+            OperationOutcome outcome = OperationOutcomeFactory.createOperationOutcome(exception.getMessage());
+            MessageStatusStore.complete(statusId, 500, null, outcome);
+            return;
+        }
+
+        Object responseCode = exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE);
+        int code = (responseCode != null) ? Integer.parseInt(responseCode.toString()) : 200;
+        log.info("Queued message {} complete, response code {}", statusId, code);
+
+        Object body = exchange.getIn().getBody();
+        IBaseResource resource = null;
+        try {
+            if (body != null) resource = ProviderResponseLibrary.processMessageBody(ctx, null, body);
+        } catch (Exception ex) {
+            log.warn("Queued message {} response unreadable {}", statusId, ex.getMessage());
+        }
+        if (resource instanceof OperationOutcome) {
+            MessageStatusStore.complete(statusId, code, null, (OperationOutcome) resource);
+            return;
+        }
+        // A parsed response id has no resource type
+        String location = (resource != null && resource.getIdElement().hasIdPart())
+                ? ctx.getResourceDefinition(resource).getName() + "/" + resource.getIdElement().getIdPart() : null;
+        MessageStatusStore.complete(statusId, code, location, getProcessedOutcome(location));
+    }
+
+    private OperationOutcome getProcessedOutcome(String location) {
+        String message = (location != null) ? "Message processed, result at " + location : "Message processed";
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(message)
+                .setDetails(new CodeableConcept().setText(message));
+        return outcome;
+    }
+}
@@ -0,0 +1,92 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import org.hl7.fhir.dstu3.model.Resource;
+import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/*
+    Resolutions of the references of one bundle in progress, so concurrent entries sharing a reference (e.g. an ODS
+    Organization) resolve it once. The first caller resolves it, later callers wait for its result.
+
+    No lock is held while a reference is resolved. A caller that would wait on a resolution which is itself (through
+    other threads) waiting on this thread is in a reference cycle the planner did not see. It resolves the reference
+    inline instead, as a serial resolution of the cycle would.
+ */
+class ReferenceResolutions {
+
+    @FunctionalInterface
+    interface Resolver {
+        Resource resolve(String referenceId) throws OperationOutcomeException;
+    }
+
+    private static class Resolution {
+        private final Thread owner = Thread.currentThread();
+        private final CompletableFuture<Resource> future = new CompletableFuture<>();
+    }
+
+    private final Map<String, Resolution> inProgress = new ConcurrentHashMap<>();
+
+    // Thread -> resolution it is waiting on, guarded by itself
+    private final Map<Thread, Resolution> waiting = new HashMap<>();
+
+    Resource resolve(String referenceId, Resolver resolver) throws OperationOutcomeException {
+        Resolution resolution = new Resolution();
+        Resolution existing = inProgress.putIfAbsent(referenceId, resolution);
+        if (existing == null) {
+            try {
+                Resource resource = resolver.resolve(referenceId);
+                resolution.future.complete(resource);
+                return resource;
+            } catch (OperationOutcomeException | RuntimeException | Error ex) {
+                resolution.future.completeExceptionally(ex);
+                throw ex;
+            } finally {
+                inProgress.remove(referenceId, resolution);
+            }
+        }
+
+        Thread current = Thread.currentThread();
+        boolean cycle;
+        // Only held to check and register the wait, never while resolving
+        synchronized (waiting) {
+            cycle = isWaitingOn(existing.owner, current);
+            if (!cycle) waiting.put(current, existing);
+        }
+        if (cycle) {
+            return resolver.resolve(referenceId);
+        }
+        try {
+            return existing.future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof OperationOutcomeException) throw (OperationOutcomeException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new InternalErrorException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Interrupted resolving " + referenceId);
+        } finally {
+            synchronized (waiting) {
+                waiting.remove(current);
+            }
+        }
+    }
+
+    // Caller holds waiting. True if owner is, or waits (directly or through other threads) on, thread.
+    private boolean isWaitingOn(Thread owner, Thread thread) {
+        Thread next = owner;
+        for (int i = 0; next != null && i <= waiting.size(); i++) {
+            if (next == thread) return true;
+            Resolution resolution = waiting.get(next);
+            next = (resolution != null) ? resolution.owner : null;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,199 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import uk.nhs.careconnect.ri.messaging.support.BinarySpool;
+import uk.nhs.careconnect.ri.messaging.support.MessagingMetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+    Bundles travel between the providers and the processors as parsed resources. This encodes the body to XML in front
+    of a real wire hop (the EDMS and TKW endpoints), bodies that are already text or streams are left alone.
+
+    Encoding goes through a per thread buffer that is reused from message to message, rather than the StringWriter
+    encodeResourceToString grows for each one. Buffers grown past MAX_RETAINED_CHARS by a very large bundle are dropped.
+    The endpoints take the body as text, so encodeToString still makes one String from the buffer. Callers after bytes
+    or with a stream to write to use encodeToUtf8 or encodeTo, which don't.
+
+    In front of EDMS a document bundle with large Binary content is encoded to a file instead, see BinarySpool.
+ */
+public class ResourceBodyEncoder implements Processor {
+
+    private static final int INITIAL_CHARS = 64 * 1024;
+
+    private static final int MAX_RETAINED_CHARS = 4 * 1024 * 1024;
+
+    private static final ThreadLocal<BufferWriter> buffers = ThreadLocal.withInitial(BufferWriter::new);
+
+    private final FhirContext ctx;
+
+    private final boolean spool;
+
+    public ResourceBodyEncoder(FhirContext ctx) {
+        this(ctx, false);
+    }
+
+    public ResourceBodyEncoder(FhirContext ctx, boolean spool) {
+        this.ctx = ctx;
+        this.spool = spool;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Object body = exchange.getIn().getBody();
+        if (body instanceof IBaseResource) {
+            if (spool) {
+                encodeBody(ctx, exchange, (IBaseResource) body);
+            } else {
+                exchange.getIn().setBody(encodeToString(ctx, (IBaseResource) body));
+                exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/fhir+xml");
+            }
+        }
+    }
+
+    /*
+        Sets the body to the resource as XML for the EDMS route, spooled to a file when BinarySpool can stream it.
+     */
+    public static void encodeBody(FhirContext ctx, Exchange exchange, IBaseResource resource) throws IOException {
+        if (resource instanceof Bundle && BinarySpool.isStreamable() && BinarySpool.hasLargeContent((Bundle) resource)) {
+            long start = System.nanoTime();
+            try {
+                BinarySpool.spoolResource(ctx, resource, exchange);
+            } finally {
+                MessagingMetrics.recordEncode(System.nanoTime() - start);
+            }
+        } else {
+            exchange.getIn().setBody(encodeToString(ctx, resource));
+        }
+        exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/fhir+xml");
+    }
+
+    /*
+        The body as XML, for the places that need to persist it (journal and status store).
+     */
+    public static String getBodyAsString(FhirContext ctx, Message message) {
+        Object body = message.getBody();
+        if (body instanceof IBaseResource) {
+            return encodeToString(ctx, (IBaseResource) body);
+        }
+        return message.getBody(String.class);
+    }
+
+    public static String encodeToString(FhirContext ctx, IBaseResource resource) {
+        BufferWriter writer = encode(ctx, resource);
+        String text = writer.toString();
+        if (writer.buffer.length > MAX_RETAINED_CHARS) {
+            buffers.remove();
+        }
+        return text;
+    }
+
+    /*
+        The resource as UTF-8, converted from the buffer without a String in between.
+     */
+    public static byte[] encodeToUtf8(FhirContext ctx, IBaseResource resource) {
+        BufferWriter writer = encode(ctx, resource);
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(writer.buffer, 0, writer.count));
+        if (writer.buffer.length > MAX_RETAINED_CHARS) {
+            buffers.remove();
+        }
+        if (bytes.hasArray() && bytes.arrayOffset() == 0 && bytes.remaining() == bytes.array().length) {
+            return bytes.array();
+        }
+        byte[] content = new byte[bytes.remaining()];
+        bytes.get(content);
+        return content;
+    }
+
+    /*
+        Encodes the resource as UTF-8 straight to the stream, which is flushed but left open.
+     */
+    public static void encodeTo(FhirContext ctx, IBaseResource resource, OutputStream out) {
+        long start = System.nanoTime();
+        try {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            ctx.newXmlParser().encodeResourceToWriter(resource, writer);
+            writer.flush();
+        } catch (IOException ex) {
+            throw new InternalErrorException("Unable to encode " + resource.getClass().getSimpleName() + " (" + ex.getMessage() + ")");
+        } finally {
+            MessagingMetrics.recordEncode(System.nanoTime() - start);
+        }
+    }
+
+    private static BufferWriter encode(FhirContext ctx, IBaseResource resource) {
+        BufferWriter writer = buffers.get();
+        writer.reset();
+        long start = System.nanoTime();
+        try {
+            ctx.newXmlParser().encodeResourceToWriter(resource, writer);
+        } catch (IOException ex) {
+            // Not expected writing to memory
+            throw new InternalErrorException("Unable to encode " + resource.getClass().getSimpleName() + " (" + ex.getMessage() + ")");
+        } finally {
+            MessagingMetrics.recordEncode(System.nanoTime() - start);
+        }
+        return writer;
+    }
+
+    private static class BufferWriter extends Writer {
+        private char[] buffer = new char[INITIAL_CHARS];
+        private int count;
+
+        private void reset() {
+            count = 0;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            ensureCapacity(count + length);
+            System.arraycopy(chars, offset, buffer, count, length);
+            count += length;
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            ensureCapacity(count + length);
+            string.getChars(offset, offset + length, buffer, count);
+            count += length;
+        }
+
+        @Override
+        public void write(int c) {
+            ensureCapacity(count + 1);
+            buffer[count++] = (char) c;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer, 0, count);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
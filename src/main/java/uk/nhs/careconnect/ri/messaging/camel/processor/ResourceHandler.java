@@ -0,0 +1,14 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import org.hl7.fhir.dstu3.model.Resource;
+import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeException;
+
+/*
+    Resolves one bundle entry of a resource type against the EPR (search by identifier, then create or update),
+    returning the EPR copy. Registered with ResourceHandlerRegistry, usually as a BundleCore::searchAddXxx reference.
+ */
+@FunctionalInterface
+public interface ResourceHandler<T extends Resource> {
+
+    Resource searchAdd(BundleCore bundleCore, String referenceId, T resource) throws OperationOutcomeException;
+}
@@ -0,0 +1,112 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceBlockDefinition;
+import org.hl7.fhir.dstu3.model.Attachment;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.ResourceType;
+import org.hl7.fhir.instance.model.api.IBase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    ResourceType -> ResourceHandler lookup used by BundleCore to dispatch a bundle entry, plus the reference paths of
+    each resource type.
+
+    The handlers are BundleCore's own searchAddXxx methods, registered by BundleCore. The registry only replaces the
+    dispatch, each handler still resolves the references of its type itself.
+
+    Reference paths are used by BundleDependencyPlanner only. They are not written per type but derived once from the
+    HAPI model definition: every Reference or Attachment element reachable through the resource's own elements and
+    backbone elements (extensions and contained resources are not followed), so they cover any reference a handler
+    can follow there. Each path is held as the chain of BaseRuntimeChildDefinition accessors to read it.
+ */
+public class ResourceHandlerRegistry {
+
+    private ResourceHandlerRegistry() {
+
+    }
+
+    // Replaced, never modified, so dispatch does not need to lock
+    private static volatile Map<ResourceType, ResourceHandler<Resource>> handlers = new EnumMap<>(ResourceType.class);
+
+    private static final Map<ResourceType, List<List<BaseRuntimeChildDefinition>>> referencePaths = new ConcurrentHashMap<>();
+
+    static synchronized <T extends Resource> void register(ResourceType resourceType, Class<T> resourceClass, ResourceHandler<T> handler) {
+        Map<ResourceType, ResourceHandler<Resource>> updated = new EnumMap<>(ResourceType.class);
+        updated.putAll(handlers);
+        updated.put(resourceType, (bundleCore, referenceId, resource) -> handler.searchAdd(bundleCore, referenceId, resourceClass.cast(resource)));
+        handlers = updated;
+    }
+
+    static ResourceHandler<Resource> getHandler(ResourceType resourceType) {
+        return handlers.get(resourceType);
+    }
+
+    /*
+        The populated Reference and Attachment elements of the resource.
+     */
+    public static List<IBase> getReferenceElements(FhirContext ctx, Resource resource) {
+        List<IBase> elements = new ArrayList<>();
+        for (List<BaseRuntimeChildDefinition> path : getReferencePaths(ctx, resource.getResourceType())) {
+            collect(resource, path, 0, elements);
+        }
+        return elements;
+    }
+
+    public static List<List<BaseRuntimeChildDefinition>> getReferencePaths(FhirContext ctx, ResourceType resourceType) {
+        return referencePaths.computeIfAbsent(resourceType, type -> {
+            List<List<BaseRuntimeChildDefinition>> paths = new ArrayList<>();
+            addPaths(ctx.getResourceDefinition(type.name()), new ArrayList<>(), new HashSet<>(), paths);
+            return Collections.unmodifiableList(paths);
+        });
+    }
+
+    private static void addPaths(BaseRuntimeElementCompositeDefinition<?> definition, List<BaseRuntimeChildDefinition> parent,
+                                 Set<BaseRuntimeElementDefinition<?>> visiting, List<List<BaseRuntimeChildDefinition>> paths) {
+        // Backbone elements can nest themselves (e.g. Questionnaire.item.item)
+        if (!visiting.add(definition)) return;
+        for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+            String name = child.getElementName();
+            if (name.equals("extension") || name.equals("modifierExtension") || name.equals("contained")) continue;
+
+            List<BaseRuntimeChildDefinition> path = new ArrayList<>(parent);
+            path.add(child);
+            boolean added = false;
+            for (String childName : child.getValidChildNames()) {
+                BaseRuntimeElementDefinition<?> childDefinition = child.getChildByName(childName);
+                if (childDefinition == null) continue;
+                Class<?> implementingClass = childDefinition.getImplementingClass();
+                if (!added && (Reference.class.isAssignableFrom(implementingClass) || Attachment.class.isAssignableFrom(implementingClass))) {
+                    paths.add(Collections.unmodifiableList(path));
+                    added = true;
+                } else if (childDefinition instanceof RuntimeResourceBlockDefinition) {
+                    addPaths((RuntimeResourceBlockDefinition) childDefinition, path, visiting, paths);
+                }
+            }
+        }
+        visiting.remove(definition);
+    }
+
+    private static void collect(IBase element, List<BaseRuntimeChildDefinition> path, int depth, List<IBase> elements) {
+        for (IBase value : path.get(depth).getAccessor().getValues(element)) {
+            if (depth == path.size() - 1) {
+                // Choice elements (e.g. medication[x]) may hold a non Reference value
+                if ((value instanceof Reference || value instanceof Attachment) && !value.isEmpty()) elements.add(value);
+            } else {
+                collect(value, path, depth + 1, elements);
+            }
+        }
+    }
+}
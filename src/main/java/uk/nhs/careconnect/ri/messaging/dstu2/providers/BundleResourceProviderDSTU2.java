@@ -17,6 +17,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
+import uk.nhs.careconnect.ri.messaging.camel.processor.ResourceBodyEncoder;
 import uk.nhs.careconnect.ri.messaging.support.CareConnectDSTU2toSTU3;
 import uk.nhs.careconnect.ri.messaging.support.ProviderResponseLibrary;
 
@@ -49,8 +50,9 @@ public class BundleResourceProviderDSTU2 implements IResourceProvider {
     }
 
 
-    private Exchange buildBundlePost(Exchange exchange, String newXmlResource, String query, String method) {
-        exchange.getIn().setBody(newXmlResource);
+    // body is the converted STU3 resource or its XML
+    private Exchange buildBundlePost(Exchange exchange, Object body, String query, String method) {
+        exchange.getIn().setBody(body);
         exchange.getIn().setHeader(Exchange.HTTP_QUERY, query);
         exchange.getIn().setHeader(Exchange.HTTP_METHOD, method);
         exchange.getIn().setHeader(Exchange.HTTP_PATH, "Bundle");
@@ -75,8 +77,6 @@ public class BundleResourceProviderDSTU2 implements IResourceProvider {
 
             org.hl7.fhir.dstu3.model.Resource resourceR3 = converterSTU3.convert(bundleDSTU2);
 
-            String newXmlResource = ctxR3.newXmlParser().encodeResourceToString(resourceR3);
-
             if (resourceR3 instanceof org.hl7.fhir.dstu3.model.Bundle) {
 
                 bundle = (org.hl7.fhir.dstu3.model.Bundle) resourceR3;
@@ -97,11 +97,11 @@ public class BundleResourceProviderDSTU2 implements IResourceProvider {
                         // Sync Direct flow direct:FHIRBundleMessage
                         Exchange exchangeMessage = template.send("direct:FHIRBundleMessage", ExchangePattern.InOut, new Processor() {
                             public void process(Exchange exchange) throws Exception {
-                                exchange = buildBundlePost(exchange, newXmlResource, null, "POST");
+                                exchange = buildBundlePost(exchange, resourceR3, null, "POST");
 
                             }
                         });
-                        resource = ProviderResponseLibrary.processMessageBody(ctx, resource, exchangeMessage.getIn().getBody());
+                        resource = ProviderResponseLibrary.processMessageBody(ctx, resource, ResourceBodyEncoder.getBodyAsString(ctxR3, exchangeMessage.getIn()));
                         break;
 
                     case DOCUMENT:
@@ -110,11 +110,11 @@ public class BundleResourceProviderDSTU2 implements IResourceProvider {
                         // Main Message send to EDMS
                         Exchange exchangeDocument = template.send("direct:FHIRBundleDocument", ExchangePattern.InOut, new Processor() {
                             public void process(Exchange exchange) throws Exception {
-                                exchange = buildBundlePost(exchange, newXmlResource, null, "POST");
+                                exchange = buildBundlePost(exchange, resourceR3, null, "POST");
 
                             }
                         });
-                        resource = ProviderResponseLibrary.processMessageBody(ctx, resource, exchangeDocument.getIn().getBody());
+                        resource = ProviderResponseLibrary.processMessageBody(ctx, resource, ResourceBodyEncoder.getBodyAsString(ctxR3, exchangeDocument.getIn()));
 
                     default:
                         // TODO
@@ -171,7 +171,7 @@ public class BundleResourceProviderDSTU2 implements IResourceProvider {
                         }
                     });
                     // TODO need proper responses from the camel processor. KGM 18/Apr/2018
-                    resource = ProviderResponseLibrary.processMessageBody(ctx, resource, exchangeBundle.getIn().getBody());
+                    resource = ProviderResponseLibrary.processMessageBody(ctx, resource, ResourceBodyEncoder.getBodyAsString(ctxR3, exchangeBundle.getIn()));
                     break;
 
                 case DOCUMENT:
@@ -183,7 +183,7 @@ public class BundleResourceProviderDSTU2 implements IResourceProvider {
                     // TODO need proper responses from the camel processor. KGM 18/Apr/2018
 
                     // This response is coming from an external FHIR Server, so uses inputstream
-                    resource = ProviderResponseLibrary.processMessageBody(ctx, resource, exchangeDocument.getIn().getBody());
+                    resource = ProviderResponseLibrary.processMessageBody(ctx, resource, ResourceBodyEncoder.getBodyAsString(ctxR3, exchangeDocument.getIn()));
 
 
                 default:
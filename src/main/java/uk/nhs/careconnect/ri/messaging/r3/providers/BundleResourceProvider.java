@@ -7,19 +7,31 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import org.apache.camel.*;
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.MessageHeader;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.camel.processor.ResourceBodyEncoder;
+import uk.nhs.careconnect.ri.messaging.support.AcceptedException;
+import uk.nhs.careconnect.ri.messaging.support.IdempotencyStore;
+import uk.nhs.careconnect.ri.messaging.support.MessagingMetrics;
+import uk.nhs.careconnect.ri.messaging.support.MessageJournal;
+import uk.nhs.careconnect.ri.messaging.support.MessageStatusController;
+import uk.nhs.careconnect.ri.messaging.support.MessageStatusStore;
 import uk.nhs.careconnect.ri.messaging.support.ProviderResponseLibrary;
 
 import javax.servlet.http.HttpServletRequest;
-import java.io.InputStream;
 
 @Component
 public class BundleResourceProvider implements IResourceProvider {
@@ -44,8 +56,9 @@ public class BundleResourceProvider implements IResourceProvider {
 
 
 
-    private Exchange buildBundlePost(Exchange exchange, String newXmlResource, String query, String method) {
-        exchange.getIn().setBody(newXmlResource);
+    // The parsed Bundle is passed as the body, it is only encoded where it leaves the server or is persisted
+    private Exchange buildBundlePost(Exchange exchange, Bundle bundle, String query, String method) {
+        exchange.getIn().setBody(bundle);
         exchange.getIn().setHeader(Exchange.HTTP_QUERY, query);
         exchange.getIn().setHeader(Exchange.HTTP_METHOD, method);
         exchange.getIn().setHeader(Exchange.HTTP_PATH, "Bundle");
@@ -64,7 +77,7 @@ public class BundleResourceProvider implements IResourceProvider {
 
 
     @Create
-    public MethodOutcome create(HttpServletRequest httpRequest, @ResourceParam Bundle bundle) throws Exception {
+    public MethodOutcome create(HttpServletRequest httpRequest, @ResourceParam Bundle bundle, RequestDetails theRequestDetails) throws Exception {
 
 
         // Example message https://gist.github.com/IOPS-DEV/1a532eb43b226dcd6ce26a6b698019f4#file-ec_edischarge_full_payload_example-01
@@ -90,8 +103,9 @@ public class BundleResourceProvider implements IResourceProvider {
 
         IBaseResource resource = null;
         try {
-            InputStream inputStream = null;
-            String newXmlResource = ctx.newXmlParser().encodeResourceToString(bundle);
+            byte[] requestContents = theRequestDetails.loadRequestContents();
+            MessagingMetrics.recordBundle(bundle.getEntry().size(), requestContents.length);
+            String contentHash = IdempotencyStore.getContentHash(requestContents);
 
             if (bundle.hasMeta() && bundle.getMeta().hasProfile("https://fhir.nhs.uk/STU3/StructureDefinition/ITK-Message-Bundle-1")) {
                 throw new InternalErrorException("This server does not know how to process transfer of care message Bundle."
@@ -103,13 +117,19 @@ public class BundleResourceProvider implements IResourceProvider {
 
                 case COLLECTION:
                 case MESSAGE:
-                    // Sync to get response
+                    // Checked here for both paths, so an asynchronous bundle that can't be processed isn't accepted
+                    checkMessageStructure(bundle);
+
+                    // ASync This uses a queue seda:FHIRBundleCollection, answered with 202 and a status location
+                    if (isAsync(httpRequest)) {
+                        enqueueBundle(template, httpRequest, bundle, contentHash);
+                    }
 
-                    // ASync This uses a queue direct:FHIRBundleCollection
                     // Sync Direct flow direct:FHIRBundleMessage
                     Exchange exchangeMessage = template.send("direct:FHIRBundleMessage", ExchangePattern.InOut, new Processor() {
                         public void process(Exchange exchange) throws Exception {
-                            exchange = buildBundlePost(exchange,newXmlResource,null,"POST");
+                            exchange = buildBundlePost(exchange,bundle,null,"POST");
+                            exchange.getIn().setHeader(IdempotencyStore.CONTENT_HASH_HEADER, contentHash);
 
                         }
                     });
@@ -122,7 +142,8 @@ public class BundleResourceProvider implements IResourceProvider {
                     // Main Message send to EDMS
                     Exchange exchangeDocument = template.send("direct:FHIRBundleDocument", ExchangePattern.InOut, new Processor() {
                         public void process(Exchange exchange) throws Exception {
-                            exchange = buildBundlePost(exchange,newXmlResource,null,"POST");
+                            exchange = buildBundlePost(exchange,bundle,null,"POST");
+                            exchange.getIn().setHeader(IdempotencyStore.CONTENT_HASH_HEADER, contentHash);
 
                         }
                     });
@@ -141,9 +162,8 @@ public class BundleResourceProvider implements IResourceProvider {
         log.trace("RETURNED Resource {}", resource.getClass().getSimpleName());
         log.trace("RETURNED Resource "+resource.getClass().getSimpleName());
 
-        if (resource instanceof Bundle) {
-            bundle = (Bundle) resource;
-        } else {
+        // bundle is captured by the exchange processors above, so isn't reassigned here
+        if (!(resource instanceof Bundle)) {
             ProviderResponseLibrary.createException(ctx,resource);
         }
 
@@ -155,6 +175,56 @@ public class BundleResourceProvider implements IResourceProvider {
     }
 
 
+    private boolean isAsync(HttpServletRequest httpRequest) {
+        String prefer = httpRequest.getHeader("Prefer");
+        return HapiProperties.getMessagingAsync() || (prefer != null && prefer.contains("respond-async"));
+    }
+
+    /*
+        Structure BundleMessage relies on: 422 for a bundle with no entries or a message not led by its MessageHeader,
+        400 for an entry without a resource.
+     */
+    private void checkMessageStructure(Bundle bundle) {
+        if (bundle.getEntry().isEmpty()) {
+            throw new UnprocessableEntityException("Bundle has no entries");
+        }
+        for (int i = 0; i < bundle.getEntry().size(); i++) {
+            if (bundle.getEntry().get(i).getResource() == null) {
+                throw new InvalidRequestException("Bundle entry " + i + " has no resource");
+            }
+        }
+        if (bundle.getType() == Bundle.BundleType.MESSAGE
+                && !(bundle.getEntryFirstRep().getResource() instanceof MessageHeader)) {
+            throw new UnprocessableEntityException("Message Bundle must start with a MessageHeader");
+        }
+    }
+
+    /*
+        Always ends in an exception: AcceptedException (202) once queued, 503 if the queue is full.
+        The bundle is written to MessageJournal before it is queued so it is replayed if we restart before it completes.
+     */
+    private void enqueueBundle(ProducerTemplate template, HttpServletRequest httpRequest, Bundle bundle, String contentHash) {
+        String statusId = MessageStatusStore.submit();
+        Long sequence = MessageJournal.isEnabled()
+                ? MessageJournal.append(statusId, contentHash, ResourceBodyEncoder.encodeToUtf8(ctx, bundle)) : null;
+        Exchange exchangeQueued = template.send("seda:FHIRBundleCollection", ExchangePattern.InOnly, new Processor() {
+            public void process(Exchange exchange) throws Exception {
+                exchange = buildBundlePost(exchange,bundle,null,"POST");
+                exchange.getIn().setHeader(IdempotencyStore.CONTENT_HASH_HEADER, contentHash);
+                exchange.getIn().setHeader(MessageStatusStore.STATUS_HEADER, statusId);
+                exchange.getIn().setHeader(MessageJournal.SEQUENCE_HEADER, sequence);
+            }
+        });
+        if (exchangeQueued.getException() != null) {
+            MessageStatusStore.remove(statusId);
+            if (sequence != null) MessageJournal.commit(sequence);
+            log.warn("Message queue rejected bundle {}", exchangeQueued.getException().getMessage());
+            throw new UnclassifiedServerFailureException(503, "Message queue is full, please retry later");
+        }
+        throw new AcceptedException(ServletUriComponentsBuilder.fromContextPath(httpRequest)
+                .path(MessageStatusController.STATUS_PATH + statusId).toUriString());
+    }
+
     @Update
     public MethodOutcome updateBundle(HttpServletRequest theRequest, @ResourceParam Bundle bundle, @IdParam IdType bundleId, @ConditionalUrlParam String conditional, RequestDetails theRequestDetails) throws Exception {
 
@@ -162,8 +232,9 @@ public class BundleResourceProvider implements IResourceProvider {
 
         IBaseResource resource = null;
         try {
-            InputStream inputStream = null;
-            String newXmlResource = ctx.newXmlParser().encodeResourceToString(bundle);
+            byte[] requestContents = theRequestDetails.loadRequestContents();
+            MessagingMetrics.recordBundle(bundle.getEntry().size(), requestContents.length);
+            String contentHash = IdempotencyStore.getContentHash(requestContents);
 
             if (bundle.hasMeta() && bundle.getMeta().hasProfile("https://fhir.nhs.uk/STU3/StructureDefinition/ITK-Message-Bundle-1")) {
                 throw new InternalErrorException("This server does not know how to process transfer of care message Bundle."
@@ -176,7 +247,8 @@ public class BundleResourceProvider implements IResourceProvider {
 
                     Exchange exchangeBundle = template.send("direct:FHIRBundleCollection", ExchangePattern.InOut, new Processor() {
                         public void process(Exchange exchange) throws Exception {
-                            exchange = buildBundlePost(exchange,newXmlResource,conditional,"PUT");
+                            exchange = buildBundlePost(exchange,bundle,conditional,"PUT");
+                            exchange.getIn().setHeader(IdempotencyStore.CONTENT_HASH_HEADER, contentHash);
 
                         }
                     });
@@ -187,7 +259,8 @@ public class BundleResourceProvider implements IResourceProvider {
                 case DOCUMENT:
                     Exchange exchangeDocument = template.send("direct:FHIRBundleDocument", ExchangePattern.InOut, new Processor() {
                         public void process(Exchange exchange) throws Exception {
-                            exchange = buildBundlePost(exchange,newXmlResource,conditional,"PUT");
+                            exchange = buildBundlePost(exchange,bundle,conditional,"PUT");
+                            exchange.getIn().setHeader(IdempotencyStore.CONTENT_HASH_HEADER, contentHash);
                         }
                     });
                     // TODO need proper responses from the camel processor. KGM 18/Apr/2018
@@ -207,9 +280,8 @@ public class BundleResourceProvider implements IResourceProvider {
             throw new InternalErrorException(ex.getMessage());
         }
         log.trace("RETURNED Resource {}", resource.getClass().getSimpleName());
-        if (resource instanceof Bundle) {
-            bundle = (Bundle) resource;
-        } else {
+        // bundle is captured by the exchange processors above, so isn't reassigned here
+        if (!(resource instanceof Bundle)) {
             ProviderResponseLibrary.createException(ctx,resource);
         }
 
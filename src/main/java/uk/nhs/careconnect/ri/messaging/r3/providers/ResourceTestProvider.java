@@ -6,9 +6,12 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Validate;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.ValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.util.UrlUtil;
 import org.apache.camel.*;
 import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +20,8 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.camel.processor.LocalValidationProcessor;
+import uk.nhs.careconnect.ri.messaging.support.ValidationResultCache;
 
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -46,20 +51,48 @@ public class ResourceTestProvider {
     		retVal.setOperationOutcome(null);
     		return retVal;
     	}
+        // Resubmitted resources are answered from the cache, see ValidationResultCache. The local validator caches
+        // per bundle entry itself. TKW outcomes are only cached against a configured version of its validator.
+        String cacheKey = null;
+        String remoteVersion = HapiProperties.getValidationRemoteVersion();
+        if ("remote".equalsIgnoreCase(HapiProperties.getValidationBackend()) && !remoteVersion.isEmpty()
+                && resourceToValidate instanceof Resource) {
+            cacheKey = ValidationResultCache.getKey(ctx, (Resource) resourceToValidate, true, theProfile,
+                    "remote/" + remoteVersion + (theMode != null ? "/" + theMode.getCode() : ""));
+            OperationOutcome cached = ValidationResultCache.get(cacheKey);
+            if (cached != null) {
+                MethodOutcome retVal = new MethodOutcome();
+                retVal.setOperationOutcome(cached);
+                return retVal;
+            }
+        }
         ProducerTemplate template = context.createProducerTemplate();
 
         InputStream inputStream = null;
                 Exchange exchange = template.send("direct:FHIRValidate", ExchangePattern.InOut, new Processor() {
             public void process(Exchange exchange) throws Exception {
-                exchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(resourceToValidate));
+                // Encoded by the TKW route if the validation goes there
+                exchange.getIn().setBody(resourceToValidate);
                 exchange.getIn().removeHeaders("*");
                 exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/fhir+xml");
                 exchange.getIn().setHeader(Exchange.HTTP_METHOD, "POST");
               //  exchange.getIn().setHeader(Exchange.ACCEPT_CONTENT_TYPE, "application/fhir+xml");
                 exchange.getIn().setHeader(Exchange.HTTP_PATH, "$validate");
+                // Parameters for the TKW server, and as headers for the local validator
+                exchange.getIn().setHeader(Exchange.HTTP_QUERY, getValidateQuery(theMode, theProfile));
+                if (theProfile != null) exchange.getIn().setHeader(LocalValidationProcessor.PROFILE_HEADER, theProfile);
+                if (theMode != null) exchange.getIn().setHeader(LocalValidationProcessor.MODE_HEADER, theMode.getCode());
              }
         });
+        if (exchange.getException() instanceof BaseServerResponseException) {
+            throw (BaseServerResponseException) exchange.getException();
+        }
         IBaseResource resource = null;
+            // The local validator returns the OperationOutcome as parsed
+            if(exchange.getIn().getBody() instanceof OperationOutcome)
+        {
+            resource = (OperationOutcome) exchange.getIn().getBody();
+        }
             if(exchange.getIn(). getBody() instanceof InputStream)
 
         {
@@ -92,6 +125,7 @@ public class ResourceTestProvider {
             log.info("Issue Count = " + operationOutcome.getIssue().size());
             log.info(ctx.newXmlParser().setPrettyPrint(true).encodeResourceToString(operationOutcome));
             retVal.setOperationOutcome(operationOutcome);
+            ValidationResultCache.put(cacheKey, operationOutcome);
         } else
 
         {
@@ -100,4 +134,14 @@ public class ResourceTestProvider {
 
         return retVal;
 }
+
+    private static String getValidateQuery(ValidationModeEnum theMode, String theProfile) {
+        StringBuilder query = new StringBuilder();
+        if (theMode != null) query.append("mode=").append(UrlUtil.escapeUrlParam(theMode.getCode()));
+        if (theProfile != null) {
+            if (query.length() > 0) query.append('&');
+            query.append("profile=").append(UrlUtil.escapeUrlParam(theProfile));
+        }
+        return query.toString();
+    }
 }
@@ -1,6 +1,7 @@
 package uk.nhs.careconnect.ri.messaging.r3.providers;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.VersionUtil;
 
 import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.SingleValidationMessage;
@@ -11,57 +12,208 @@ import org.hl7.fhir.dstu3.hapi.validation.FhirInstanceValidator;
 import org.hl7.fhir.dstu3.hapi.validation.ValidationSupportChain;
 import org.hl7.fhir.dstu3.model.BaseResource;
 import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.HumanName;
 import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.FhirClientRegistry;
+import uk.nhs.careconnect.ri.messaging.support.Tracer;
+import uk.nhs.careconnect.ri.messaging.support.ValidationResultCache;
 import uk.org.hl7.fhir.core.Dstu2.CareConnectSystem;
 import uk.org.hl7.fhir.validation.stu3.CareConnectProfileValidationSupport;
 import uk.org.hl7.fhir.validation.stu3.SNOMEDUKMockValidationSupport;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+
+/*
+    Local validation against the base FHIR and Care Connect profiles.
+
+    The validator and its support chain are built once and shared, FhirValidator being thread safe once its modules
+    are registered. The profiles are loaded and their snapshots generated by the first validation, which warmUp()
+    does at startup (validation.prewarm) so a request never pays for it. Resources are validated as parsed rather
+    than encoded to XML and parsed again.
+ */
 public class ValidationFactory {
     private ValidationFactory() {
 
     }
 
+    private static final Logger log = LoggerFactory.getLogger(ValidationFactory.class);
+
+    private static FhirValidator validator;
+
+    private static ForkJoinPool pool;
+
+    // Part of the ValidationResultCache key, results of another HAPI release or profile set aren't reused
+    private static String validatorVersion;
 
+    private static synchronized FhirValidator getValidator() {
+        if (validator == null) {
+            FhirContext ctxValidator = FhirClientRegistry.getContext();
+            FhirValidator newValidator = ctxValidator.newValidator();
+            FhirInstanceValidator instanceValidator = new FhirInstanceValidator();
+
+            ValidationSupportChain support = new ValidationSupportChain(
+                    new DefaultProfileValidationSupport()
+                    ,new CareConnectProfileValidationSupport(ctxValidator)
+                    ,new SNOMEDUKMockValidationSupport() // This is to disable SNOMED CT Warnings. Mock validation to return ok for SNOMED Concepts
+            );
+            instanceValidator.setValidationSupport(support);
+            newValidator.registerValidatorModule(instanceValidator);
+
+            // Loads the structure definitions of both sets of profiles
+            int structureDefinitions = support.fetchAllStructureDefinitions(ctxValidator).size();
+            log.info("Validator created with {} structure definitions", structureDefinitions);
+            validatorVersion = "local/" + VersionUtil.getVersion() + "/" + structureDefinitions;
+            validator = newValidator;
+        }
+        return validator;
+    }
+
+    /*
+        Builds the validator and runs a validation through it, loading the profiles the first real validation would.
+     */
+    public static void warmUp() {
+        long start = System.currentTimeMillis();
+        Patient patient = new Patient();
+        patient.setId("warm-up");
+        patient.addName().setUse(HumanName.NameUse.OFFICIAL).setFamily("Warmup");
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        bundle.addEntry().setResource(patient);
+        validateResource(bundle);
+        log.info("Validator warmed up in {}ms", System.currentTimeMillis() - start);
+    }
 
     public static OperationOutcome validateResource(BaseResource resource) {
+        return validateResource(resource, null);
+    }
 
+    /*
+        Bundle entries are validated in parallel on a pool of validation.parallelism threads. Their issues are merged
+        in entry order, so the outcome is the same as a serial run. With a failOn severity the validation stops at the
+        first entry with an issue of that severity or worse (FATAL for only fatal issues), for callers which only need
+        to know whether the resource passes. Entries not yet started are skipped and the outcome says so.
+     */
+    public static OperationOutcome validateResource(BaseResource resource, OperationOutcome.IssueSeverity failOn) {
 
-        OperationOutcome outcome = new OperationOutcome();
+        FhirValidator validator = getValidator();
 
-        FhirContext ctxValidator = FhirContext.forDstu3();
-        FhirValidator validator  = ctxValidator.newValidator();
-        FhirInstanceValidator instanceValidator = new FhirInstanceValidator();
-
-        validator.registerValidatorModule(instanceValidator);
-        ValidationSupportChain support = new ValidationSupportChain(
-                new DefaultProfileValidationSupport()
-                ,new CareConnectProfileValidationSupport(ctxValidator)
-                ,new SNOMEDUKMockValidationSupport() // This is to disable SNOMED CT Warnings. Mock validation to return ok for SNOMED Concepts
-        );
-        instanceValidator.setValidationSupport(support);
-
-        if (resource instanceof Bundle) {
-            Bundle bundle = (Bundle) resource;
-            for (Bundle.BundleEntryComponent  entry : bundle.getEntry()) {
-                outcome = doValidation(validator, outcome, entry.getResource());
+        if (!(resource instanceof Bundle)) {
+            return (resource instanceof Resource)
+                    ? validateCached(validator, (Resource) resource)
+                    : doValidation(validator, new OperationOutcome(), resource);
+        }
+        List<Resource> entries = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+            if (entry.getResource() != null) entries.add(entry.getResource());
+        }
+
+        OperationOutcome[] results = new OperationOutcome[entries.size()];
+        boolean failFast = failOn != null;
+        AtomicBoolean failed = new AtomicBoolean();
+        ForkJoinPool entryPool = getPool();
+        if (entryPool == null || entries.size() < 2) {
+            for (int i = 0; i < entries.size() && !(failFast && failed.get()); i++) {
+                results[i] = validateEntry(validator, entries.get(i), failOn, failed);
             }
         } else {
-            outcome = doValidation(validator, outcome, resource);
+            List<ForkJoinTask<OperationOutcome>> tasks = new ArrayList<>(entries.size());
+            for (Resource entry : entries) {
+                tasks.add(entryPool.submit(Tracer.propagate(() ->
+                        (failFast && failed.get()) ? null : validateEntry(validator, entry, failOn, failed))));
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                if (failFast && failed.get()) {
+                    // Entries already running finish, the rest don't start
+                    for (int j = i; j < tasks.size(); j++) tasks.get(j).cancel(false);
+                }
+                ForkJoinTask<OperationOutcome> task = tasks.get(i);
+                if (!task.isCancelled()) results[i] = task.join();
+            }
         }
 
-
-       // outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.WARNING).setDiagnostics("DUMMY One minor issue detected");
+        OperationOutcome outcome = new OperationOutcome();
+        for (OperationOutcome result : results) {
+            if (result != null) outcome.getIssue().addAll(result.getIssue());
+        }
+        if (failFast && failed.get() && Arrays.asList(results).contains(null)) {
+            outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                    .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                    .setDiagnostics("Validation stopped at the first entry with " + failOn.toCode() + " issues");
+        }
         return outcome;
     }
-    private static OperationOutcome doValidation( FhirValidator validator, OperationOutcome outcome, BaseResource resource) {
-        FhirContext context = FhirContext.forDstu3();
 
-        String resourceStr = context.newXmlParser().encodeResourceToString(resource);
+    private static OperationOutcome validateEntry(FhirValidator validator, Resource resource,
+                                                  OperationOutcome.IssueSeverity failOn, AtomicBoolean failed) {
+        OperationOutcome result = validateCached(validator, resource);
+        if (failOn == null) return result;
+        for (OperationOutcome.OperationOutcomeIssueComponent issue : result.getIssue()) {
+            // Declared most severe first
+            if (issue.getSeverity() != null && issue.getSeverity().ordinal() <= failOn.ordinal()) {
+                failed.set(true);
+                break;
+            }
+        }
+        return result;
+    }
 
-        System.out.println(resourceStr);
+    /*
+        An unchanged resource (ignoring its id) is answered from the ValidationResultCache. The issue locations name
+        the resource, so they are set again for this one.
+     */
+    private static OperationOutcome validateCached(FhirValidator validator, Resource resource) {
+        String key = ValidationResultCache.getKey(FhirClientRegistry.getContext(), resource, false, null, validatorVersion);
+        OperationOutcome cached = ValidationResultCache.get(key);
+        if (cached != null) {
+            String location = getLocation(resource);
+            for (OperationOutcome.OperationOutcomeIssueComponent issue : cached.getIssue()) {
+                issue.getLocation().clear();
+                issue.addLocation(location);
+            }
+            return cached;
+        }
+        OperationOutcome result = doValidation(validator, new OperationOutcome(), resource);
+        // A failure of the validator itself isn't an outcome for this content
+        boolean validatorFailed = false;
+        for (OperationOutcome.OperationOutcomeIssueComponent issue : result.getIssue()) {
+            if (issue.getCode() == OperationOutcome.IssueType.EXCEPTION) validatorFailed = true;
+        }
+        if (!validatorFailed) ValidationResultCache.put(key, result);
+        return result;
+    }
+
+    private static String getLocation(BaseResource resource) {
+        return resource.getClass().getSimpleName() + "/" + resource.getIdElement().getIdPart();
+    }
+
+    // Null when validation.parallelism is 1 or less, entries are then validated on the calling thread
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int parallelism = HapiProperties.getValidationParallelism();
+            if (parallelism <= 1) return null;
+            pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("validator-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+        }
+        return pool;
+    }
+
+    private static OperationOutcome doValidation( FhirValidator validator, OperationOutcome outcome, BaseResource resource) {
     try {
-        ValidationResult result = validator.validateWithResult(resourceStr);
+        ValidationResult result = validator.validateWithResult(resource);
         for (SingleValidationMessage next : result.getMessages()) {
             // Disabling SNOMED warnings for valuesets. (ValueSets with include queries or references require a terminology service)
             if (next.getMessage().contains("and a code from this value set is required") && next.getMessage().contains(CareConnectSystem.SNOMEDCT)) {
@@ -75,8 +227,9 @@ public class ValidationFactory {
             } else if (next.getMessage().contains("Error Multiple filters not handled yet")) {
                 //System.out.println("** ** ** multiple filters in ValueSet not implemented" );
             } else {
+                // addIssue() has already added it to the outcome
                 OperationOutcome.OperationOutcomeIssueComponent issue = outcome.addIssue();
-                issue.setDiagnostics(next.getLocationString() + " - " + next.getMessage()).addLocation(resource.getClass().getSimpleName() + "/" + resource.getIdElement().getIdPart());
+                issue.setDiagnostics(next.getLocationString() + " - " + next.getMessage()).addLocation(getLocation(resource));
                 switch (next.getSeverity()) {
                     case ERROR:
                         issue.setSeverity(OperationOutcome.IssueSeverity.ERROR);
@@ -91,11 +244,11 @@ public class ValidationFactory {
                         issue.setSeverity(OperationOutcome.IssueSeverity.INFORMATION);
                         break;
                 }
-                outcome.addIssue(issue);
             }
         }
     } catch (Exception ex) {
-        outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.FATAL).setDiagnostics(ex.getMessage()).addLocation(resource.getId().toString());
+        outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.FATAL).setCode(OperationOutcome.IssueType.EXCEPTION)
+                .setDiagnostics(ex.getMessage()).addLocation(resource.getId().toString());
     }
         return outcome;
     }
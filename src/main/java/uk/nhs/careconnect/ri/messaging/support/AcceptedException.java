@@ -0,0 +1,31 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+
+/*
+    HAPI method outcomes can't carry a status code, so a bundle accepted for asynchronous processing is answered by
+    throwing this. The client receives 202 Accepted with Content-Location set to the status url.
+ */
+public class AcceptedException extends BaseServerResponseException {
+
+    public static final int STATUS_CODE = 202;
+
+    private static final long serialVersionUID = 1L;
+
+    public AcceptedException(String statusLocation) {
+        super(STATUS_CODE, "Accepted for processing, status at " + statusLocation, createOperationOutcome(statusLocation));
+        addResponseHeader("Content-Location", statusLocation);
+    }
+
+    private static OperationOutcome createOperationOutcome(String statusLocation) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(statusLocation)
+                .setDetails(new CodeableConcept().setText("Accepted for processing"));
+        return outcome;
+    }
+}
@@ -0,0 +1,249 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/*
+    One line per request to the logger.name logger, which log4j2-spring.xml sends to its own async appender.
+
+    The logger.access_format template (${field} placeholders, see Field) is parsed once into segments. A line is built
+    in a builder reused by the thread, so with the default format the line's String is the only allocation. Headers
+    are read only if the format names them, and nothing is read at all when the logger is off.
+ */
+public class AccessLog {
+
+    private AccessLog() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(HapiProperties.getLoggerName());
+
+    private static final int MAX_RETAINED_BUILDER = 8192;
+
+    private static final ThreadLocal<StringBuilder> builders = ThreadLocal.withInitial(() -> new StringBuilder(512));
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private enum Field {
+        REQUEST_VERB("requestVerb"),
+        REMOTE_ADDR("remoteAddr"),
+        OPERATION_TYPE("operationType"),
+        OPERATION_NAME("operationName"),
+        ID("id"),
+        ID_OR_RESOURCE_NAME("idOrResourceName"),
+        SERVLET_PATH("servletPath"),
+        REQUEST_URL("requestUrl"),
+        REQUEST_PARAMETERS("requestParameters"),
+        REQUEST_HEADER("requestHeader."),
+        PROCESSING_TIME_MILLIS("processingTimeMillis"),
+        RESPONSE_CODE("responseCode");
+
+        private final String key;
+
+        Field(String key) {
+            this.key = key;
+        }
+    }
+
+    // A literal (field null) or a field, with the header name for REQUEST_HEADER
+    private static final class Segment {
+        private final String text;
+        private final Field field;
+
+        private Segment(String text, Field field) {
+            this.text = text;
+            this.field = field;
+        }
+    }
+
+    private static volatile Segment[] format;
+
+    static {
+        HapiProperties.addChangeListener(changed -> format = null);
+    }
+
+    public static void completed(RequestDetails requestDetails, HttpServletRequest request, int responseCode) {
+        if (!log.isInfoEnabled() || request == null) return;
+        StringBuilder line = builders.get();
+        line.setLength(0);
+        for (Segment segment : getFormat()) {
+            if (segment.field == null) {
+                line.append(segment.text);
+            } else {
+                appendField(line, segment, requestDetails, request, responseCode);
+            }
+        }
+        log.info(line.toString());
+        if (line.capacity() > MAX_RETAINED_BUILDER) {
+            builders.remove();
+        }
+    }
+
+    private static void appendField(StringBuilder line, Segment segment, RequestDetails requestDetails,
+                                    HttpServletRequest request, int responseCode) {
+        switch (segment.field) {
+            case REQUEST_VERB:
+                append(line, request.getMethod());
+                break;
+            case REMOTE_ADDR:
+                append(line, request.getRemoteAddr());
+                break;
+            case OPERATION_TYPE:
+                if (requestDetails != null && requestDetails.getRestOperationType() != null) {
+                    line.append(requestDetails.getRestOperationType().getCode());
+                }
+                break;
+            case OPERATION_NAME:
+                if (requestDetails != null && requestDetails.getRestOperationType() != null) {
+                    switch (requestDetails.getRestOperationType()) {
+                        case EXTENDED_OPERATION_INSTANCE:
+                        case EXTENDED_OPERATION_SERVER:
+                        case EXTENDED_OPERATION_TYPE:
+                            append(line, requestDetails.getOperation());
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                break;
+            case ID:
+                if (requestDetails != null && requestDetails.getId() != null) {
+                    append(line, requestDetails.getId().getValue());
+                }
+                break;
+            case ID_OR_RESOURCE_NAME:
+                if (requestDetails != null) {
+                    if (requestDetails.getId() != null) {
+                        append(line, requestDetails.getId().getValue());
+                    } else {
+                        append(line, requestDetails.getResourceName());
+                    }
+                }
+                break;
+            case SERVLET_PATH:
+                append(line, request.getServletPath());
+                break;
+            case REQUEST_URL:
+                line.append(request.getRequestURL());
+                break;
+            case REQUEST_PARAMETERS:
+                if (requestDetails != null) appendParameters(line, requestDetails.getParameters());
+                break;
+            case REQUEST_HEADER:
+                append(line, request.getHeader(segment.text));
+                break;
+            case PROCESSING_TIME_MILLIS:
+                Date startTime = (Date) request.getAttribute(RestfulServer.REQUEST_START_TIME);
+                if (startTime != null) {
+                    line.append(System.currentTimeMillis() - startTime.getTime());
+                }
+                break;
+            case RESPONSE_CODE:
+                line.append(responseCode);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void append(StringBuilder line, String value) {
+        if (value != null) line.append(value);
+    }
+
+    private static void appendParameters(StringBuilder line, Map<String, String[]> parameters) {
+        if (parameters == null) return;
+        boolean first = true;
+        for (Map.Entry<String, String[]> next : parameters.entrySet()) {
+            for (String nextValue : next.getValue()) {
+                line.append(first ? '?' : '&');
+                first = false;
+                appendEncoded(line, next.getKey());
+                line.append('=');
+                appendEncoded(line, nextValue);
+            }
+        }
+    }
+
+    // application/x-www-form-urlencoded as URLEncoder does it, without the intermediate strings
+    private static void appendEncoded(StringBuilder line, String value) {
+        if (value == null) return;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                appendEncoded(line, c);
+            } else {
+                // Rare enough to allow the encoding of the remainder to allocate
+                for (byte b : value.substring(i).getBytes(StandardCharsets.UTF_8)) {
+                    appendEncoded(line, b & 0xFF);
+                }
+                return;
+            }
+        }
+    }
+
+    private static void appendEncoded(StringBuilder line, int c) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_') {
+            line.append((char) c);
+        } else if (c == ' ') {
+            line.append('+');
+        } else {
+            appendHex(line, c);
+        }
+    }
+
+    private static void appendHex(StringBuilder line, int b) {
+        line.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    private static Segment[] getFormat() {
+        Segment[] segments = format;
+        if (segments == null) {
+            segments = compile(HapiProperties.getLoggerAccessFormat());
+            format = segments;
+        }
+        return segments;
+    }
+
+    private static Segment[] compile(String template) {
+        List<Segment> segments = new ArrayList<>();
+        int position = 0;
+        while (position < template.length()) {
+            int start = template.indexOf("${", position);
+            int end = (start < 0) ? -1 : template.indexOf('}', start);
+            if (start < 0 || end < 0) {
+                segments.add(new Segment(template.substring(position), null));
+                break;
+            }
+            if (start > position) {
+                segments.add(new Segment(template.substring(position, start), null));
+            }
+            String key = template.substring(start + 2, end);
+            Segment field = null;
+            for (Field candidate : Field.values()) {
+                if (candidate == Field.REQUEST_HEADER) {
+                    if (key.startsWith(candidate.key)) {
+                        field = new Segment(key.substring(candidate.key.length()), candidate);
+                        break;
+                    }
+                } else if (candidate.key.equals(key)) {
+                    field = new Segment(null, candidate);
+                    break;
+                }
+            }
+            segments.add(field != null ? field : new Segment("!VAL!", null));
+            position = end + 1;
+        }
+        return segments.toArray(new Segment[0]);
+    }
+}
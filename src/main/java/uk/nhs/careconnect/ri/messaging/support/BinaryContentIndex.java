@@ -0,0 +1,204 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    SHA-256 of Binary content (and content type) to the id of the EDMS Binary already holding it, so a repeated
+    attachment (letterheads, leaflets, standard PDFs) is referenced rather than uploaded again.
+
+    The index is an LRU map of edms.binary.dedup.max_entries, persisted to edms.binary.dedup.file as an append-only
+    log of "digest id" lines which is replayed on startup and rewritten from the map once it holds twice as many lines.
+    A removed entry is logged as "digest " with no id.
+    Entries aren't checked against EDMS, a Binary removed from EDMS has to be cleared here too (CacheStatistics).
+ */
+public class BinaryContentIndex {
+
+    private BinaryContentIndex() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(BinaryContentIndex.class);
+
+    private static Map<String, String> index;
+
+    private static Writer logWriter;
+
+    private static int logLines;
+
+    private static final AtomicLong hits = new AtomicLong();
+
+    private static final AtomicLong misses = new AtomicLong();
+
+    public static boolean isEnabled() {
+        return HapiProperties.getEdmsBinaryDedup();
+    }
+
+    public static String getDigest(byte[] content, String contentType) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(contentType != null ? contentType : "", StandardCharsets.UTF_8).putByte((byte) 0);
+        return hasher.putBytes(content).hash().toString();
+    }
+
+    public static String getDigest(Path content, String contentType) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(contentType != null ? contentType : "", StandardCharsets.UTF_8).putByte((byte) 0);
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream stream = Files.newInputStream(content)) {
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                hasher.putBytes(buffer, 0, read);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /*
+        The EDMS Binary id holding this content, or null.
+     */
+    public static synchronized String get(String digest) {
+        String id = getIndex().get(digest);
+        if (id != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return id;
+    }
+
+    public static synchronized void put(String digest, String binaryId) {
+        getIndex().put(digest, binaryId);
+        append(digest, binaryId);
+    }
+
+    // Caller holds the class lock
+    private static void append(String digest, String binaryId) {
+        try {
+            if (logWriter == null) {
+                logWriter = Files.newBufferedWriter(getLogPath(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            logWriter.write(digest + " " + binaryId + "\n");
+            logWriter.flush();
+            if (++logLines > 2 * HapiProperties.getEdmsBinaryDedupMaxEntries()) {
+                rewrite();
+            }
+        } catch (IOException ex) {
+            log.warn("Unable to persist Binary index {} ({})", getLogPath(), ex.getMessage());
+        }
+    }
+
+    /*
+        Drops the entries pointing at a Binary deleted from EDMS (see DocumentFanOutProcessor).
+     */
+    public static synchronized void remove(String binaryId) {
+        List<String> digests = new ArrayList<>();
+        for (Map.Entry<String, String> entry : getIndex().entrySet()) {
+            if (entry.getValue().equals(binaryId)) digests.add(entry.getKey());
+        }
+        for (String digest : digests) {
+            index.remove(digest);
+            append(digest, "");
+        }
+    }
+
+    public static synchronized void invalidateAll() {
+        getIndex().clear();
+        try {
+            rewrite();
+        } catch (IOException ex) {
+            log.warn("Unable to clear Binary index {} ({})", getLogPath(), ex.getMessage());
+        }
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    public static synchronized long getSize() {
+        return getIndex().size();
+    }
+
+    // Caller holds the class lock
+    private static Map<String, String> getIndex() {
+        if (index == null) {
+            int maxEntries = HapiProperties.getEdmsBinaryDedupMaxEntries();
+            index = new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+            load();
+        }
+        return index;
+    }
+
+    private static void load() {
+        Path path = getLogPath();
+        if (!Files.exists(path)) return;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int split = line.indexOf(' ');
+                // A line cut short by a crash is skipped
+                if (split <= 0) continue;
+                if (split < line.length() - 1) {
+                    index.put(line.substring(0, split), line.substring(split + 1));
+                } else {
+                    index.remove(line.substring(0, split));
+                }
+                logLines++;
+            }
+        } catch (IOException ex) {
+            log.warn("Unable to read Binary index {} ({})", path, ex.getMessage());
+        }
+        log.info("Binary index {} loaded, {} entries", path, index.size());
+    }
+
+    // Rewrites the log with the current entries, least recently used first so a reload keeps the order
+    private static void rewrite() throws IOException {
+        Path path = getLogPath();
+        if (logWriter != null) {
+            logWriter.close();
+            logWriter = null;
+        }
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, "binary-index", ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : index.entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logLines = index.size();
+    }
+
+    private static Path getLogPath() {
+        return Paths.get(HapiProperties.getEdmsBinaryDedupFile());
+    }
+}
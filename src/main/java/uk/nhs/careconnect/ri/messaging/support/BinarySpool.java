@@ -0,0 +1,180 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.apache.camel.util.IOHelper;
+import org.hl7.fhir.dstu3.model.Binary;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+    Moves Binary content out of the bundle model onto disk, and streams it to EDMS from there.
+
+    HAPI has already decoded the base64 into Binary.content by the time a bundle reaches us. spool() writes content of
+    edms.binary.streaming.threshold_bytes or more to a temp file and drops the byte[], so it can be collected before
+    the bundle is resolved. open() then gives the file as the body for the direct:EDMSServer route, which an http4
+    endpoint posts as the raw Binary (chunked, Content-Type from Binary.contentType) rather than as base64 inside XML.
+    release() deletes the files once the bundle is done.
+
+    A FHIR document bundle is posted to EDMS whole, its Binaries included. One with large content is encoded to a
+    file by spoolResource() and streamed from there, rather than held as a String.
+
+    Streaming needs an http endpoint (camel.route.edms), the camel-fhir component takes the resource as text. With
+    that the content is read back into the Binary with load() before it is sent.
+ */
+public class BinarySpool {
+
+    private BinarySpool() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(BinarySpool.class);
+
+    // Binary user data holding the Path of the spooled content
+    private static final String SPOOL_PATH = "uk.nhs.careconnect.ri.messaging.BinarySpool";
+
+    // Binary user data holding the BinaryContentIndex digest, taken while the content is still in memory
+    private static final String SPOOL_DIGEST = "uk.nhs.careconnect.ri.messaging.BinarySpool.digest";
+
+    // Exchange property with the Path of a body written by spoolResource, for EdmsDedupProcessor
+    public static final String SPOOL_FILE_PROPERTY = "BinarySpoolFile";
+
+    public static boolean isEnabled() {
+        return HapiProperties.getEdmsBinaryStreaming();
+    }
+
+    // Whether the EDMS route can be given a stream, see above
+    public static boolean isStreamable() {
+        return isEnabled() && HapiProperties.getCamelRoute("edms").startsWith("http");
+    }
+
+    public static void spool(Bundle bundle) {
+        if (!isEnabled()) return;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (!(entry.getResource() instanceof Binary)) continue;
+            Binary binary = (Binary) entry.getResource();
+            byte[] content = binary.getContent();
+            if (content == null || content.length < HapiProperties.getEdmsBinaryStreamingThresholdBytes()) continue;
+            try {
+                Path path = Files.createTempFile(getDirectory(), "binary", ".spool");
+                Files.write(path, content);
+                binary.setUserData(SPOOL_PATH, path);
+                if (BinaryContentIndex.isEnabled()) {
+                    binary.setUserData(SPOOL_DIGEST, BinaryContentIndex.getDigest(content, binary.getContentType()));
+                }
+                binary.setContent(null);
+                log.debug("Spooled {} bytes of {} to {}", content.length, binary.getContentType(), path);
+            } catch (IOException ex) {
+                // Left in memory and sent the usual way
+                log.warn("Unable to spool Binary content ({})", ex.getMessage());
+            }
+        }
+    }
+
+    public static boolean isSpooled(Binary binary) {
+        return binary.getUserData(SPOOL_PATH) != null;
+    }
+
+    /*
+        BinaryContentIndex digest of the Binary's content, wherever it is held.
+     */
+    public static String getDigest(Binary binary) {
+        String digest = (String) binary.getUserData(SPOOL_DIGEST);
+        if (digest != null) return digest;
+        if (!isSpooled(binary)) {
+            return binary.hasContent() ? BinaryContentIndex.getDigest(binary.getContent(), binary.getContentType()) : null;
+        }
+        try {
+            return BinaryContentIndex.getDigest((Path) binary.getUserData(SPOOL_PATH), binary.getContentType());
+        } catch (IOException ex) {
+            log.warn("Unable to read spooled Binary ({})", ex.getMessage());
+            return null;
+        }
+    }
+
+    /*
+        The spooled content, the caller closes it.
+     */
+    public static InputStream open(Binary binary) throws IOException {
+        return Files.newInputStream((Path) binary.getUserData(SPOOL_PATH));
+    }
+
+    /*
+        Reads the spooled content back into the Binary, for an EDMS route that can't take a stream.
+     */
+    public static void load(Binary binary) throws IOException {
+        binary.setContent(Files.readAllBytes((Path) binary.getUserData(SPOOL_PATH)));
+    }
+
+    /*
+        Whether the Binary content of a bundle reaches edms.binary.streaming.threshold_bytes.
+     */
+    public static boolean hasLargeContent(Bundle bundle) {
+        long bytes = 0;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Binary && ((Binary) entry.getResource()).getContent() != null) {
+                bytes += ((Binary) entry.getResource()).getContent().length;
+            }
+        }
+        return bytes >= HapiProperties.getEdmsBinaryStreamingThresholdBytes();
+    }
+
+    /*
+        Encodes the resource as XML to a temp file and sets the body of the exchange to a stream of it, the file being
+        removed when the stream is closed. The exchange closes it on completion if the endpoint hasn't.
+     */
+    public static void spoolResource(FhirContext ctx, IBaseResource resource, Exchange exchange) throws IOException {
+        Path path = Files.createTempFile(getDirectory(), "resource", ".spool");
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            ctx.newXmlParser().encodeResourceToWriter(resource, writer);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(path);
+            throw ex;
+        }
+        InputStream content = Files.newInputStream(path, StandardOpenOption.DELETE_ON_CLOSE);
+        exchange.addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange done) {
+                IOHelper.close(content);
+            }
+        });
+        exchange.setProperty(SPOOL_FILE_PROPERTY, path);
+        exchange.getIn().setBody(content);
+        log.debug("Spooled {} bytes of {} to {}", Files.size(path), resource.getClass().getSimpleName(), path);
+    }
+
+    public static void release(Bundle bundle) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (!(entry.getResource() instanceof Binary)) continue;
+            Path path = (Path) entry.getResource().getUserData(SPOOL_PATH);
+            if (path == null) continue;
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                log.warn("Unable to delete spooled Binary {} ({})", path, ex.getMessage());
+            }
+            entry.getResource().setUserData(SPOOL_PATH, null);
+        }
+    }
+
+    private static Path getDirectory() throws IOException {
+        String directory = HapiProperties.getEdmsBinarySpoolDirectory();
+        if (directory.isEmpty()) {
+            return Paths.get(System.getProperty("java.io.tmpdir"));
+        }
+        return Files.createDirectories(Paths.get(directory));
+    }
+}
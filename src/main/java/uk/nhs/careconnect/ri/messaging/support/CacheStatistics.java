@@ -0,0 +1,119 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/*
+    Exposes the messaging caches over JMX (and so hawtio/jolokia).
+ */
+@Component
+@ManagedResource(objectName = "uk.nhs.careconnect.ri.messaging:type=CacheStatistics", description = "Messaging cache statistics")
+public class CacheStatistics {
+
+    @ManagedAttribute(description = "Reference data cache hits")
+    public long getReferenceDataHitCount() {
+        return ReferenceDataCache.getStats().hitCount();
+    }
+
+    @ManagedAttribute(description = "Reference data cache misses")
+    public long getReferenceDataMissCount() {
+        return ReferenceDataCache.getStats().missCount();
+    }
+
+    @ManagedAttribute(description = "Reference data cache evictions (size and expiry)")
+    public long getReferenceDataEvictionCount() {
+        return ReferenceDataCache.getStats().evictionCount();
+    }
+
+    @ManagedAttribute(description = "Reference data cache hit rate")
+    public double getReferenceDataHitRate() {
+        return ReferenceDataCache.getStats().hitRate();
+    }
+
+    @ManagedAttribute(description = "Reference data cache entries")
+    public long getReferenceDataSize() {
+        return ReferenceDataCache.getSize();
+    }
+
+    @ManagedOperation(description = "Empty the reference data cache")
+    public void clearReferenceData() {
+        ReferenceDataCache.invalidateAll();
+    }
+
+    @ManagedAttribute(description = "Duplicate bundles answered from the idempotency store")
+    public long getIdempotencyHitCount() {
+        return IdempotencyStore.getStats().hitCount();
+    }
+
+    @ManagedAttribute(description = "Bundles not found in the idempotency store")
+    public long getIdempotencyMissCount() {
+        return IdempotencyStore.getStats().missCount();
+    }
+
+    @ManagedAttribute(description = "Idempotency store entries")
+    public long getIdempotencySize() {
+        return IdempotencyStore.getSize();
+    }
+
+    @ManagedOperation(description = "Empty the idempotency store")
+    public void clearIdempotency() {
+        IdempotencyStore.invalidateAll();
+    }
+
+    @ManagedAttribute(description = "Binary uploads avoided, content already in EDMS")
+    public long getBinaryIndexHitCount() {
+        return BinaryContentIndex.getHitCount();
+    }
+
+    @ManagedAttribute(description = "Binary content not found in the index")
+    public long getBinaryIndexMissCount() {
+        return BinaryContentIndex.getMissCount();
+    }
+
+    @ManagedAttribute(description = "Binary index entries")
+    public long getBinaryIndexSize() {
+        return BinaryContentIndex.getSize();
+    }
+
+    @ManagedOperation(description = "Empty the Binary index")
+    public void clearBinaryIndex() {
+        BinaryContentIndex.invalidateAll();
+    }
+
+    @ManagedAttribute(description = "Validations answered from the validation result cache")
+    public long getValidationHitCount() {
+        return ValidationResultCache.getStats().hitCount();
+    }
+
+    @ManagedAttribute(description = "Validations not found in the validation result cache")
+    public long getValidationMissCount() {
+        return ValidationResultCache.getStats().missCount();
+    }
+
+    @ManagedAttribute(description = "Validation result cache evictions (size and expiry)")
+    public long getValidationEvictionCount() {
+        return ValidationResultCache.getStats().evictionCount();
+    }
+
+    @ManagedAttribute(description = "Validation result cache hit rate")
+    public double getValidationHitRate() {
+        return ValidationResultCache.getStats().hitRate();
+    }
+
+    @ManagedAttribute(description = "Validation result cache entries")
+    public long getValidationSize() {
+        return ValidationResultCache.getSize();
+    }
+
+    @ManagedAttribute(description = "Estimated bytes held by the validation result cache")
+    public long getValidationBytes() {
+        return ValidationResultCache.getWeight();
+    }
+
+    @ManagedOperation(description = "Empty the validation result cache")
+    public void clearValidation() {
+        ValidationResultCache.invalidateAll();
+    }
+}
@@ -0,0 +1,396 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Isolation for calls to one downstream server (epr, edms, ods, tkw), settings are the resilience.* properties.
+
+    Bulkhead: at most max_concurrent calls are in flight, up to max_queue more wait queue_timeout_millis for a slot and
+    anything beyond that is rejected, so a slow server holds a bounded number of our threads.
+
+    Circuit breaker: the outcome of the last breaker.window calls is kept. Once at least min_calls have been made and
+    failure_percent of them failed the breaker opens and calls are rejected without being tried. After open_millis it
+    lets half_open_calls probes through, closing if they succeed and opening again if one fails.
+
+    Timeout: the timeout.percentile latency of recent successful calls times timeout.multiplier, kept between
+    timeout.min_millis and timeout.max_millis. Until enough calls have been seen it is max_millis.
+
+    Calls are made through DownstreamExecChain (FHIR clients) and DownstreamProcessor (Camel endpoints).
+ */
+public class Downstream {
+
+    private static final Logger log = LoggerFactory.getLogger(Downstream.class);
+
+    private static final ConcurrentMap<String, Downstream> downstreams = new ConcurrentHashMap<>();
+
+    // host:port of the configured server bases to the downstream name, built on first use
+    private static volatile Map<String, String> hostNames;
+
+    static {
+        // Bulkhead and breaker settings apply from the next restart, in-flight calls hold permits on the current ones
+        HapiProperties.addChangeListener(changed -> {
+            for (String name : changed) {
+                if (name.startsWith("server.base.")) hostNames = null;
+            }
+        });
+    }
+
+    private static final int LATENCY_SAMPLES = 256;
+
+    // The timeout is recalculated after this many calls
+    private static final int TIMEOUT_INTERVAL = 32;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+
+    private final int maxConcurrent;
+
+    private final Semaphore slots;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final int maxQueue;
+
+    private final long queueTimeoutMillis;
+
+    private final int minCalls;
+
+    private final int failurePercent;
+
+    private final long openMillis;
+
+    private final int halfOpenCalls;
+
+    private final int retryMaxAttempts;
+
+    private final long retryBackoffMillis;
+
+    private final long retryMaxBackoffMillis;
+
+    private final int timeoutPercentile;
+
+    private final int timeoutMultiplier;
+
+    private final int timeoutMinMillis;
+
+    private final int timeoutMaxMillis;
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private final boolean[] outcomes;
+    private int outcomeIndex;
+    private int outcomeCount;
+    private int failureCount;
+    private long openedAt;
+    private int probes;
+
+    // Guarded by latencies
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyIndex;
+    private int latencyCount;
+
+    private volatile int timeoutMillis;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    private Downstream(String name) {
+        this.name = name;
+        this.maxConcurrent = HapiProperties.getResilienceMaxConcurrent(name);
+        this.slots = new Semaphore(maxConcurrent, true);
+        this.maxQueue = HapiProperties.getResilienceMaxQueue(name);
+        this.queueTimeoutMillis = HapiProperties.getResilienceQueueTimeoutMillis(name);
+        this.outcomes = new boolean[HapiProperties.getResilienceBreakerWindow(name)];
+        this.minCalls = HapiProperties.getResilienceBreakerMinCalls(name);
+        this.failurePercent = HapiProperties.getResilienceBreakerFailurePercent(name);
+        this.openMillis = HapiProperties.getResilienceBreakerOpenMillis(name);
+        this.halfOpenCalls = HapiProperties.getResilienceBreakerHalfOpenCalls(name);
+        this.retryMaxAttempts = HapiProperties.getResilienceRetryMaxAttempts(name);
+        this.retryBackoffMillis = HapiProperties.getResilienceRetryBackoffMillis(name);
+        this.retryMaxBackoffMillis = HapiProperties.getResilienceRetryMaxBackoffMillis(name);
+        this.timeoutPercentile = HapiProperties.getResilienceTimeoutPercentile(name);
+        this.timeoutMultiplier = HapiProperties.getResilienceTimeoutMultiplier(name);
+        this.timeoutMinMillis = HapiProperties.getResilienceTimeoutMinMillis(name);
+        this.timeoutMaxMillis = HapiProperties.getResilienceTimeoutMaxMillis(name);
+        this.timeoutMillis = timeoutMaxMillis;
+    }
+
+    public static boolean isEnabled() {
+        return HapiProperties.getResilience();
+    }
+
+    public static Downstream get(String name) {
+        return downstreams.computeIfAbsent(name, Downstream::new);
+    }
+
+    /*
+        The downstream for a host and port, named after the server base it belongs to or host:port otherwise.
+     */
+    public static Downstream forHost(String host, int port) {
+        String key = host.toLowerCase() + ":" + port;
+        String name = getHostNames().get(key);
+        return get(name != null ? name : key);
+    }
+
+    public static Collection<Downstream> getAll() {
+        return downstreams.values();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /*
+        Takes a slot in the bulkhead, throws DownstreamUnavailableException if the breaker is open or the bulkhead is
+        full. The permit has to be released.
+     */
+    public Permit acquire() throws DownstreamUnavailableException {
+        boolean probe = allowCall();
+        if (waiting.incrementAndGet() > maxQueue + slots.availablePermits()) {
+            waiting.decrementAndGet();
+            endProbe(probe);
+            rejections.incrementAndGet();
+            throw new DownstreamUnavailableException(name + " has too many calls waiting");
+        }
+        try {
+            if (!slots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                endProbe(probe);
+                rejections.incrementAndGet();
+                throw new DownstreamUnavailableException(name + " has no free slot after " + queueTimeoutMillis + "ms");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            endProbe(probe);
+            throw new DownstreamUnavailableException(name + " call interrupted");
+        } finally {
+            waiting.decrementAndGet();
+        }
+        calls.incrementAndGet();
+        return new Permit(probe);
+    }
+
+    public int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public int getRetryMaxAttempts() {
+        return retryMaxAttempts;
+    }
+
+    /*
+        Full jitter backoff before retry number attempt (1 based), random up to backoff_millis * 2^(attempt-1).
+     */
+    public long getRetryDelayMillis(int attempt) {
+        retries.incrementAndGet();
+        long ceiling = Math.min(retryMaxBackoffMillis, retryBackoffMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    public synchronized State getState() {
+        // Reported as half open once a probe would be allowed
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) return State.HALF_OPEN;
+        return state;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public int getActive() {
+        return maxConcurrent - slots.availablePermits();
+    }
+
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    public long getLatencyPercentile(int percentile) {
+        synchronized (latencies) {
+            if (latencyCount == 0) return 0;
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            return sorted[Math.min(latencyCount - 1, latencyCount * percentile / 100)];
+        }
+    }
+
+    public synchronized void reset() {
+        state = State.CLOSED;
+        Arrays.fill(outcomes, false);
+        outcomeIndex = 0;
+        outcomeCount = 0;
+        failureCount = 0;
+        probes = 0;
+        log.info("Circuit breaker for {} reset", name);
+    }
+
+    // Returns true if the call is a half open probe
+    private synchronized boolean allowCall() throws DownstreamUnavailableException {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                rejections.incrementAndGet();
+                throw new DownstreamUnavailableException(name + " circuit breaker is open");
+            }
+            state = State.HALF_OPEN;
+            probes = 0;
+            log.info("Circuit breaker for {} half open", name);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probes >= halfOpenCalls) {
+                rejections.incrementAndGet();
+                throw new DownstreamUnavailableException(name + " circuit breaker is half open");
+            }
+            probes++;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void endProbe(boolean probe) {
+        if (probe && state == State.HALF_OPEN) probes--;
+    }
+
+    private synchronized void recordOutcome(boolean probe, boolean success) {
+        if (!success) failures.incrementAndGet();
+        if (state == State.HALF_OPEN) {
+            if (!probe) return;
+            probes--;
+            if (success) {
+                state = State.CLOSED;
+                Arrays.fill(outcomes, false);
+                outcomeIndex = 0;
+                outcomeCount = 0;
+                failureCount = 0;
+                log.info("Circuit breaker for {} closed", name);
+            } else {
+                open();
+            }
+            return;
+        }
+        if (state != State.CLOSED) return;
+
+        if (outcomeCount == outcomes.length) {
+            if (outcomes[outcomeIndex]) failureCount--;
+        } else {
+            outcomeCount++;
+        }
+        outcomes[outcomeIndex] = !success;
+        if (!success) failureCount++;
+        outcomeIndex = (outcomeIndex + 1) % outcomes.length;
+
+        if (outcomeCount >= minCalls && failureCount * 100 >= failurePercent * outcomeCount) {
+            open();
+        }
+    }
+
+    // Caller holds the lock
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        log.warn("Circuit breaker for {} open for {}ms ({} of the last {} calls failed)", name, openMillis, failureCount, outcomeCount);
+    }
+
+    private void recordLatency(long millis) {
+        synchronized (latencies) {
+            latencies[latencyIndex] = millis;
+            latencyIndex = (latencyIndex + 1) % LATENCY_SAMPLES;
+            if (latencyCount < LATENCY_SAMPLES) latencyCount++;
+            if (latencyIndex % TIMEOUT_INTERVAL != 0 || latencyCount < TIMEOUT_INTERVAL) return;
+        }
+        long timeout = getLatencyPercentile(timeoutPercentile) * timeoutMultiplier;
+        timeoutMillis = (int) Math.max(timeoutMinMillis, Math.min(timeoutMaxMillis, timeout));
+    }
+
+    private static Map<String, String> getHostNames() {
+        if (hostNames == null) {
+            Map<String, String> names = new ConcurrentHashMap<>();
+            for (String system : new String[] { "epr", "edms", "ods" }) {
+                addHostName(names, system, HapiProperties.getServerBase(system));
+            }
+            hostNames = names;
+        }
+        return hostNames;
+    }
+
+    private static void addHostName(Map<String, String> names, String system, String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() == null) return;
+            int port = uri.getPort();
+            if (port == -1) port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+            names.putIfAbsent(uri.getHost().toLowerCase() + ":" + port, system);
+        } catch (Exception ex) {
+            log.debug("Server base for {} is not a URL ({})", system, url);
+        }
+    }
+
+    /*
+        A slot in the bulkhead. release() records the outcome and frees the slot, timedOut() records a failure while
+        the call is still running (it keeps its slot until it finishes).
+     */
+    public class Permit {
+
+        private final boolean probe;
+
+        private final long started = System.nanoTime();
+
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(boolean probe) {
+            this.probe = probe;
+        }
+
+        public void timedOut() {
+            timeouts.incrementAndGet();
+            if (recorded.compareAndSet(false, true)) {
+                recordOutcome(probe, false);
+            }
+        }
+
+        public void release(boolean success) {
+            if (!released.compareAndSet(false, true)) return;
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            if (success) recordLatency(millis);
+            if (recorded.compareAndSet(false, true)) {
+                recordOutcome(probe, success);
+            }
+            slots.release();
+        }
+    }
+}
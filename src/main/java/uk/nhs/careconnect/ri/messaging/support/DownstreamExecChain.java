@@ -0,0 +1,85 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/*
+    Runs each request of the pooled FHIR client (see FhirClientRegistry) through the Downstream for its target host:
+    bulkhead and circuit breaker, the downstream's current timeout as the socket timeout, and retries of GETs which
+    failed with an IOException or a 502, 503 or 504, after a jittered backoff.
+
+    5xx responses and IOExceptions count as failures, other responses (404 included) as successes.
+ */
+public class DownstreamExecChain implements ClientExecChain {
+
+    private static final Logger log = LoggerFactory.getLogger(DownstreamExecChain.class);
+
+    private final ClientExecChain next;
+
+    public DownstreamExecChain(ClientExecChain next) {
+        this.next = next;
+    }
+
+    @Override
+    public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+                                         HttpExecutionAware execAware) throws IOException, HttpException {
+        if (!Downstream.isEnabled()) {
+            return next.execute(route, request, context, execAware);
+        }
+        HttpHost target = route.getTargetHost();
+        Downstream downstream = Downstream.forHost(target.getHostName(), target.getPort());
+        boolean retryable = "GET".equals(request.getRequestLine().getMethod());
+
+        RequestConfig config = context.getRequestConfig();
+        context.setRequestConfig(RequestConfig.copy(config).setSocketTimeout(downstream.getTimeoutMillis()).build());
+
+        for (int attempt = 1; ; attempt++) {
+            Downstream.Permit permit = downstream.acquire();
+            CloseableHttpResponse response;
+            try {
+                response = next.execute(route, request, context, execAware);
+            } catch (IOException ex) {
+                if (ex instanceof SocketTimeoutException) permit.timedOut();
+                permit.release(false);
+                if (!retry(downstream, retryable, attempt, execAware)) throw ex;
+                log.debug("Retrying GET {} after {}", request.getRequestLine().getUri(), ex.getMessage());
+                continue;
+            } catch (HttpException | RuntimeException ex) {
+                permit.release(false);
+                throw ex;
+            }
+            int status = response.getStatusLine().getStatusCode();
+            permit.release(status < 500);
+            if ((status == 502 || status == 503 || status == 504) && retry(downstream, retryable, attempt, execAware)) {
+                log.debug("Retrying GET {} after {}", request.getRequestLine().getUri(), status);
+                response.close();
+                continue;
+            }
+            return response;
+        }
+    }
+
+    private boolean retry(Downstream downstream, boolean retryable, int attempt, HttpExecutionAware execAware) {
+        if (!retryable || attempt >= downstream.getRetryMaxAttempts()) return false;
+        if (execAware != null && execAware.isAborted()) return false;
+        try {
+            Thread.sleep(downstream.getRetryDelayMillis(attempt));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+}
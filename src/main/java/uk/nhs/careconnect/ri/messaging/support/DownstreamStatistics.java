@@ -0,0 +1,49 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+    Exposes the state of each downstream server (see Downstream) over JMX (and so hawtio/jolokia).
+ */
+@Component
+@ManagedResource(objectName = "uk.nhs.careconnect.ri.messaging:type=DownstreamStatistics", description = "Downstream server bulkheads, circuit breakers and timeouts")
+public class DownstreamStatistics {
+
+    @ManagedAttribute(description = "Per downstream breaker state, calls, failures, rejections, timeouts, retries, active and waiting calls, latency and current timeout")
+    public Map<String, Map<String, Object>> getDownstreams() {
+        Map<String, Map<String, Object>> downstreams = new TreeMap<>();
+        for (Downstream downstream : Downstream.getAll()) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("state", downstream.getState().name());
+            values.put("calls", downstream.getCalls());
+            values.put("failures", downstream.getFailures());
+            values.put("rejections", downstream.getRejections());
+            values.put("timeouts", downstream.getTimeouts());
+            values.put("retries", downstream.getRetries());
+            values.put("active", downstream.getActive());
+            values.put("waiting", downstream.getWaiting());
+            values.put("latencyP50Millis", downstream.getLatencyPercentile(50));
+            values.put("latencyP99Millis", downstream.getLatencyPercentile(99));
+            values.put("timeoutMillis", downstream.getTimeoutMillis());
+            downstreams.put(downstream.getName(), values);
+        }
+        return downstreams;
+    }
+
+    @ManagedOperation(description = "Close the circuit breaker of a downstream")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "name", description = "Downstream name, e.g. epr, edms, ods or tkw")
+    })
+    public void resetCircuitBreaker(String name) {
+        Downstream.get(name).reset();
+    }
+}
@@ -0,0 +1,14 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import java.io.IOException;
+
+/*
+    A call not made because the downstream's circuit breaker is open or its bulkhead is full (see Downstream), or not
+    answered within the downstream's timeout. An IOException so the FHIR client reports it as a connection failure.
+ */
+public class DownstreamUnavailableException extends IOException {
+
+    public DownstreamUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,141 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Holds one DSTU3 FhirContext and one IGenericClient per server base for the lifetime of the application.
+
+    Building a FhirContext scans the model classes and a new client pays the TCP/TLS handshake on first call,
+    so both are shared here. IGenericClient is thread safe provided interceptors are not changed after creation.
+ */
+public class FhirClientRegistry {
+
+    private FhirClientRegistry() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(FhirClientRegistry.class);
+
+    private static final ConcurrentMap<String, IGenericClient> clients = new ConcurrentHashMap<>();
+
+    private static FhirContext ctx;
+
+    private static CloseableHttpClient httpClient;
+
+    private static PoolingHttpClientConnectionManager connectionManager;
+
+    // The client's default config, replaced per request by requestConfig
+    private static RequestConfig defaultRequestConfig;
+
+    private static volatile RequestConfig requestConfig;
+
+    static {
+        // Pool sizes and timeouts follow a reload, client.keep_alive_millis needs a restart
+        HapiProperties.addChangeListener(changed -> {
+            for (String name : changed) {
+                if (name.startsWith("client.pool.") || name.startsWith("client.timeout.")) {
+                    reconfigure();
+                    return;
+                }
+            }
+        });
+    }
+
+    public static synchronized FhirContext getContext() {
+        if (ctx == null) {
+            FhirContext newCtx = FhirContext.forDstu3();
+
+            int keepAlive = HapiProperties.getClientKeepAliveMillis();
+
+            connectionManager = new PoolingHttpClientConnectionManager(keepAlive, TimeUnit.MILLISECONDS);
+            connectionManager.setMaxTotal(HapiProperties.getClientPoolMaxTotal());
+            connectionManager.setDefaultMaxPerRoute(HapiProperties.getClientPoolMaxPerRoute());
+
+            defaultRequestConfig = getRequestConfig();
+            requestConfig = defaultRequestConfig;
+
+            // Each request goes through the Downstream of its host, which also retries GETs (see DownstreamExecChain),
+            // and carries the X-Request-ID of the message (see TracingExecChain)
+            boolean resilience = Downstream.isEnabled();
+            HttpClientBuilder builder = new HttpClientBuilder() {
+                @Override
+                protected ClientExecChain decorateProtocolExec(ClientExecChain protocolExec) {
+                    ClientExecChain chain = new TracingExecChain(resilience ? new DownstreamExecChain(protocolExec) : protocolExec);
+                    // Timeouts are taken at each request, so a reload applies from the next call. A request with
+                    // a config of its own keeps it.
+                    return (route, request, context, execAware) -> {
+                        if (context.getRequestConfig() == defaultRequestConfig) context.setRequestConfig(requestConfig);
+                        return chain.execute(route, request, context, execAware);
+                    };
+                }
+            };
+            if (resilience) {
+                builder.disableAutomaticRetries();
+            }
+            httpClient = builder
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(defaultRequestConfig)
+                    // Honour the server keep-alive header but never hold a connection longer than configured
+                    .setKeepAliveStrategy((response, context) -> {
+                        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return (duration > 0 && duration < keepAlive) ? duration : keepAlive;
+                    })
+                    .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                    .build();
+
+            ApacheRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(newCtx);
+            clientFactory.setConnectTimeout(HapiProperties.getClientConnectTimeout());
+            clientFactory.setSocketTimeout(HapiProperties.getClientSocketTimeout());
+            clientFactory.setPoolMaxTotal(HapiProperties.getClientPoolMaxTotal());
+            clientFactory.setPoolMaxPerRoute(HapiProperties.getClientPoolMaxPerRoute());
+            clientFactory.setHttpClient(httpClient);
+            newCtx.setRestfulClientFactory(clientFactory);
+
+            log.info("FHIR client pool created maxTotal={} maxPerRoute={}", HapiProperties.getClientPoolMaxTotal(), HapiProperties.getClientPoolMaxPerRoute());
+            ctx = newCtx;
+        }
+        return ctx;
+    }
+
+    private static RequestConfig getRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(HapiProperties.getClientConnectTimeout())
+                .setConnectionRequestTimeout(HapiProperties.getClientConnectTimeout())
+                .setSocketTimeout(HapiProperties.getClientSocketTimeout())
+                .build();
+    }
+
+    private static synchronized void reconfigure() {
+        if (ctx == null) return;
+        connectionManager.setMaxTotal(HapiProperties.getClientPoolMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(HapiProperties.getClientPoolMaxPerRoute());
+        requestConfig = getRequestConfig();
+        log.info("FHIR client pool reconfigured maxTotal={} maxPerRoute={}", HapiProperties.getClientPoolMaxTotal(), HapiProperties.getClientPoolMaxPerRoute());
+    }
+
+    public static IGenericClient getClient(String serverBase) {
+        return clients.computeIfAbsent(serverBase, base -> {
+            log.info("Creating FHIR client for {}", base);
+            return getContext().newRestfulGenericClient(base);
+        });
+    }
+
+    public static IGenericClient getServerClient(String system) {
+        return getClient(HapiProperties.getServerBase(system));
+    }
+}
@@ -0,0 +1,216 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Final responses to bundles, so an exact resubmission of a bundle can be answered without processing it again.
+
+    Keys are a SHA-256 over the route, Bundle.identifier and a SHA-256 of the bundle content (see IdempotentProcessor).
+    Responses are held on disk in idempotency.directory, one file per key, and only the index is held in memory.
+    The index is bounded by idempotency.max_entries and entries expire idempotency.ttl_seconds after they are stored,
+    the file going with the entry. On startup the index is rebuilt from the directory.
+ */
+public class IdempotencyStore {
+
+    private IdempotencyStore() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyStore.class);
+
+    private static final String SUFFIX = ".response";
+
+    // Exchange header with getContentHash of the request as received, set by the providers
+    public static final String CONTENT_HASH_HEADER = "BundleContentHash";
+
+    public static class StoredResponse {
+        private final int responseCode;
+        private final String location;
+        private final String body;
+
+        private StoredResponse(int responseCode, String location, String body) {
+            this.responseCode = responseCode;
+            this.location = location;
+            this.body = body;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        // Location of the DocumentReference (if any), empty otherwise
+        public String getLocation() {
+            return location;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    // Streams a response body to the store's file, so a large bundle isn't built as a String first
+    @FunctionalInterface
+    public interface BodyWriter {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    // Key -> time stored, the response itself is on disk
+    private static Cache<String, Long> index;
+
+    static {
+        // The index is built with its bounds, a new one is loaded from the directory. The old index is dropped
+        // rather than invalidated, so its files stay.
+        HapiProperties.addChangeListener(changed -> {
+            for (String name : changed) {
+                // The wait is read per request by IdempotentProcessor
+                if (name.startsWith("idempotency.") && !name.equals("idempotency.wait_seconds")) {
+                    synchronized (IdempotencyStore.class) {
+                        index = null;
+                    }
+                    return;
+                }
+            }
+        });
+    }
+
+    private static synchronized Cache<String, Long> getIndex() {
+        if (index == null) {
+            index = CacheBuilder.newBuilder()
+                    .maximumSize(HapiProperties.getIdempotencyMaxEntries())
+                    .expireAfterWrite(HapiProperties.getIdempotencyTtlSeconds(), TimeUnit.SECONDS)
+                    .recordStats()
+                    .<String, Long>removalListener(notification -> {
+                        if (notification.getCause() != RemovalCause.REPLACED) delete(notification.getKey());
+                    })
+                    .build();
+            load(index);
+        }
+        return index;
+    }
+
+    public static boolean isEnabled() {
+        return HapiProperties.getIdempotency();
+    }
+
+    public static String getContentHash(byte[] content) {
+        return Hashing.sha256().hashBytes(content).toString();
+    }
+
+    // For content written in parts, hash().toString() gives the same as getContentHash
+    public static Hasher newContentHasher() {
+        return Hashing.sha256().newHasher();
+    }
+
+    public static String getKey(String route, String system, String value, String contentHash) {
+        return Hashing.sha256().hashString(route + "|" + system + "|" + value + "|" + contentHash, StandardCharsets.UTF_8).toString();
+    }
+
+    public static StoredResponse get(String key) {
+        if (getIndex().getIfPresent(key) == null) return null;
+        Path path = getPath(key);
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            int responseCode = Integer.parseInt(reader.readLine());
+            String location = reader.readLine();
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, read);
+            }
+            return new StoredResponse(responseCode, location, body.toString());
+        } catch (Exception ex) {
+            log.warn("Ignoring unreadable idempotency file {} ({})", path, ex.getMessage());
+            getIndex().invalidate(key);
+            return null;
+        }
+    }
+
+    /*
+        Returns false if the response couldn't be stored.
+     */
+    public static boolean put(String key, int responseCode, String location, BodyWriter body) {
+        Path path = getPath(key);
+        try {
+            Files.createDirectories(path.getParent());
+            // Write then move so a reader never sees a partial file
+            Path temp = Files.createTempFile(path.getParent(), key, ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(Integer.toString(responseCode));
+                writer.write('\n');
+                writer.write(location != null ? location : "");
+                writer.write('\n');
+                body.writeTo(writer);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            getIndex().put(key, System.currentTimeMillis());
+            return true;
+        } catch (IOException ex) {
+            log.warn("Unable to persist idempotency file {} ({})", path, ex.getMessage());
+            return false;
+        }
+    }
+
+    public static void invalidateAll() {
+        getIndex().invalidateAll();
+    }
+
+    public static CacheStats getStats() {
+        return getIndex().stats();
+    }
+
+    public static long getSize() {
+        return getIndex().size();
+    }
+
+    private static void load(Cache<String, Long> index) {
+        Path directory = Paths.get(HapiProperties.getIdempotencyDirectory());
+        if (!Files.isDirectory(directory)) return;
+        long expired = System.currentTimeMillis() - HapiProperties.getIdempotencyTtlSeconds() * 1000L;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long stored = Files.getLastModifiedTime(file).toMillis();
+                if (stored < expired) {
+                    Files.deleteIfExists(file);
+                } else {
+                    // Expiry is from the time of loading, at most ttl_seconds longer than the original
+                    index.put(name.substring(0, name.length() - SUFFIX.length()), stored);
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Unable to load idempotency directory {} ({})", directory, ex.getMessage());
+        }
+        log.info("Idempotency store {} loaded, {} responses", directory, index.size());
+    }
+
+    private static void delete(String key) {
+        try {
+            Files.deleteIfExists(getPath(key));
+        } catch (IOException ex) {
+            log.warn("Unable to delete idempotency file for {} ({})", key, ex.getMessage());
+        }
+    }
+
+    private static Path getPath(String key) {
+        return Paths.get(HapiProperties.getIdempotencyDirectory(), key + SUFFIX);
+    }
+}
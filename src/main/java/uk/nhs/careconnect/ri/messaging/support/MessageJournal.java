@@ -0,0 +1,371 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/*
+    Append-only journal of bundles accepted for asynchronous processing, so an accepted bundle survives a restart.
+
+    The journal is a directory of memory-mapped segment files (segment-<n>.log) of messaging.journal.segment_bytes.
+    Each record is:
+
+        int length (bytes after this field) | byte type | long sequence | int crc32 (type, sequence, payload) | payload
+
+    An APPEND record holds the status id, the content hash of the request as received (IdempotencyStore, empty if
+    there wasn't one) and the bundle, each of the first two ending in a newline. A COMMIT record (no payload) marks the APPEND with the same
+    sequence as processed. The length is written last, so a record torn by a crash reads as the end of the segment.
+
+    messaging.journal.fsync controls durability of APPEND records before the bundle is acknowledged:
+        always   - forced to disk before append returns (concurrent appends share one force)
+        interval - forced every messaging.journal.fsync_interval_millis
+        none     - left to the operating system
+
+    Compaction deletes the oldest segments once every APPEND in them, and in all older segments, is committed.
+    On startup recover() returns the APPENDs without a COMMIT so they can be queued again.
+ */
+public class MessageJournal {
+
+    private MessageJournal() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MessageJournal.class);
+
+    // Exchange header carrying the journal sequence through the seda queue
+    public static final String SEQUENCE_HEADER = "MessageJournalSequence";
+
+    private static final byte APPEND = 1;
+
+    private static final byte COMMIT = 2;
+
+    // type, sequence and crc
+    private static final int RECORD_HEADER_BYTES = 13;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public static class JournalEntry {
+        private final long sequence;
+        private final String statusId;
+        private final String contentHash;
+        private final String body;
+
+        private JournalEntry(long sequence, String statusId, String contentHash, String body) {
+            this.sequence = sequence;
+            this.statusId = statusId;
+            this.contentHash = contentHash;
+            this.body = body;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getStatusId() {
+            return statusId;
+        }
+
+        // Null if the bundle was journaled without one
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path path;
+        // Null once the segment is no longer written to
+        private MappedByteBuffer buffer;
+        private int outstanding;
+
+        private Segment(long id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    private static final Object writeLock = new Object();
+
+    private static final Object flushLock = new Object();
+
+    // Guarded by writeLock
+    private static final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private static Segment active;
+    private static long nextSegmentId = 1;
+    private static long nextSequence = 1;
+    private static long writes = 0;
+
+    // Guarded by flushLock
+    private static long flushedWrites = 0;
+
+    // Uncommitted APPEND sequence -> segment id
+    private static final Map<Long, Long> pending = new ConcurrentHashMap<>();
+
+    private static Path directory;
+
+    private static List<JournalEntry> recovered;
+
+    private static ScheduledExecutorService flusher;
+
+    public static boolean isEnabled() {
+        return HapiProperties.getMessagingJournal();
+    }
+
+    /*
+        Bundles accepted but not processed before the last shutdown. Returns them once, later calls return an empty list.
+     */
+    public static synchronized List<JournalEntry> recover() {
+        open();
+        List<JournalEntry> entries = recovered;
+        recovered = new ArrayList<>();
+        return entries;
+    }
+
+    /*
+        Journals the bundle, returning the sequence to commit once processing completes.
+     */
+    public static long append(String statusId, String contentHash, byte[] body) {
+        open();
+        // Written to the segment as two parts rather than joined into one payload first
+        byte[] prefix = (statusId + "\n" + (contentHash != null ? contentHash : "") + "\n").getBytes(StandardCharsets.UTF_8);
+        long sequence;
+        long write;
+        synchronized (writeLock) {
+            sequence = nextSequence++;
+            write = write(APPEND, sequence, prefix, body);
+            pending.put(sequence, active.id);
+            active.outstanding++;
+        }
+        if ("always".equalsIgnoreCase(HapiProperties.getMessagingJournalFsync())) {
+            flush(write);
+        }
+        return sequence;
+    }
+
+    public static void commit(long sequence) {
+        open();
+        synchronized (writeLock) {
+            write(COMMIT, sequence, EMPTY, EMPTY);
+            Long segmentId = pending.remove(sequence);
+            Segment segment = (segmentId != null) ? segments.get(segmentId) : null;
+            if (segment != null) segment.outstanding--;
+            compact();
+        }
+    }
+
+    /*
+        Closes the journal, the next call opens it again from the directory as a restart would.
+     */
+    static synchronized void close() {
+        synchronized (writeLock) {
+            if (active != null) active.buffer.force();
+            segments.clear();
+            pending.clear();
+            active = null;
+            nextSegmentId = 1;
+            nextSequence = 1;
+            writes = 0;
+        }
+        synchronized (flushLock) {
+            flushedWrites = 0;
+        }
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        directory = null;
+        recovered = null;
+    }
+
+    private static synchronized void open() {
+        if (directory != null) return;
+        Path path = Paths.get(HapiProperties.getMessagingJournalDirectory());
+        try {
+            Files.createDirectories(path);
+            recovered = replay(path);
+        } catch (IOException ex) {
+            throw new InternalErrorException("Unable to open message journal " + path + " (" + ex.getMessage() + ")");
+        }
+        if ("interval".equalsIgnoreCase(HapiProperties.getMessagingJournalFsync())) {
+            long interval = HapiProperties.getMessagingJournalFsyncIntervalMillis();
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(() -> flush(Long.MAX_VALUE), interval, interval, TimeUnit.MILLISECONDS);
+        }
+        directory = path;
+        log.info("Message journal {} opened, {} uncommitted bundles", path, recovered.size());
+    }
+
+    private static List<JournalEntry> replay(Path path) throws IOException {
+        Map<Long, Segment> found = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "segment-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long id = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+                found.put(id, new Segment(id, file));
+            }
+        }
+
+        Map<Long, JournalEntry> uncommitted = new LinkedHashMap<>();
+        Map<Long, Long> entrySegments = new LinkedHashMap<>();
+        long maxSequence = 0;
+        for (Segment segment : found.values()) {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            while (buffer.remaining() >= 4 + RECORD_HEADER_BYTES) {
+                int length = buffer.getInt();
+                if (length < RECORD_HEADER_BYTES || length > buffer.remaining()) break;
+                byte type = buffer.get();
+                long sequence = buffer.getLong();
+                int crc = buffer.getInt();
+                byte[] payload = new byte[length - RECORD_HEADER_BYTES];
+                buffer.get(payload);
+                if (crc != checksum(type, sequence, payload, EMPTY)) {
+                    log.warn("Journal {} has a damaged record at sequence {}, ignoring the rest of the segment", segment.path, sequence);
+                    break;
+                }
+                maxSequence = Math.max(maxSequence, sequence);
+                if (type == APPEND) {
+                    String record = new String(payload, StandardCharsets.UTF_8);
+                    int split = record.indexOf('\n');
+                    int hashSplit = record.indexOf('\n', split + 1);
+                    String contentHash = record.substring(split + 1, hashSplit);
+                    uncommitted.put(sequence, new JournalEntry(sequence, record.substring(0, split),
+                            contentHash.isEmpty() ? null : contentHash, record.substring(hashSplit + 1)));
+                    entrySegments.put(sequence, segment.id);
+                } else if (type == COMMIT) {
+                    uncommitted.remove(sequence);
+                }
+            }
+        }
+
+        synchronized (writeLock) {
+            segments.putAll(found);
+            for (Long sequence : uncommitted.keySet()) {
+                Long segmentId = entrySegments.get(sequence);
+                pending.put(sequence, segmentId);
+                segments.get(segmentId).outstanding++;
+            }
+            if (!segments.isEmpty()) nextSegmentId = segments.lastKey() + 1;
+            nextSequence = maxSequence + 1;
+            compact();
+        }
+        return new ArrayList<>(uncommitted.values());
+    }
+
+    // Caller holds writeLock
+    private static long write(byte type, long sequence, byte[] prefix, byte[] payload) {
+        int length = RECORD_HEADER_BYTES + prefix.length + payload.length;
+        try {
+            if (active == null || active.buffer.remaining() < 4 + length) {
+                roll(4 + length);
+            }
+        } catch (IOException ex) {
+            throw new InternalErrorException("Unable to write message journal (" + ex.getMessage() + ")");
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.put(type).putLong(sequence).putInt(checksum(type, sequence, prefix, payload)).put(prefix).put(payload);
+        buffer.putInt(start, length);
+        return ++writes;
+    }
+
+    // Caller holds writeLock
+    private static void roll(int minimum) throws IOException {
+        if (active != null) {
+            active.buffer.force();
+            active.buffer = null;
+        }
+        long id = nextSegmentId++;
+        Segment segment = new Segment(id, directory.resolve(String.format("segment-%020d.log", id)));
+        int capacity = Math.max(HapiProperties.getMessagingJournalSegmentBytes(), minimum);
+        try (RandomAccessFile file = new RandomAccessFile(segment.path.toFile(), "rw")) {
+            file.setLength(capacity);
+            segment.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        segments.put(id, segment);
+        active = segment;
+        compact();
+    }
+
+    /*
+        Forces the active segment. Threads waiting on the lock usually find their write already forced by the previous
+        holder, so concurrent appends share one force.
+     */
+    private static void flush(long write) {
+        synchronized (flushLock) {
+            if (flushedWrites >= write) return;
+            MappedByteBuffer buffer;
+            long upTo;
+            synchronized (writeLock) {
+                if (active == null) return;
+                buffer = active.buffer;
+                upTo = writes;
+            }
+            // Earlier segments were forced when they were rolled
+            buffer.force();
+            flushedWrites = upTo;
+        }
+    }
+
+    // Caller holds writeLock
+    private static void compact() {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active || segment.outstanding > 0) return;
+            try {
+                Files.deleteIfExists(segment.path);
+                log.debug("Journal segment {} compacted", segment.path);
+            } catch (IOException ex) {
+                log.warn("Unable to delete journal segment {} ({})", segment.path, ex.getMessage());
+                return;
+            }
+            iterator.remove();
+        }
+    }
+
+    // Over the payload as written, prefix then the rest
+    private static int checksum(byte type, long sequence, byte[] prefix, byte[] payload) {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(9).put(type).putLong(sequence);
+        crc.update(header.array());
+        crc.update(prefix);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,66 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+/*
+    Polling endpoint for bundles accepted asynchronously (FHIR asynchronous request pattern).
+
+    202 while the bundle is queued or processing, then an OperationOutcome of the result with the status code the
+    synchronous call would have returned and the Location of the resulting resource. 404 once the status has expired
+    or for an unknown id.
+ */
+@RestController
+public class MessageStatusController {
+
+    public static final String STATUS_PATH = "/async/";
+
+    private static final String FHIR_XML = "application/fhir+xml";
+
+    @Autowired
+    @Qualifier("CTXR3")
+    private FhirContext ctx;
+
+    @GetMapping(STATUS_PATH + "{id}")
+    public ResponseEntity<String> getStatus(@PathVariable("id") String id) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_TYPE, FHIR_XML);
+
+        MessageStatusStore.MessageStatus status = MessageStatusStore.get(id);
+        if (status == null) {
+            return new ResponseEntity<>(getOutcome(OperationOutcome.IssueSeverity.ERROR, OperationOutcome.IssueType.NOTFOUND,
+                    "Unknown or expired message status " + id), headers, HttpStatus.NOT_FOUND);
+        }
+        if (status.getState() != MessageStatusStore.State.COMPLETE) {
+            headers.set("X-Progress", status.getState().name().toLowerCase());
+            headers.set(HttpHeaders.RETRY_AFTER, "1");
+            return new ResponseEntity<>(getOutcome(OperationOutcome.IssueSeverity.INFORMATION, OperationOutcome.IssueType.INFORMATIONAL,
+                    "Message " + status.getState().name().toLowerCase()), headers, HttpStatus.ACCEPTED);
+        }
+        if (!status.getLocation().isEmpty()) {
+            headers.set(HttpHeaders.LOCATION, status.getLocation());
+        }
+        HttpStatus httpStatus = HttpStatus.resolve(status.getResponseCode());
+        return new ResponseEntity<>(ctx.newXmlParser().encodeResourceToString(status.getOutcome()), headers,
+                (httpStatus != null) ? httpStatus : HttpStatus.OK);
+    }
+
+    private String getOutcome(OperationOutcome.IssueSeverity severity, OperationOutcome.IssueType type, String message) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(severity)
+                .setCode(type)
+                .setDiagnostics(message)
+                .setDetails(new CodeableConcept().setText(message));
+        return ctx.newXmlParser().encodeResourceToString(outcome);
+    }
+}
@@ -0,0 +1,117 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Status of bundles accepted for asynchronous processing, polled through MessageStatusController.
+
+    Entries are dropped messaging.async.status_retention_seconds after their last change, and the least recently
+    changed once there are more than messaging.async.status_max_entries. A completed entry holds the response code,
+    the Location of the result and an OperationOutcome of at most MAX_ISSUES issues, not the response itself.
+ */
+public class MessageStatusStore {
+
+    private MessageStatusStore() {
+
+    }
+
+    // Exchange header carrying the status id through the seda queue
+    public static final String STATUS_HEADER = "MessageStatusId";
+
+    public enum State { QUEUED, PROCESSING, COMPLETE }
+
+    public static final int MAX_ISSUES = 20;
+
+    public static class MessageStatus {
+        private final State state;
+        private final Date submitted;
+        private final int responseCode;
+        private final String location;
+        private final OperationOutcome outcome;
+
+        private MessageStatus(State state, Date submitted, int responseCode, String location, OperationOutcome outcome) {
+            this.state = state;
+            this.submitted = submitted;
+            this.responseCode = responseCode;
+            this.location = location;
+            this.outcome = outcome;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public Date getSubmitted() {
+            return submitted;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        // Empty if processing didn't produce a resource
+        public String getLocation() {
+            return location;
+        }
+
+        // Null until complete
+        public OperationOutcome getOutcome() {
+            return outcome;
+        }
+    }
+
+    private static Cache<String, MessageStatus> statuses;
+
+    private static synchronized Cache<String, MessageStatus> getStatuses() {
+        if (statuses == null) {
+            statuses = CacheBuilder.newBuilder()
+                    .maximumSize(HapiProperties.getMessagingAsyncStatusMaxEntries())
+                    .expireAfterWrite(HapiProperties.getMessagingAsyncStatusRetentionSeconds(), TimeUnit.SECONDS)
+                    .build();
+        }
+        return statuses;
+    }
+
+    public static String submit() {
+        String id = UUID.randomUUID().toString();
+        queued(id);
+        return id;
+    }
+
+    // Re-registers a bundle recovered from MessageJournal under its original id
+    public static void queued(String id) {
+        getStatuses().put(id, new MessageStatus(State.QUEUED, new Date(), 0, "", null));
+    }
+
+    public static void processing(String id) {
+        MessageStatus status = getStatuses().getIfPresent(id);
+        Date submitted = (status != null) ? status.getSubmitted() : new Date();
+        getStatuses().put(id, new MessageStatus(State.PROCESSING, submitted, 0, "", null));
+    }
+
+    public static void complete(String id, int responseCode, String location, OperationOutcome outcome) {
+        MessageStatus status = getStatuses().getIfPresent(id);
+        Date submitted = (status != null) ? status.getSubmitted() : new Date();
+        OperationOutcome kept = outcome;
+        if (outcome.getIssue().size() > MAX_ISSUES) {
+            kept = outcome.copy();
+            kept.getIssue().subList(MAX_ISSUES, kept.getIssue().size()).clear();
+        }
+        getStatuses().put(id, new MessageStatus(State.COMPLETE, submitted, responseCode, (location != null) ? location : "", kept));
+    }
+
+    public static void remove(String id) {
+        getStatuses().invalidate(id);
+    }
+
+    public static MessageStatus get(String id) {
+        return getStatuses().getIfPresent(id);
+    }
+}
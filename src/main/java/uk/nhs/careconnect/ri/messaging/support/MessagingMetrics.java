@@ -0,0 +1,139 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.dstu3.model.ResourceType;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Timers, counters and histograms for the messaging hot paths, published by the actuator at /prometheus.
+
+    Meters are registered with the global registry (Spring Boot adds the Prometheus registry to it) and looked up
+    once, so recording a value costs a map lookup at most and allocates nothing. Callers pass System.nanoTime()
+    differences rather than Timer.Sample objects for the same reason.
+ */
+public class MessagingMetrics {
+
+    private MessagingMetrics() {
+
+    }
+
+    public enum EprOperation { SEARCH, BATCH_SEARCH, CREATE, UPDATE, TRANSACTION }
+
+    private static final MeterRegistry registry = Metrics.globalRegistry;
+
+    private static final ConcurrentMap<String, Timer> routeTimers = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, Counter> routeFailures = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<ResourceType, Timer> handlerTimers = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, Counter> outcomeFailures = new ConcurrentHashMap<>();
+
+    private static final Map<EprOperation, Timer> eprTimers = new EnumMap<>(EprOperation.class);
+
+    static {
+        for (EprOperation operation : EprOperation.values()) {
+            eprTimers.put(operation, Timer.builder("messaging.epr.requests")
+                    .description("Calls to the EPR FHIR server")
+                    .tag("operation", operation.name().toLowerCase())
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+    }
+
+    private static final Timer parseTimer = Timer.builder("messaging.fhir.parse")
+            .description("Parsing of FHIR resources received as text")
+            .register(registry);
+
+    private static final Timer encodeTimer = Timer.builder("messaging.fhir.encode")
+            .description("Encoding of FHIR resources to text")
+            .register(registry);
+
+    private static final DistributionSummary bundleEntries = DistributionSummary.builder("messaging.bundle.entries")
+            .description("Entries in bundles received")
+            .publishPercentileHistogram()
+            .register(registry);
+
+    private static final DistributionSummary bundleBytes = DistributionSummary.builder("messaging.bundle.size")
+            .description("Size of bundles received")
+            .baseUnit("bytes")
+            .publishPercentileHistogram()
+            .register(registry);
+
+    public static void recordRoute(String routeId, long nanos, boolean failed) {
+        Timer timer = routeTimers.get(routeId);
+        if (timer == null) {
+            timer = routeTimers.computeIfAbsent(routeId, id -> Timer.builder("messaging.route")
+                    .description("Exchanges completed by a Camel route")
+                    .tag("route", id)
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+        if (failed) {
+            Counter counter = routeFailures.get(routeId);
+            if (counter == null) {
+                counter = routeFailures.computeIfAbsent(routeId, id -> Counter.builder("messaging.route.failures")
+                        .description("Exchanges which ended with an exception")
+                        .tag("route", id)
+                        .register(registry));
+            }
+            counter.increment();
+        }
+    }
+
+    /*
+        Time spent in a searchAddXxx handler. This includes any references the handler resolves in turn.
+     */
+    public static void recordHandler(ResourceType resourceType, long nanos) {
+        Timer timer = handlerTimers.get(resourceType);
+        if (timer == null) {
+            timer = handlerTimers.computeIfAbsent(resourceType, type -> Timer.builder("messaging.bundle.resolve")
+                    .description("Resolution of bundle entries against the EPR")
+                    .tag("resourceType", type.name())
+                    .register(registry));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordEpr(EprOperation operation, long nanos) {
+        eprTimers.get(operation).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordParse(long nanos) {
+        parseTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordEncode(long nanos) {
+        encodeTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void recordBundle(int entries, long bytes) {
+        bundleEntries.record(entries);
+        bundleBytes.record(bytes);
+    }
+
+    /*
+        An OperationOutcome returned to a client, by issue type (invalid, business-rule, transient, ...).
+     */
+    public static void recordFailure(String issueType) {
+        String key = issueType != null ? issueType : "unknown";
+        Counter counter = outcomeFailures.get(key);
+        if (counter == null) {
+            counter = outcomeFailures.computeIfAbsent(key, type -> Counter.builder("messaging.outcome.failures")
+                    .description("OperationOutcomes returned, by issue type")
+                    .tag("issue", type)
+                    .register(registry));
+        }
+        counter.increment();
+    }
+}
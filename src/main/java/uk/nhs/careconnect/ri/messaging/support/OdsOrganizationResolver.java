@@ -0,0 +1,226 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+    Read-through cache of ODS (spine directory) Organizations, keyed on ODS code.
+
+    - Entries younger than ods.cache.ttl_seconds are returned without a call to the directory.
+    - Entries older than that, but within ods.cache.stale_seconds, are returned straight away and refreshed in the background.
+    - Older entries, or an unknown code, are fetched on the calling thread. Concurrent requests for the same code share one call.
+    - If the directory is unavailable a cached copy of any age is returned.
+
+    Entries are written to ods.cache.directory (one JSON file per code) so the cache survives a restart. For offline
+    testing ods.source.file can name a FHIR Bundle of Organizations to use in place of the directory, alternatively
+    server.base.ods can point at a stub server.
+ */
+public class OdsOrganizationResolver {
+
+    private OdsOrganizationResolver() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(OdsOrganizationResolver.class);
+
+    private static final ConcurrentMap<String, CachedOrganization> cache = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, CompletableFuture<Organization>> inFlight = new ConcurrentHashMap<>();
+
+    private static ExecutorService refreshExecutor;
+
+    private static Map<String, Organization> sourceFile;
+
+    private static class CachedOrganization {
+        private final Organization organization;
+        private final long fetched;
+
+        private CachedOrganization(Organization organization, long fetched) {
+            this.organization = organization;
+            this.fetched = fetched;
+        }
+    }
+
+    /*
+        Returns a copy of the Organization, throws ResourceNotFoundException if the code can't be resolved.
+     */
+    public static Organization getOrganization(String odsCode) {
+        CachedOrganization cached = cache.get(odsCode);
+        if (cached == null) {
+            cached = readFromDisk(odsCode);
+            if (cached != null) cache.put(odsCode, cached);
+        }
+
+        if (cached != null) {
+            long age = System.currentTimeMillis() - cached.fetched;
+            if (age < HapiProperties.getOdsCacheTtlSeconds() * 1000L) {
+                return cached.organization.copy();
+            }
+            if (age < HapiProperties.getOdsCacheStaleSeconds() * 1000L) {
+                log.debug("ODS {} stale, refreshing in background", odsCode);
+                fetch(odsCode, true);
+                return cached.organization.copy();
+            }
+        }
+
+        try {
+            return fetch(odsCode, false).get().copy();
+        } catch (ExecutionException ex) {
+            if (cached != null) {
+                log.warn("ODS lookup of {} failed, using cached copy ({})", odsCode, ex.getCause().getMessage());
+                return cached.organization.copy();
+            }
+            throw new ResourceNotFoundException("https://directory.spineservices.nhs.uk/STU3/Organization/" + odsCode);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ResourceNotFoundException("https://directory.spineservices.nhs.uk/STU3/Organization/" + odsCode);
+        }
+    }
+
+    private static CompletableFuture<Organization> fetch(String odsCode, boolean background) {
+        CompletableFuture<Organization> future = new CompletableFuture<>();
+        CompletableFuture<Organization> existing = inFlight.putIfAbsent(odsCode, future);
+        if (existing != null) return existing;
+
+        Runnable task = () -> {
+            try {
+                Organization organization = readFromSource(odsCode);
+                CachedOrganization cached = new CachedOrganization(organization, System.currentTimeMillis());
+                cache.put(odsCode, cached);
+                writeToDisk(odsCode, cached);
+                future.complete(organization);
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            } finally {
+                inFlight.remove(odsCode, future);
+            }
+        };
+        if (background) {
+            getRefreshExecutor().execute(task);
+        } else {
+            task.run();
+        }
+        return future;
+    }
+
+    private static Organization readFromSource(String odsCode) {
+        if (!HapiProperties.getOdsSourceFile().isEmpty()) {
+            Organization organization = getSourceFile().get(odsCode);
+            if (organization == null) throw new ResourceNotFoundException("Organization/" + odsCode);
+            return organization;
+        }
+        log.info("ODS read Organization/{}", odsCode);
+        return FhirClientRegistry.getServerClient("ods").read().resource(Organization.class).withId(odsCode).execute();
+    }
+
+    private static synchronized Map<String, Organization> getSourceFile() {
+        if (sourceFile == null) {
+            Map<String, Organization> organizations = new HashMap<>();
+            File file = new File(HapiProperties.getOdsSourceFile());
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                IBaseResource resource = getParser(file.getName()).parseResource(reader);
+                if (resource instanceof Bundle) {
+                    for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                        if (entry.getResource() instanceof Organization) {
+                            addSourceOrganization(organizations, (Organization) entry.getResource());
+                        }
+                    }
+                } else if (resource instanceof Organization) {
+                    addSourceOrganization(organizations, (Organization) resource);
+                }
+            } catch (IOException ex) {
+                log.error("Unable to read ODS source file {} ({})", file, ex.getMessage());
+            }
+            log.info("ODS source file {} loaded, {} codes", file, organizations.size());
+            sourceFile = organizations;
+        }
+        return sourceFile;
+    }
+
+    private static void addSourceOrganization(Map<String, Organization> organizations, Organization organization) {
+        if (organization.getIdElement().hasIdPart()) {
+            organizations.put(organization.getIdElement().getIdPart(), organization);
+        }
+        for (Identifier identifier : organization.getIdentifier()) {
+            if (identifier.hasValue()) organizations.putIfAbsent(identifier.getValue(), organization);
+        }
+    }
+
+    private static CachedOrganization readFromDisk(String odsCode) {
+        Path path = getCachePath(odsCode);
+        if (path == null || !Files.exists(path)) return null;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            Organization organization = FhirClientRegistry.getContext().newJsonParser().parseResource(Organization.class, reader);
+            return new CachedOrganization(organization, Files.getLastModifiedTime(path).toMillis());
+        } catch (Exception ex) {
+            log.warn("Ignoring unreadable ODS cache file {} ({})", path, ex.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeToDisk(String odsCode, CachedOrganization cached) {
+        Path path = getCachePath(odsCode);
+        if (path == null) return;
+        try {
+            Files.createDirectories(path.getParent());
+            // Write then move so a reader never sees a partial file
+            Path temp = Files.createTempFile(path.getParent(), odsCode, ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                FhirClientRegistry.getContext().newJsonParser().encodeResourceToWriter(cached.organization, writer);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            log.warn("Unable to persist ODS cache file {} ({})", path, ex.getMessage());
+        }
+    }
+
+    private static Path getCachePath(String odsCode) {
+        String directory = HapiProperties.getOdsCacheDirectory();
+        // Only plain ODS codes are used as file names
+        if (directory.isEmpty() || !odsCode.matches("[A-Za-z0-9\\-]+")) return null;
+        return Paths.get(directory, odsCode + ".json");
+    }
+
+    private static IParser getParser(String fileName) {
+        if (fileName.toLowerCase().endsWith(".xml")) {
+            return FhirClientRegistry.getContext().newXmlParser();
+        }
+        return FhirClientRegistry.getContext().newJsonParser();
+    }
+
+    private static synchronized ExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ods-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return refreshExecutor;
+    }
+}
@@ -1,6 +1,7 @@
 package uk.nhs.careconnect.ri.messaging.support;
 
 
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.server.exceptions.*;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.OperationOutcome;
@@ -9,6 +10,9 @@ public class OperationOutcomeFactory {
 
     private OperationOutcomeFactory() { }
 
+    // OperationOutcome user data, seconds for a Retry-After header on the exception it is converted to
+    public static final String RETRY_AFTER = "uk.nhs.careconnect.ri.messaging.RetryAfter";
+
     public static BaseServerResponseException buildOperationOutcomeException(BaseServerResponseException exception, OperationOutcome.IssueSeverity code, OperationOutcome.IssueType issueType) {
         CodeableConcept codeableConcept = new CodeableConcept()
                 .setText(exception.getMessage());
@@ -52,6 +56,8 @@ public class OperationOutcomeFactory {
         if (ex instanceof NotImplementedOperationException) issueType= OperationOutcome.IssueType. NOTSUPPORTED;
         if (ex instanceof PreconditionFailedException) issueType= OperationOutcome.IssueType. DUPLICATE;
         if (ex instanceof MethodNotAllowedException) issueType= OperationOutcome.IssueType.BUSINESSRULE;
+        // Includes calls refused by a downstream's circuit breaker or bulkhead
+        if (ex instanceof FhirClientConnectionException) issueType= OperationOutcome.IssueType.TRANSIENT;
         return issueType;
     }
 
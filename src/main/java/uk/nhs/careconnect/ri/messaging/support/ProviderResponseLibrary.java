@@ -2,6 +2,7 @@ package uk.nhs.careconnect.ri.messaging.support;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import org.hl7.fhir.dstu3.model.OperationOutcome;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -45,12 +46,22 @@ public class ProviderResponseLibrary {
         {
             OperationOutcome operationOutcome = (OperationOutcome) resource;
             log.info("Sever Returned: "+ctx.newJsonParser().encodeResourceToString(operationOutcome));
+            MessagingMetrics.recordFailure(operationOutcome.hasIssue() && operationOutcome.getIssueFirstRep().hasCode()
+                    ? operationOutcome.getIssueFirstRep().getCode().toCode() : null);
 
-            OperationOutcomeFactory.convertToException(operationOutcome);
+            try {
+                OperationOutcomeFactory.convertToException(operationOutcome);
+            } catch (BaseServerResponseException ex) {
+                Object retryAfter = operationOutcome.getUserData(OperationOutcomeFactory.RETRY_AFTER);
+                if (retryAfter != null) ex.addResponseHeader("Retry-After", retryAfter.toString());
+                throw ex;
+            }
         } else if (resource instanceof org.hl7.fhir.instance.model.OperationOutcome)
         {
             org.hl7.fhir.instance.model.OperationOutcome operationOutcome = (org.hl7.fhir.instance.model.OperationOutcome) resource;
             log.info("Sever Returned: "+ctx.newJsonParser().encodeResourceToString(operationOutcome));
+            MessagingMetrics.recordFailure(operationOutcome.hasIssue() && operationOutcome.getIssue().get(0).getCode() != null
+                    ? operationOutcome.getIssue().get(0).getCode().toCode() : null);
 
             OperationOutcomeFactory.convertToException(operationOutcome);
         } else
@@ -69,20 +80,27 @@ public class ProviderResponseLibrary {
             log.trace("RESPONSE InputStream");
             inputStream = (InputStream) message;
             Reader reader = new InputStreamReader(inputStream);
+            long start = System.nanoTime();
             try {
                 resource = ctx.newXmlParser().parseResource(reader);
             } catch (Exception ex) {
                 resource = ctx.newJsonParser().parseResource(reader);
             }
+            MessagingMetrics.recordParse(System.nanoTime() - start);
         } else
         if (message instanceof String) {
             log.trace("RESPONSE String = "+(String) message);
+            long start = System.nanoTime();
             try {
                 resource = ctx.newXmlParser().parseResource((String) message);
             } catch (Exception ex) {
                 resource = ctx.newJsonParser().parseResource((String) message);
             }
+            MessagingMetrics.recordParse(System.nanoTime() - start);
             log.trace("RETURNED String Resource "+resource.getClass().getSimpleName());
+        } else if (message instanceof IBaseResource) {
+            // Processors hand back the resource itself
+            resource = (IBaseResource) message;
         } else {
             log.info("MESSAGE TYPE "+message.getClass());
         }
@@ -0,0 +1,145 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Identifier to EPR resource cache for reference data, shared by all BundleCore instances.
+
+    The same ODS codes and GMC/GMP numbers arrive on most messages, so the EPR copy of these resources (and with it
+    the logical id and version) is held for epr.reference_cache.ttl_seconds rather than searched for each time.
+    Keys are resourceType|system|value. Message local urn:uuid identifiers are never cached.
+ */
+public class ReferenceDataCache {
+
+    private ReferenceDataCache() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ReferenceDataCache.class);
+
+    private static final Set<String> RESOURCE_TYPES = new HashSet<>(Arrays.asList(
+            "Practitioner", "Organization", "Location", "HealthcareService"));
+
+    private static Cache<String, Resource> cache;
+
+    static {
+        // A cache is built with its bounds, so a new one is built and the entries carried over
+        HapiProperties.addChangeListener(changed -> {
+            if (changed.contains("epr.reference_cache.max_size") || changed.contains("epr.reference_cache.ttl_seconds")) {
+                rebuild();
+            }
+        });
+    }
+
+    private static synchronized Cache<String, Resource> getCache() {
+        if (cache == null) {
+            cache = newCache();
+        }
+        return cache;
+    }
+
+    private static Cache<String, Resource> newCache() {
+        return CacheBuilder.newBuilder()
+                .maximumSize(HapiProperties.getEprReferenceCacheMaxSize())
+                .expireAfterWrite(HapiProperties.getEprReferenceCacheTtlSeconds(), TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    private static synchronized void rebuild() {
+        if (cache == null) return;
+        Cache<String, Resource> rebuilt = newCache();
+        rebuilt.putAll(cache.asMap());
+        cache = rebuilt;
+        log.info("Reference data cache rebuilt, {} entries", rebuilt.size());
+    }
+
+    public static boolean isCached(String resourceName) {
+        return HapiProperties.getEprReferenceCache() && RESOURCE_TYPES.contains(resourceName);
+    }
+
+    public static boolean contains(String resourceName, Identifier identifier) {
+        String key = getKey(resourceName, identifier);
+        // asMap does not count towards the hit/miss statistics
+        return key != null && getCache().asMap().containsKey(key);
+    }
+
+    /*
+        Returns a copy, callers are free to use the resource in their own bundle.
+     */
+    public static Resource get(String resourceName, Identifier identifier) {
+        String key = getKey(resourceName, identifier);
+        if (key == null) return null;
+        Resource resource = getCache().getIfPresent(key);
+        if (resource == null) return null;
+        log.debug("Cache hit {}", key);
+        return resource.copy();
+    }
+
+    public static void put(String resourceName, Identifier identifier, Resource resource) {
+        String key = getKey(resourceName, identifier);
+        if (key == null || !hasEprId(resource)) return;
+        getCache().put(key, resource.copy());
+    }
+
+    public static void putAll(String resourceName, List<Identifier> identifiers, Resource resource) {
+        for (Identifier identifier : identifiers) {
+            put(resourceName, identifier, resource);
+        }
+    }
+
+    /*
+        An update that returns a different version makes the cached copy stale, the entry is replaced by the
+        updated resource.
+     */
+    public static void updated(String resourceName, List<Identifier> identifiers, Resource resource) {
+        for (Identifier identifier : identifiers) {
+            String key = getKey(resourceName, identifier);
+            if (key == null) continue;
+            Resource cached = getCache().asMap().get(key);
+            if (cached == null) continue;
+            String cachedVersion = cached.getIdElement().getVersionIdPart();
+            String version = resource.getIdElement().getVersionIdPart();
+            if (cachedVersion == null || !cachedVersion.equals(version)) {
+                log.debug("Invalidating {} version {}", key, cachedVersion);
+                getCache().invalidate(key);
+                put(resourceName, identifier, resource);
+            }
+        }
+    }
+
+    public static void invalidateAll() {
+        getCache().invalidateAll();
+    }
+
+    public static CacheStats getStats() {
+        return getCache().stats();
+    }
+
+    public static long getSize() {
+        return getCache().size();
+    }
+
+    private static String getKey(String resourceName, Identifier identifier) {
+        if (!isCached(resourceName) || identifier == null || !identifier.hasSystem() || !identifier.hasValue()) return null;
+        if (identifier.getSystem().equals("urn:uuid")) return null;
+        return resourceName + "|" + identifier.getSystem() + "|" + identifier.getValue();
+    }
+
+    private static boolean hasEprId(Resource resource) {
+        return resource != null && resource.getIdElement().hasIdPart() && !resource.getId().startsWith("urn:");
+    }
+}
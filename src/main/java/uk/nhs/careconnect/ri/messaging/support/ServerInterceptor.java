@@ -1,21 +1,13 @@
 package uk.nhs.careconnect.ri.messaging.support;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
-import ca.uhn.fhir.rest.server.RestfulServer;
-import ca.uhn.fhir.rest.server.RestfulServerUtils;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.text.StrLookup;
-import org.apache.commons.lang3.text.StrSubstitutor;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.utils.URLEncodedUtils;
 import org.hl7.fhir.dstu3.model.Binary;
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.OperationOutcome;
@@ -23,6 +15,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.springframework.http.InvalidMediaTypeException;
 import org.springframework.http.MediaType;
+import uk.nhs.careconnect.ri.messaging.camel.processor.ResourceBodyEncoder;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -32,13 +25,10 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import java.io.*;
-import java.net.URI;
-import java.net.URLEncoder;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-import static org.apache.commons.lang3.StringUtils.isNotBlank;
-
 public class ServerInterceptor extends InterceptorAdapter {
 
     // https://en.wikipedia.org/wiki/List_of_HTTP_header_fields#Field_names
@@ -56,12 +46,20 @@ public class ServerInterceptor extends InterceptorAdapter {
 
     @Override
     public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws ServletException, IOException {
+        Tracer.clearIncomingRequestId();
+        boolean handledByHapi = handleExceptionResponse(theRequestDetails, theException, theServletRequest, theServletResponse);
+        // processingCompletedNormally isn't called for these, the status is HAPI's unless a response was written here
+        AccessLog.completed(theRequestDetails, theServletRequest, handledByHapi ? theException.getStatusCode() : theServletResponse.getStatus());
+        return handledByHapi;
+    }
+
+    private boolean handleExceptionResponse(RequestDetails theRequestDetails, BaseServerResponseException theException, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) throws IOException {
 
         // Return false when overriding hapi behaviour.
 
         // tickets #41 #43 #44 #45
 
-        log.info("Exception = "+theException.getClass().getCanonicalName());
+        log.info("Exception = {}", theException.getClass().getCanonicalName());
         if (theException instanceof InvalidRequestException) {
             if (theException.getOperationOutcome() !=null && theException.getOperationOutcome() instanceof OperationOutcome) {
                 //FhirContext ctx = FhirContext.forDstu3();
@@ -136,28 +134,23 @@ public class ServerInterceptor extends InterceptorAdapter {
 
     @Override
     public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse) throws AuthenticationException {
-        log.trace("incomingRequestPostProcessed "+theRequest.getMethod());
-        Enumeration<String> headers = theRequest.getHeaderNames();
-        while (headers.hasMoreElements()) {
-            String header = headers.nextElement();
-            log.debug("Header  = "+ header + "="+ theRequest.getHeader(header));
+        if (log.isDebugEnabled()) {
+            log.debug("incomingRequestPostProcessed {}", theRequest.getMethod());
+            Enumeration<String> headers = theRequest.getHeaderNames();
+            while (headers.hasMoreElements()) {
+                String header = headers.nextElement();
+                log.debug("Header  = {}={}", header, theRequest.getHeader(header));
+            }
         }
-        // Perform any string substitutions from the message format
-        StrLookup<?> lookup = new MyLookup(theRequest, theRequestDetails);
-        StrSubstitutor subs = new StrSubstitutor(lookup, "${", "}", '\\');
-
-        // Actually log the line
-        String myMessageFormat = "httpVerb[${requestVerb}] Source[${remoteAddr}] Operation[${operationType} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] RequestId[${requestHeader.x-request-id}] ForwardedFor[${requestHeader.x-forwarded-for}] ForwardedHost[${requestHeader.x-forwarded-host}] CorrelationId[] ProcessingTime[]  ResponseCode[]";
-
-        String line = subs.replace(myMessageFormat);
-        log.info(line);
-
+        // The access line is written once the request completes, see AccessLog
         return true;
     }
 
     @Override
     public boolean incomingRequestPreProcessed(HttpServletRequest request, HttpServletResponse theResponse) {
-        log.trace("incomingRequestPreProcessed "+request.getMethod());
+        log.trace("incomingRequestPreProcessed {}", request.getMethod());
+        // Picked up as the trace id when the request reaches a route, see TracingRoutePolicyFactory
+        Tracer.setIncomingRequestId(request.getHeader(Tracer.REQUEST_ID_HEADER));
         // 30/Apr/2018 Ignore for Binary endpoints
         if (request.getMethod() != null && (!request.getRequestURI().contains("Binary"))) {
 
@@ -176,21 +169,7 @@ public class ServerInterceptor extends InterceptorAdapter {
             }
 
             if (request.getQueryString() != null) {
-
-
-                List<NameValuePair> params = null;
-                try {
-                    params = URLEncodedUtils.parse(new URI("http://dummy?" + request.getQueryString()), "UTF-8");
-                } catch (Exception ex) {
-                }
-
-                ListIterator paramlist = params.listIterator();
-                while (paramlist.hasNext()) {
-                    NameValuePair param = (NameValuePair) paramlist.next();
-                    if (param.getName().equals("_format"))
-                        checkContentType(param.getValue());
-
-                }
+                checkFormatParameters(request.getQueryString());
             }
 
 
@@ -204,6 +183,27 @@ public class ServerInterceptor extends InterceptorAdapter {
         }
         return true;
     }
+    // _format values in the query string, found without parsing all of it
+    private void checkFormatParameters(String queryString) {
+        int position = 0;
+        while ((position = queryString.indexOf("_format=", position)) >= 0) {
+            int start = position + "_format=".length();
+            if (position == 0 || queryString.charAt(position - 1) == '&') {
+                int end = queryString.indexOf('&', start);
+                String value = queryString.substring(start, (end < 0) ? queryString.length() : end);
+                if (value.indexOf('%') >= 0 || value.indexOf('+') >= 0) {
+                    try {
+                        value = URLDecoder.decode(value, "UTF-8");
+                    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                        // Checked as sent
+                    }
+                }
+                checkContentType(value);
+            }
+            position = start;
+        }
+    }
+
     public void checkContentType(String contentType) {
         try {
                 MediaType media = MediaType.parseMediaType(contentType);
@@ -247,29 +247,29 @@ public class ServerInterceptor extends InterceptorAdapter {
             response.addHeader("X-Correlation-ID", val);
            // theServletResponse.setHeader("X-Request-ID","");
         }
-        log.debug("oR Content-Type = "+theRequestDetails.getHeader("Accept"));
+        log.debug("oR Content-Type = {}", theRequestDetails.getHeader("Accept"));
         String acceptType = theRequestDetails.getHeader("Accept");
 
         String[] value = theRequestDetails.getParameters().get("_format");
         if (value != null) {
             for (String nextParam : value) {
                 acceptType = nextParam;
-                log.info("_format = "+acceptType);
+                log.debug("_format = {}", acceptType);
             }
         }
 
         if(resource!=null) {
-        log.trace("Response resource instance of "+resource.getClass().getSimpleName());
+        log.trace("Response resource instance of {}", resource.getClass().getSimpleName());
         
 
-        if (resource.getClass()!=null) log.trace("Response resource instance of "+resource.getClass().getSimpleName());
-        if (theRequestDetails != null && theRequestDetails.getResourceName() != null) log.trace("Request resource "+theRequestDetails.getResourceName().equals("Binary"));
+        if (resource.getClass()!=null) log.trace("Response resource instance of {}", resource.getClass().getSimpleName());
+        if (theRequestDetails != null && theRequestDetails.getResourceName() != null) log.trace("Request resource {}", theRequestDetails.getResourceName().equals("Binary"));
 
         // Special Procecssing for Binary when a FHIR document is returned
         if (resource instanceof Binary && theRequestDetails.getResourceName().equals("Binary")) {
             Binary binary = (Binary) resource;
             Bundle bundle = null;
-            log.trace("Content Type of returned Binary"+binary.getContentType().contains("fhir"));
+            log.trace("Content Type of returned Binary {}", binary.getContentType().contains("fhir"));
             // Check for FHIR Document
             if (binary.getContentType().contains("fhir")) {
                 // Assume this is a FHIR Document
@@ -291,17 +291,20 @@ public class ServerInterceptor extends InterceptorAdapter {
 
                             // Response was json, convert to xml
                             binary.setContentType("application/fhir+xml");
-                            binary.setContent(ctx.newXmlParser().encodeResourceToString(resourceBundle).getBytes());
                             response.setStatus(200);
                             response.setContentType("application/fhir+xml");
 
+                            // Encoded straight to the response rather than built as a String first
+                            Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
                             if (acceptType == null) {
                                 // if not asked for format return xml as default
-                                response.getOutputStream().write(ctx.newXmlParser().encodeResourceToString(resourceBundle).getBytes());
+                                ctx.newXmlParser().encodeResourceToWriter(resourceBundle, writer);
                             } else {
                                 // else return as a Bundle
-                                response.getOutputStream().write(ctx.newXmlParser().encodeResourceToString(binary).getBytes());
+                                binary.setContent(ResourceBodyEncoder.encodeToUtf8(ctx, resourceBundle));
+                                ctx.newXmlParser().encodeResourceToWriter(binary, writer);
                             }
+                            writer.flush();
 
                         } catch (Exception ex) {
                             ex.printStackTrace();
@@ -364,142 +367,13 @@ public class ServerInterceptor extends InterceptorAdapter {
 
     @Override
     public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
-        // Perform any string substitutions from the message format
-
-        StrLookup<?> lookup = new MyLookup(theRequestDetails.getServletRequest(), theRequestDetails);
-        StrSubstitutor subs = new StrSubstitutor(lookup, "${", "}", '\\');
-
-        for (String header : theRequestDetails.getServletResponse().getHeaderNames()) {
-            log.debug("Header  = " + header + "=" + theRequestDetails.getServletResponse().getHeader(header));
-        }
-
-        String myMessageFormat = "httpVerb[${requestVerb}] Source[${remoteAddr}] Operation[${operationType} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] RequestId[${requestHeader.x-request-id}] ForwardedFor[${requestHeader.x-forwarded-for}] ForwardedHost[${requestHeader.x-forwarded-host}] CorrelationId[${requestHeader.x-request-id}] ProcessingTime[${processingTimeMillis}]";
-
-        String line = subs.replace(myMessageFormat);
-        log.info(line+" ResponseCode["+theRequestDetails.getServletResponse().getStatus()+"]");
-    }
-
-
-
-    private static final class MyLookup extends StrLookup<String> {
-        private final Throwable myException;
-        private final HttpServletRequest myRequest;
-        private final RequestDetails myRequestDetails;
-
-        private MyLookup(HttpServletRequest theRequest, RequestDetails theRequestDetails) {
-            myRequest = theRequest;
-            myRequestDetails = theRequestDetails;
-            myException = null;
-        }
-
-        public MyLookup(HttpServletRequest theServletRequest, BaseServerResponseException theException, RequestDetails theRequestDetails) {
-            myException = theException;
-            myRequestDetails = theRequestDetails;
-            myRequest = theServletRequest;
-        }
-
-        @Override
-        public String lookup(String theKey) {
-
-			/*
-			 * TODO: this method could be made more efficient through some sort of lookup map
-			 */
-
-            if ("operationType".equals(theKey)) {
-                if (myRequestDetails.getRestOperationType() != null) {
-                    return myRequestDetails.getRestOperationType().getCode();
-                }
-                return "";
-            } else if ("operationName".equals(theKey)) {
-                if (myRequestDetails.getRestOperationType() != null) {
-                    switch (myRequestDetails.getRestOperationType()) {
-                        case EXTENDED_OPERATION_INSTANCE:
-                        case EXTENDED_OPERATION_SERVER:
-                        case EXTENDED_OPERATION_TYPE:
-                            return myRequestDetails.getOperation();
-                        default:
-                            return "";
-                    }
-                }
-                return "";
-            } else if ("id".equals(theKey)) {
-                if (myRequestDetails.getId() != null) {
-                    return myRequestDetails.getId().getValue();
-                }
-                return "";
-            } else if ("servletPath".equals(theKey)) {
-                return StringUtils.defaultString(myRequest.getServletPath());
-            } else if ("idOrResourceName".equals(theKey)) {
-                if (myRequestDetails.getId() != null) {
-                    return myRequestDetails.getId().getValue();
-                }
-                if (myRequestDetails.getResourceName() != null) {
-                    return myRequestDetails.getResourceName();
-                }
-                return "";
-            } else if (theKey.equals("requestParameters")) {
-                StringBuilder b = new StringBuilder();
-                for (Map.Entry<String, String[]> next : myRequestDetails.getParameters().entrySet()) {
-                    for (String nextValue : next.getValue()) {
-                        if (b.length() == 0) {
-                            b.append('?');
-                        } else {
-                            b.append('&');
-                        }
-                        try {
-                            b.append(URLEncoder.encode(next.getKey(), "UTF-8"));
-                            b.append('=');
-                            b.append(URLEncoder.encode(nextValue, "UTF-8"));
-                        } catch (UnsupportedEncodingException e) {
-                            throw new ca.uhn.fhir.context.ConfigurationException("UTF-8 not supported", e);
-                        }
-                    }
-                }
-                return b.toString();
-            } else if (theKey.startsWith("requestHeader.")) {
-                String val = myRequest.getHeader(theKey.substring("requestHeader.".length()));
-                return StringUtils.defaultString(val);
-            } else if (theKey.startsWith("remoteAddr")) {
-                return StringUtils.defaultString(myRequest.getRemoteAddr());
-            } else if (theKey.equals("responseEncodingNoDefault")) {
-                RestfulServerUtils.ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingNoDefault(myRequestDetails, myRequestDetails.getServer().getDefaultResponseEncoding());
-                if (encoding != null) {
-                    return encoding.getEncoding().name();
-                }
-                return "";
-            } else if (theKey.equals("exceptionMessage")) {
-                return myException != null ? myException.getMessage() : null;
-            } else if (theKey.equals("requestUrl")) {
-                return myRequest.getRequestURL().toString();
-            } else if (theKey.equals("requestVerb")) {
-                return myRequest.getMethod();
-            } else if (theKey.equals("requestBodyFhir")) {
-                String contentType = myRequest.getContentType();
-                if (isNotBlank(contentType)) {
-                    int colonIndex = contentType.indexOf(';');
-                    if (colonIndex != -1) {
-                        contentType = contentType.substring(0, colonIndex);
-                    }
-                    contentType = contentType.trim();
-
-                    EncodingEnum encoding = EncodingEnum.forContentType(contentType);
-                    if (encoding != null) {
-                        byte[] requestContents = myRequestDetails.loadRequestContents();
-                        return requestContents.toString();
-                    }
-                }
-                return "";
-            } else if ("processingTimeMillis".equals(theKey)) {
-                Date startTime = (Date) myRequest.getAttribute(RestfulServer.REQUEST_START_TIME);
-                if (startTime != null) {
-                    long time = System.currentTimeMillis() - startTime.getTime();
-                    return Long.toString(time);
-                }
+        Tracer.clearIncomingRequestId();
+        if (log.isDebugEnabled()) {
+            for (String header : theRequestDetails.getServletResponse().getHeaderNames()) {
+                log.debug("Header  = {}={}", header, theRequestDetails.getServletResponse().getHeader(header));
             }
-
-
-            return "!VAL!";
         }
+        AccessLog.completed(theRequestDetails, theRequestDetails.getServletRequest(), theRequestDetails.getServletResponse().getStatus());
     }
 
     private ClassLoader getContextClassLoader() {
@@ -36,6 +36,8 @@ public class SpringSecurityConfiguration extends WebSecurityConfigurerAdapter {
                 .antMatchers("/error").permitAll()
                 .antMatchers("/hawtio/**").hasRole("ACTUATOR")
                 .antMatchers("/jolokia/**").hasRole("ACTUATOR")
+                .antMatchers("/prometheus").hasRole("ACTUATOR")
+                .antMatchers("/traces/**").hasRole("ACTUATOR")
                 .and().httpBasic();
 */
     }
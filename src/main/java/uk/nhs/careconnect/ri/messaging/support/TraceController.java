@@ -0,0 +1,54 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Traces of recent messages (see Tracer) as JSON: the slowest, and the spans of one message by X-Request-ID.
+ */
+@RestController
+public class TraceController {
+
+    public static final String TRACE_PATH = "/traces/";
+
+    @GetMapping(TRACE_PATH + "slowest")
+    public List<Map<String, Object>> getSlowest(@RequestParam(value = "limit", defaultValue = "10") int limit) {
+        List<Map<String, Object>> traces = new ArrayList<>();
+        for (Tracer.Trace trace : Tracer.getSlowest(limit)) {
+            traces.add(trace.getSummary());
+        }
+        return traces;
+    }
+
+    @GetMapping(TRACE_PATH + "{requestId}")
+    public ResponseEntity<Map<String, Object>> getTrace(@PathVariable("requestId") String requestId) {
+        Tracer.Trace trace = Tracer.getTrace(requestId);
+        if (trace == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        Map<String, Object> body = trace.getSummary();
+        List<Map<String, Object>> spans = new ArrayList<>();
+        for (Tracer.Span span : trace.getSpans()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("spanId", span.getSpanId());
+            entry.put("parentSpanId", span.getParentSpanId());
+            entry.put("name", span.getName());
+            entry.put("offsetMillis", span.getOffsetNanos() / 1000000.0);
+            entry.put("durationMillis", span.getDurationNanos() >= 0 ? span.getDurationNanos() / 1000000.0 : null);
+            entry.put("attributes", span.getAttributes());
+            entry.put("error", span.getError());
+            spans.add(entry);
+        }
+        body.put("spans", spans);
+        return new ResponseEntity<>(body, HttpStatus.OK);
+    }
+}
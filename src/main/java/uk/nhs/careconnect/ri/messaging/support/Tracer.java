@@ -0,0 +1,485 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+    In-process tracing of messages. A trace is started when an exchange enters the first route (see
+    TracingRoutePolicyFactory) and is identified by the X-Request-ID of the message, which is sent on every call made
+    by the pooled HTTP client (see TracingExecChain). Spans are opened for routes, bundle entry resolution and
+    downstream HTTP calls.
+
+    The current span is held per thread. Work handed to another thread takes the span with it through propagate(), or
+    through the exchange (SPAN_PROPERTY) for exchanges sent to a route on another thread.
+
+    Finished traces go to a ring buffer of tracing.buffer_size, the tracing.slowest slowest are kept apart from it, and
+    both are served by TraceController. If tracing.export_file is set, finished traces are also appended to it as
+    OTLP/JSON lines (the OpenTelemetry collector file exporter format) by a background thread. A trace holds at most
+    tracing.max_spans spans. When tracing is off startSpan returns a no-op span and nothing is allocated.
+ */
+public class Tracer {
+
+    private Tracer() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(Tracer.class);
+
+    public static final String REQUEST_ID_HEADER = "X-Request-ID";
+
+    // Exchange property with the span of the route the exchange was sent from
+    public static final String SPAN_PROPERTY = "TracerSpan";
+
+    private static final ThreadLocal<Span> current = new ThreadLocal<>();
+
+    // X-Request-ID of the HTTP request being handled on this thread, see ServerInterceptor
+    private static final ThreadLocal<String> incomingRequestId = new ThreadLocal<>();
+
+    private static final Span NOOP = new Span(null, null, null, null);
+
+    private static Trace[] recent;
+
+    private static int recentIndex;
+
+    private static PriorityQueue<Trace> slowest;
+
+    private static BlockingQueue<Trace> exportQueue;
+
+    private static volatile Boolean enabled;
+
+    private static volatile Integer maxSpans;
+
+    static {
+        HapiProperties.addChangeListener(changed -> {
+            enabled = null;
+            maxSpans = null;
+        });
+    }
+
+    public static boolean isEnabled() {
+        if (enabled == null) {
+            enabled = HapiProperties.getTracing();
+        }
+        return enabled;
+    }
+
+    public static void setIncomingRequestId(String requestId) {
+        incomingRequestId.set(requestId);
+    }
+
+    public static String takeIncomingRequestId() {
+        String requestId = incomingRequestId.get();
+        incomingRequestId.remove();
+        return requestId;
+    }
+
+    // For requests that never reach a route, so the id doesn't stay on the pooled request thread
+    public static void clearIncomingRequestId() {
+        incomingRequestId.remove();
+    }
+
+    public static Span current() {
+        return current.get();
+    }
+
+    /*
+        X-Request-ID of the message being processed on this thread, or null.
+     */
+    public static String getRequestId() {
+        Span span = current.get();
+        return span != null ? span.trace.requestId : null;
+    }
+
+    public static Span startTrace(String requestId, String name) {
+        if (!isEnabled()) return NOOP;
+        Trace trace = new Trace(requestId, name);
+        return start(trace, null, name, null);
+    }
+
+    /*
+        A child of the current span, or a no-op span if this thread isn't in a trace. detail is added to the name,
+        kept separate so callers don't build strings that are thrown away when tracing is off.
+     */
+    public static Span startSpan(String name, String detail) {
+        return startSpan(current.get(), name, detail);
+    }
+
+    public static Span startSpan(Span parent, String name, String detail) {
+        if (parent == null || parent.trace == null) return NOOP;
+        return start(parent.trace, parent, name, detail);
+    }
+
+    /*
+        Runs the task in the span current on the calling thread.
+     */
+    public static <T> Callable<T> propagate(Callable<T> task) {
+        Span span = current.get();
+        if (span == null) return task;
+        return () -> {
+            Span previous = current.get();
+            current.set(span);
+            try {
+                return task.call();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    public static synchronized List<Trace> getSlowest(int limit) {
+        List<Trace> traces = new ArrayList<>(getSlowestQueue());
+        traces.sort(Comparator.comparingLong(Trace::getDurationNanos).reversed());
+        return traces.subList(0, Math.min(limit, traces.size()));
+    }
+
+    public static synchronized Trace getTrace(String requestId) {
+        for (Trace trace : getSlowestQueue()) {
+            if (trace.requestId.equals(requestId)) return trace;
+        }
+        Trace[] buffer = getRecent();
+        for (int i = 1; i <= buffer.length; i++) {
+            Trace trace = buffer[(recentIndex - i + buffer.length) % buffer.length];
+            if (trace != null && trace.requestId.equals(requestId)) return trace;
+        }
+        return null;
+    }
+
+    private static Span start(Trace trace, Span parent, String name, String detail) {
+        Span span = new Span(trace, parent, name, detail);
+        if (!trace.add(span)) return NOOP;
+        span.previous = current.get();
+        current.set(span);
+        return span;
+    }
+
+    private static int getMaxSpans() {
+        if (maxSpans == null) {
+            maxSpans = HapiProperties.getTracingMaxSpans();
+        }
+        return maxSpans;
+    }
+
+    private static synchronized void finished(Trace trace) {
+        Trace[] buffer = getRecent();
+        buffer[recentIndex] = trace;
+        recentIndex = (recentIndex + 1) % buffer.length;
+
+        PriorityQueue<Trace> queue = getSlowestQueue();
+        if (queue.size() < HapiProperties.getTracingSlowest()) {
+            queue.add(trace);
+        } else if (queue.peek().durationNanos < trace.durationNanos) {
+            queue.poll();
+            queue.add(trace);
+        }
+
+        if (getExportQueue() != null && !exportQueue.offer(trace)) {
+            log.debug("Trace export queue full, {} not exported", trace.requestId);
+        }
+    }
+
+    // Caller holds the class lock
+    private static Trace[] getRecent() {
+        if (recent == null) {
+            recent = new Trace[HapiProperties.getTracingBufferSize()];
+        }
+        return recent;
+    }
+
+    // Caller holds the class lock
+    private static PriorityQueue<Trace> getSlowestQueue() {
+        if (slowest == null) {
+            slowest = new PriorityQueue<>(Comparator.comparingLong(Trace::getDurationNanos));
+        }
+        return slowest;
+    }
+
+    // Caller holds the class lock
+    private static BlockingQueue<Trace> getExportQueue() {
+        if (exportQueue == null && !HapiProperties.getTracingExportFile().isEmpty()) {
+            exportQueue = new LinkedBlockingQueue<>(1000);
+            Thread thread = new Thread(Tracer::export, "trace-export");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return exportQueue;
+    }
+
+    private static void export() {
+        String file = HapiProperties.getTracingExportFile();
+        try (Writer writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            while (true) {
+                Trace trace = exportQueue.poll(1, TimeUnit.SECONDS);
+                if (trace == null) {
+                    writer.flush();
+                    continue;
+                }
+                writer.write(trace.toOtlpJson());
+                writer.write('\n');
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            log.error("Trace export to {} stopped ({})", file, ex.getMessage());
+        }
+    }
+
+    private static String randomHex(int longs) {
+        StringBuilder hex = new StringBuilder(longs * 16);
+        for (int i = 0; i < longs; i++) {
+            String part = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            for (int pad = part.length(); pad < 16; pad++) hex.append('0');
+            hex.append(part);
+        }
+        return hex.toString();
+    }
+
+    public static class Trace {
+
+        private final String traceId = randomHex(2);
+
+        private final String requestId;
+
+        private final String name;
+
+        private final long startEpochMillis = System.currentTimeMillis();
+
+        private final long startNanos = System.nanoTime();
+
+        private volatile long durationNanos = -1;
+
+        // Guarded by itself
+        private final List<Span> spans = new ArrayList<>();
+
+        private Trace(String requestId, String name) {
+            this.requestId = requestId;
+            this.name = name;
+        }
+
+        private boolean add(Span span) {
+            synchronized (spans) {
+                if (durationNanos >= 0 || spans.size() >= getMaxSpans()) return false;
+                spans.add(span);
+                return true;
+            }
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStartEpochMillis() {
+            return startEpochMillis;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public List<Span> getSpans() {
+            synchronized (spans) {
+                return Collections.unmodifiableList(new ArrayList<>(spans));
+            }
+        }
+
+        public Map<String, Object> getSummary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("requestId", requestId);
+            summary.put("traceId", traceId);
+            summary.put("name", name);
+            summary.put("start", startEpochMillis);
+            summary.put("durationMillis", durationNanos / 1000000.0);
+            synchronized (spans) {
+                summary.put("spans", spans.size());
+            }
+            return summary;
+        }
+
+        public String toOtlpJson() {
+            StringBuilder json = new StringBuilder(512);
+            json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[{\"key\":\"service.name\",\"value\":{\"stringValue\":");
+            appendString(json, HapiProperties.getSoftwareName());
+            json.append("}}]},\"scopeSpans\":[{\"scope\":{\"name\":\"uk.nhs.careconnect.ri.messaging\"},\"spans\":[");
+            long startEpochNanos = startEpochMillis * 1000000L;
+            boolean first = true;
+            for (Span span : getSpans()) {
+                if (span.durationNanos < 0) continue;
+                if (!first) json.append(',');
+                first = false;
+                long spanStart = startEpochNanos + (span.startNanos - startNanos);
+                json.append("{\"traceId\":\"").append(traceId)
+                        .append("\",\"spanId\":\"").append(span.spanId).append('"');
+                if (span.parent != null) {
+                    json.append(",\"parentSpanId\":\"").append(span.parent.spanId).append('"');
+                }
+                json.append(",\"name\":");
+                appendString(json, span.getName());
+                json.append(",\"kind\":1,\"startTimeUnixNano\":\"").append(spanStart)
+                        .append("\",\"endTimeUnixNano\":\"").append(spanStart + span.durationNanos)
+                        .append("\",\"attributes\":[{\"key\":\"request.id\",\"value\":{\"stringValue\":");
+                appendString(json, requestId);
+                json.append("}}");
+                for (Map.Entry<String, String> attribute : span.getAttributes().entrySet()) {
+                    json.append(",{\"key\":");
+                    appendString(json, attribute.getKey());
+                    json.append(",\"value\":{\"stringValue\":");
+                    appendString(json, attribute.getValue());
+                    json.append("}}");
+                }
+                json.append(']');
+                if (span.error != null) {
+                    json.append(",\"status\":{\"code\":2,\"message\":");
+                    appendString(json, span.error);
+                    json.append('}');
+                }
+                json.append('}');
+            }
+            json.append("]}]}]}");
+            return json.toString();
+        }
+
+        private static void appendString(StringBuilder json, String value) {
+            if (value == null) {
+                json.append("null");
+                return;
+            }
+            json.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+            json.append('"');
+        }
+    }
+
+    /*
+        An operation within a trace. Closing a span makes its parent current again on this thread, closing the root
+        span finishes the trace.
+     */
+    public static class Span implements AutoCloseable {
+
+        private final Trace trace;
+
+        private final Span parent;
+
+        private final String name;
+
+        private final String detail;
+
+        private final String spanId;
+
+        private final long startNanos = System.nanoTime();
+
+        private volatile long durationNanos = -1;
+
+        private volatile String error;
+
+        private Map<String, String> attributes;
+
+        private Span previous;
+
+        private Span(Trace trace, Span parent, String name, String detail) {
+            this.trace = trace;
+            this.parent = parent;
+            this.name = name;
+            this.detail = detail;
+            this.spanId = (trace != null) ? randomHex(1) : null;
+        }
+
+        public String getName() {
+            return detail != null ? name + " " + detail : name;
+        }
+
+        public String getSpanId() {
+            return spanId;
+        }
+
+        public String getParentSpanId() {
+            return parent != null ? parent.spanId : null;
+        }
+
+        // Whether spans can still be added to this span's trace
+        public boolean isActive() {
+            return trace != null && trace.durationNanos < 0;
+        }
+
+        public long getOffsetNanos() {
+            return trace != null ? startNanos - trace.startNanos : 0;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public synchronized Map<String, String> getAttributes() {
+            return attributes != null ? new LinkedHashMap<>(attributes) : Collections.emptyMap();
+        }
+
+        public Span setAttribute(String key, String value) {
+            if (trace == null) return this;
+            synchronized (this) {
+                if (attributes == null) attributes = new LinkedHashMap<>();
+                attributes.put(key, value);
+            }
+            return this;
+        }
+
+        public Span setError(String message) {
+            if (trace != null) error = (message != null) ? message : "error";
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (trace == null || durationNanos >= 0) return;
+            durationNanos = System.nanoTime() - startNanos;
+            if (current.get() == this) {
+                current.set(previous);
+            }
+            if (parent == null) {
+                synchronized (trace.spans) {
+                    trace.durationNanos = durationNanos;
+                }
+                finished(trace);
+            }
+        }
+    }
+}
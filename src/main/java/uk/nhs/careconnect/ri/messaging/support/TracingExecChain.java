@@ -0,0 +1,49 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+import java.io.IOException;
+
+/*
+    Sends the X-Request-ID of the message being processed with each request of the pooled FHIR client, and records
+    the request as a span of its trace. Sits outside DownstreamExecChain, so retries fall within the one span.
+ */
+public class TracingExecChain implements ClientExecChain {
+
+    private final ClientExecChain next;
+
+    public TracingExecChain(ClientExecChain next) {
+        this.next = next;
+    }
+
+    @Override
+    public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+                                         HttpExecutionAware execAware) throws IOException, HttpException {
+        String requestId = Tracer.getRequestId();
+        if (requestId == null) {
+            return next.execute(route, request, context, execAware);
+        }
+        if (!request.containsHeader(Tracer.REQUEST_ID_HEADER)) {
+            request.setHeader(Tracer.REQUEST_ID_HEADER, requestId);
+        }
+        try (Tracer.Span span = Tracer.startSpan("http", request.getRequestLine().getMethod())) {
+            span.setAttribute("http.url", route.getTargetHost().toURI() + request.getRequestLine().getUri());
+            try {
+                CloseableHttpResponse response = next.execute(route, request, context, execAware);
+                int status = response.getStatusLine().getStatusCode();
+                span.setAttribute("http.status_code", Integer.toString(status));
+                if (status >= 500) span.setError("HTTP " + status);
+                return response;
+            } catch (IOException | HttpException | RuntimeException ex) {
+                span.setError(ex.getMessage());
+                throw ex;
+            }
+        }
+    }
+}
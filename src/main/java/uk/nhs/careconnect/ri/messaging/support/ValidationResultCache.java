@@ -0,0 +1,192 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.UriType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    OperationOutcomes of validated resources, so the same Patient, Practitioner or Organization sent again isn't
+    validated again.
+
+    Keys are the SHA-256 of the resource's JSON, the profiles it claims, the profile asked for and the validator
+    (which includes its version, a new release or profile set doesn't reuse old results). For the local validator
+    the id is left out of the hash and issue locations are set per resource, so an entry matches whatever fullUrl it
+    has in a bundle. Bounded by validation.cache.max_bytes, an estimate of the outcomes' size, and
+    validation.cache.ttl_seconds. Outcomes with a fatal issue (the validator failing rather than the resource) are not
+    kept. Hits, misses and evictions are published as cache.* metrics (cache=validation.results).
+ */
+public class ValidationResultCache {
+
+    private ValidationResultCache() {
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ValidationResultCache.class);
+
+    private static final int ISSUE_OVERHEAD_BYTES = 256;
+
+    private static final int ENTRY_OVERHEAD_BYTES = 512;
+
+    private static final AtomicLong weight = new AtomicLong();
+
+    private static Cache<String, OperationOutcome> cache;
+
+    // Statistics of the caches replaced on reload, so the counts carry on from them
+    private static CacheStats retired = new CacheStats(0, 0, 0, 0, 0, 0);
+
+    static {
+        // A cache is built with its bounds. The outcomes are cheap to recreate next to a change of size or age, so
+        // the new cache starts empty.
+        HapiProperties.addChangeListener(changed -> {
+            if (changed.contains("validation.cache.max_bytes") || changed.contains("validation.cache.ttl_seconds")) {
+                rebuild();
+            }
+        });
+
+        Tags tags = Tags.of("cache", "validation.results");
+        FunctionCounter.builder("cache.gets", ValidationResultCache.class, cacheClass -> getStats().hitCount())
+                .tags(tags).tag("result", "hit")
+                .description("Validations answered from the cache")
+                .register(Metrics.globalRegistry);
+        FunctionCounter.builder("cache.gets", ValidationResultCache.class, cacheClass -> getStats().missCount())
+                .tags(tags).tag("result", "miss")
+                .description("Validations not found in the cache")
+                .register(Metrics.globalRegistry);
+        FunctionCounter.builder("cache.evictions", ValidationResultCache.class, cacheClass -> getStats().evictionCount())
+                .tags(tags)
+                .description("Outcomes evicted by size or age")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("cache.size", ValidationResultCache.class, cacheClass -> getSize())
+                .tags(tags)
+                .description("Outcomes in the cache")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("messaging.validation.cache.size", weight, AtomicLong::get)
+                .description("Estimated size of the cached validation outcomes")
+                .baseUnit("bytes")
+                .register(Metrics.globalRegistry);
+    }
+
+    private static synchronized Cache<String, OperationOutcome> getCache() {
+        if (cache == null) {
+            cache = newCache();
+        }
+        return cache;
+    }
+
+    private static Cache<String, OperationOutcome> newCache() {
+        return CacheBuilder.newBuilder()
+                .maximumWeight(HapiProperties.getValidationCacheMaxBytes())
+                .weigher((String key, OperationOutcome outcome) -> weigh(key, outcome))
+                .expireAfterWrite(HapiProperties.getValidationCacheTtlSeconds(), TimeUnit.SECONDS)
+                .removalListener((RemovalNotification<String, OperationOutcome> removed) ->
+                        weight.addAndGet(-weigh(removed.getKey(), removed.getValue())))
+                .recordStats()
+                .build();
+    }
+
+    private static synchronized void rebuild() {
+        if (cache == null) return;
+        retired = retired.plus(cache.stats());
+        cache = newCache();
+        weight.set(0);
+        log.info("Validation result cache rebuilt");
+    }
+
+    public static boolean isEnabled() {
+        return HapiProperties.getValidationCache();
+    }
+
+    /*
+        Null when the cache is off or the resource can't be encoded.
+     */
+    public static String getKey(FhirContext ctx, Resource resource, boolean includeId, String profile, String validator) {
+        if (!isEnabled() || resource == null) return null;
+        Hasher hasher = Hashing.sha256().newHasher();
+        try (Writer writer = new OutputStreamWriter(Funnels.asOutputStream(hasher), StandardCharsets.UTF_8)) {
+            ctx.newJsonParser().setOmitResourceId(!includeId).encodeResourceToWriter(resource, writer);
+        } catch (IOException | RuntimeException ex) {
+            log.debug("Not cached, unable to encode {} ({})", resource.getResourceType(), ex.getMessage());
+            return null;
+        }
+        StringBuilder key = new StringBuilder(128).append(hasher.hash().toString());
+        if (resource.hasMeta()) {
+            for (UriType claimed : resource.getMeta().getProfile()) {
+                key.append('|').append(claimed.getValue());
+            }
+        }
+        key.append('|').append(profile != null ? profile : "").append('|').append(validator);
+        return key.toString();
+    }
+
+    /*
+        Returns a copy, callers may change the issues.
+     */
+    public static OperationOutcome get(String key) {
+        if (key == null) return null;
+        OperationOutcome outcome = getCache().getIfPresent(key);
+        return (outcome != null) ? outcome.copy() : null;
+    }
+
+    public static void put(String key, OperationOutcome outcome) {
+        if (key == null || outcome == null) return;
+        for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+            if (issue.getSeverity() == OperationOutcome.IssueSeverity.FATAL) return;
+        }
+        OperationOutcome copy = outcome.copy();
+        weight.addAndGet(weigh(key, copy));
+        getCache().put(key, copy);
+    }
+
+    public static void invalidateAll() {
+        getCache().invalidateAll();
+    }
+
+    public static synchronized CacheStats getStats() {
+        return retired.plus(getCache().stats());
+    }
+
+    public static long getSize() {
+        return getCache().size();
+    }
+
+    // Estimated bytes held by the cached outcomes
+    public static long getWeight() {
+        return weight.get();
+    }
+
+    // Strings are counted at two bytes a character
+    private static int weigh(String key, OperationOutcome outcome) {
+        int bytes = ENTRY_OVERHEAD_BYTES + key.length() * 2;
+        for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+            bytes += ISSUE_OVERHEAD_BYTES;
+            if (issue.hasDiagnostics()) bytes += issue.getDiagnostics().length() * 2;
+            for (StringType location : issue.getLocation()) {
+                if (location.hasValue()) bytes += location.getValue().length() * 2;
+            }
+        }
+        return bytes;
+    }
+}
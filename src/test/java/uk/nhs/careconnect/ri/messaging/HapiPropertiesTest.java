@@ -0,0 +1,83 @@
+package uk.nhs.careconnect.ri.messaging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HapiPropertiesTest {
+
+    private static final String UNLISTED = "test.unlisted.setting";
+
+    // Listeners can't be removed, so one is added for the class and each test starts from an empty list
+    private static final List<Set<String>> changes = new CopyOnWriteArrayList<>();
+
+    static {
+        HapiProperties.addChangeListener(changes::add);
+    }
+
+    @Before
+    public void setUp() {
+        HapiProperties.getSnapshot();
+        changes.clear();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(UNLISTED);
+        HapiProperties.getProperties().remove(UNLISTED);
+        HapiProperties.setProperty(HapiProperties.EPR_BATCH_LOOKUP_MAX_ENTRIES, "100");
+    }
+
+    @Test
+    public void setPropertySwapsTheSnapshotAndNotifiesListeners() {
+        HapiProperties.setProperty(HapiProperties.EPR_BATCH_LOOKUP_MAX_ENTRIES, "100");
+        HapiProperties.Snapshot before = HapiProperties.getSnapshot();
+        changes.clear();
+
+        HapiProperties.setProperty(HapiProperties.EPR_BATCH_LOOKUP_MAX_ENTRIES, "25");
+
+        HapiProperties.Snapshot after = HapiProperties.getSnapshot();
+        assertEquals(Integer.valueOf(25), HapiProperties.getEprBatchLookupMaxEntries());
+        assertEquals("25", after.get(HapiProperties.EPR_BATCH_LOOKUP_MAX_ENTRIES));
+        // A caller holding the old snapshot keeps a consistent view
+        assertEquals("100", before.get(HapiProperties.EPR_BATCH_LOOKUP_MAX_ENTRIES));
+        assertEquals(1, changes.size());
+        assertTrue(changes.get(0).contains(HapiProperties.EPR_BATCH_LOOKUP_MAX_ENTRIES));
+    }
+
+    @Test
+    public void unchangedReloadDoesNotNotify() {
+        HapiProperties.forceReload();
+
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void anyNameCanBeSetBySystemProperty() {
+        assertNull(HapiProperties.getSnapshot().get(UNLISTED));
+
+        System.setProperty(UNLISTED, "from-system");
+        HapiProperties.forceReload();
+
+        assertEquals("from-system", HapiProperties.getSnapshot().get(UNLISTED));
+        assertFalse(changes.isEmpty());
+        assertTrue(changes.get(0).contains(UNLISTED));
+    }
+
+    @Test
+    public void systemPropertyOverridesTheFiles() {
+        System.setProperty(UNLISTED, "from-system");
+        HapiProperties.setProperty(UNLISTED, "from-file");
+
+        assertEquals("from-system", HapiProperties.getSnapshot().get(UNLISTED));
+    }
+}
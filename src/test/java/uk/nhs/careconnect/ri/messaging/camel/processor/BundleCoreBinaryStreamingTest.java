@@ -0,0 +1,129 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.dstu3.model.Binary;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.BinarySpool;
+
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BundleCoreBinaryStreamingTest {
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DefaultCamelContext camelContext;
+
+    // What the EDMS route was given
+    private final AtomicReference<Object> received = new AtomicReference<>();
+
+    private final AtomicReference<byte[]> receivedContent = new AtomicReference<>();
+
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        HapiProperties.setProperty("edms.binary.streaming", "true");
+        HapiProperties.setProperty("edms.binary.streaming.threshold_bytes", "1024");
+        HapiProperties.setProperty("edms.binary.spool_directory", folder.getRoot().getPath());
+        HapiProperties.setProperty("edms.binary.dedup", "false");
+
+        content = new byte[256 * 1024];
+        new Random(14).nextBytes(content);
+
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                // Stands in for the EDMS endpoint
+                from("direct:EDMSServer").process(exchange -> {
+                    Object body = exchange.getIn().getBody();
+                    received.set(body);
+                    if (body instanceof InputStream) {
+                        receivedContent.set(IOUtils.toByteArray((InputStream) body));
+                    }
+                    exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 201);
+                    exchange.getIn().setHeader("Location", "http://edms/STU3/Binary/55");
+                });
+            }
+        });
+        camelContext.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        camelContext.stop();
+    }
+
+    @Test
+    public void spooledBinaryIsStreamedToEdms() throws Exception {
+        HapiProperties.setProperty("camel.route.edms", "http4://edms/STU3?bridgeEndpoint=true");
+        Bundle bundle = getBundle();
+        Binary binary = (Binary) bundle.getEntryFirstRep().getResource();
+
+        BinarySpool.spool(bundle);
+        assertTrue(BinarySpool.isSpooled(binary));
+        assertNull(binary.getContent());
+
+        try {
+            Binary sent = new BundleCore(ctx, camelContext, bundle, "http://epr/STU3", "http://edms/STU3")
+                    .searchAddBinary(binary.getId(), binary);
+
+            assertTrue(received.get() instanceof InputStream);
+            assertArrayEquals(content, receivedContent.get());
+            assertEquals("55", sent.getIdElement().getIdPart());
+            // Never read back into the model
+            assertNull(binary.getContent());
+        } finally {
+            BinarySpool.release(bundle);
+        }
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void spooledBinaryIsLoadedForATextRoute() throws Exception {
+        HapiProperties.setProperty("camel.route.edms", "fhir://create/resource?inBody=resourceAsString");
+        Bundle bundle = getBundle();
+        Binary binary = (Binary) bundle.getEntryFirstRep().getResource();
+
+        BinarySpool.spool(bundle);
+        try {
+            new BundleCore(ctx, camelContext, bundle, "http://epr/STU3", "http://edms/STU3").searchAddBinary(binary.getId(), binary);
+
+            assertTrue(received.get() instanceof String);
+            Binary posted = ctx.newXmlParser().parseResource(Binary.class, (String) received.get());
+            assertArrayEquals(content, posted.getContent());
+        } finally {
+            BinarySpool.release(bundle);
+        }
+    }
+
+    private Bundle getBundle() {
+        Binary binary = new Binary();
+        binary.setId("urn:uuid:binary-" + System.nanoTime());
+        binary.setContentType("application/pdf");
+        binary.setContent(content);
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl(binary.getId()).setResource(binary);
+        return bundle;
+    }
+}
@@ -0,0 +1,115 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Condition;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BundleCoreIdentifierSearchTest {
+
+    private static final String SYSTEM = "https://tools.ietf.org/html/rfc4122";
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    private static StubEprServer epr;
+
+    private final List<String> referenceIds = new ArrayList<>();
+
+    private Bundle bundle;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        epr = new StubEprServer();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        epr.stop();
+    }
+
+    @Before
+    public void setUp() {
+        HapiProperties.setProperty("epr.batch_lookup", "true");
+        HapiProperties.setProperty("epr.batch_lookup.max_entries", "2");
+        epr.setBatchStatus(200);
+
+        bundle = new Bundle();
+        referenceIds.clear();
+        for (int i = 0; i < 3; i++) {
+            String value = getClass().getSimpleName() + "-" + i + "-" + System.nanoTime();
+            Condition condition = new Condition();
+            condition.setId("urn:uuid:" + value);
+            condition.addIdentifier().setSystem(SYSTEM).setValue(value);
+            bundle.addEntry().setFullUrl(condition.getId()).setResource(condition);
+            referenceIds.add(condition.getId());
+
+            Condition existing = new Condition();
+            existing.setId("Condition/" + (100 + i));
+            epr.put("Condition", SYSTEM, value, existing);
+        }
+    }
+
+    @Test
+    public void identifierSearchesAreBatched() throws Exception {
+        BundleCore bundleCore = new BundleCore(ctx, null, bundle, epr.getBase(), epr.getBase());
+        int batches = epr.getRequests("POST", "").size();
+
+        bundleCore.prefetchIdentifierSearches(referenceIds);
+
+        // epr.batch_lookup.max_entries of 2, so three searches take two round trips
+        List<StubEprServer.Request> posted = epr.getRequests("POST", "");
+        assertEquals(batches + 2, posted.size());
+        assertEquals(2, epr.parse(Bundle.class, posted.get(batches)).getEntry().size());
+        assertEquals(1, epr.parse(Bundle.class, posted.get(batches + 1)).getEntry().size());
+
+        int searches = epr.getRequests("GET", "/Condition").size();
+        for (int i = 0; i < 3; i++) {
+            Bundle found = (Bundle) bundleCore.queryResource(getIdentifier(i), "Condition");
+            assertEquals("Condition/" + (100 + i), found.getEntryFirstRep().getResource().getIdElement().toUnqualifiedVersionless().getValue());
+        }
+        assertEquals(searches, epr.getRequests("GET", "/Condition").size());
+
+        // A prefetched result is used once, a repeat search goes to the EPR
+        bundleCore.queryResource(getIdentifier(0), "Condition");
+        assertEquals(searches + 1, epr.getRequests("GET", "/Condition").size());
+    }
+
+    @Test
+    public void failedBatchFallsBackToIndividualSearches() throws Exception {
+        epr.setBatchStatus(500);
+        BundleCore bundleCore = new BundleCore(ctx, null, bundle, epr.getBase(), epr.getBase());
+
+        bundleCore.prefetchIdentifierSearches(referenceIds);
+
+        int searches = epr.getRequests("GET", "/Condition").size();
+        Bundle found = (Bundle) bundleCore.queryResource(getIdentifier(1), "Condition");
+        assertEquals(1, found.getEntry().size());
+        assertEquals(searches + 1, epr.getRequests("GET", "/Condition").size());
+    }
+
+    @Test
+    public void disabledBatchLookupSendsNoBatch() throws Exception {
+        HapiProperties.setProperty("epr.batch_lookup", "false");
+        BundleCore bundleCore = new BundleCore(ctx, null, bundle, epr.getBase(), epr.getBase());
+        int batches = epr.getRequests("POST", "").size();
+
+        bundleCore.prefetchIdentifierSearches(referenceIds);
+
+        assertEquals(batches, epr.getRequests("POST", "").size());
+    }
+
+    private Identifier getIdentifier(int index) {
+        return ((Condition) bundle.getEntry().get(index).getResource()).getIdentifierFirstRep();
+    }
+}
@@ -0,0 +1,108 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.ReferenceDataCache;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BundleCoreReferenceCacheTest {
+
+    private static final String SYSTEM = "https://tools.ietf.org/html/rfc4122";
+
+    private static final String ODS_SYSTEM = "https://fhir.nhs.uk/Id/ods-organization-code";
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    private static StubEprServer epr;
+
+    private String value;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        epr = new StubEprServer();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        epr.stop();
+    }
+
+    @Before
+    public void setUp() {
+        HapiProperties.setProperty("epr.reference_cache", "true");
+        ReferenceDataCache.invalidateAll();
+        value = getClass().getSimpleName() + "-" + System.nanoTime();
+    }
+
+    @Test
+    public void referenceDataIsSearchedOnce() throws Exception {
+        Organization organization = new Organization();
+        organization.setId("Organization/7");
+        epr.put("Organization", ODS_SYSTEM, value, organization);
+        Identifier identifier = new Identifier().setSystem(ODS_SYSTEM).setValue(value);
+
+        query(identifier, "Organization");
+        Bundle second = query(identifier, "Organization");
+
+        assertEquals("Organization/7", second.getEntryFirstRep().getResource().getIdElement().toUnqualifiedVersionless().getValue());
+        assertEquals(1, getSearches("Organization"));
+    }
+
+    @Test
+    public void clinicalResourcesAreNeverCached() throws Exception {
+        Observation observation = new Observation();
+        observation.setId("Observation/8");
+        epr.put("Observation", SYSTEM, value, observation);
+        Identifier identifier = new Identifier().setSystem(SYSTEM).setValue(value);
+
+        query(identifier, "Observation");
+        Bundle second = query(identifier, "Observation");
+
+        assertEquals(1, second.getEntry().size());
+        assertEquals(2, getSearches("Observation"));
+        assertFalse(ReferenceDataCache.isCached("Observation"));
+        assertFalse(ReferenceDataCache.contains("Observation", identifier));
+        assertEquals(0, ReferenceDataCache.getSize());
+    }
+
+    @Test
+    public void clinicalResourcesPutInTheCacheAreNotReturned() {
+        Observation observation = new Observation();
+        observation.setId("Observation/9");
+        Identifier identifier = new Identifier().setSystem(SYSTEM).setValue(value);
+
+        ReferenceDataCache.put("Observation", identifier, observation);
+
+        assertNull(ReferenceDataCache.get("Observation", identifier));
+        assertEquals(0, ReferenceDataCache.getSize());
+        assertTrue(ReferenceDataCache.isCached("Organization"));
+    }
+
+    private Bundle query(Identifier identifier, String resourceName) throws Exception {
+        // A BundleCore per message, the cache is shared by all of them
+        BundleCore bundleCore = new BundleCore(ctx, null, new Bundle(), epr.getBase(), epr.getBase());
+        return (Bundle) bundleCore.queryResource(identifier, resourceName);
+    }
+
+    private int getSearches(String resourceName) {
+        int searches = 0;
+        for (StubEprServer.Request request : epr.getRequests("GET", "/" + resourceName)) {
+            if (request.uri.contains(value)) searches++;
+        }
+        return searches;
+    }
+}
@@ -0,0 +1,148 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BundleCoreTransactionWriteTest {
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    private static StubEprServer epr;
+
+    private Bundle bundle;
+
+    private String patientUrl;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        epr = new StubEprServer();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        epr.stop();
+    }
+
+    @Before
+    public void setUp() {
+        HapiProperties.setProperty("epr.reference_cache", "false");
+        epr.setTransactionStatus(200);
+
+        String value = getClass().getSimpleName() + "-" + System.nanoTime();
+        Patient patient = new Patient();
+        patient.setId("urn:uuid:patient-" + value);
+        patient.addIdentifier().setSystem("https://fhir.nhs.uk/Id/nhs-number").setValue(value);
+        patientUrl = patient.getId();
+
+        Observation observation = new Observation();
+        observation.setId("urn:uuid:observation-" + value);
+        observation.addIdentifier().setSystem("https://tools.ietf.org/html/rfc4122").setValue(value);
+        observation.setSubject(new Reference(patientUrl));
+
+        // The Observation first, resolution still writes the Patient it depends on first
+        bundle = new Bundle();
+        bundle.addEntry().setFullUrl(observation.getId()).setResource(observation);
+        bundle.addEntry().setFullUrl(patient.getId()).setResource(patient);
+    }
+
+    @Test
+    public void writesAreSentAsOneTransaction() throws Exception {
+        int creates = epr.getRequests("POST", "/").size();
+        BundleCore bundleCore = new BundleCore(ctx, null, bundle, epr.getBase(), epr.getBase());
+        bundleCore.setTransactionWrite(true);
+
+        bundleCore.searchAddBundle();
+        assertTrue(getTransactions().isEmpty());
+        bundleCore.commitTransaction();
+
+        assertEquals(creates, epr.getRequests("POST", "/").size());
+        List<Bundle> transactions = getTransactions();
+        assertEquals(1, transactions.size());
+        Bundle transaction = transactions.get(0);
+        assertEquals(2, transaction.getEntry().size());
+
+        // Dependencies first, the Observation references the queued Patient by its urn:uuid
+        Bundle.BundleEntryComponent patientEntry = transaction.getEntry().get(0);
+        Bundle.BundleEntryComponent observationEntry = transaction.getEntry().get(1);
+        assertTrue(patientEntry.getResource() instanceof Patient);
+        assertTrue(patientEntry.getFullUrl().startsWith("urn:uuid:"));
+        assertTrue(patientEntry.getRequest().getIfNoneExist().startsWith("identifier="));
+        assertEquals(patientEntry.getFullUrl(), ((Observation) observationEntry.getResource()).getSubject().getReference());
+
+        // The resolved resources carry the ids the EPR assigned
+        Observation resolved = (Observation) getResolved(bundleCore, Observation.class);
+        assertTrue(resolved.getIdElement().getValue().startsWith(epr.getBase() + "/Observation/"));
+        assertTrue(resolved.getSubject().getReference().startsWith(epr.getBase() + "/Patient/"));
+    }
+
+    @Test
+    public void unsupportedTransactionIsWrittenEntryByEntry() throws Exception {
+        epr.setTransactionStatus(501);
+        int patients = epr.getRequests("POST", "/Patient").size();
+        int observations = epr.getRequests("POST", "/Observation").size();
+        BundleCore bundleCore = new BundleCore(ctx, null, bundle, epr.getBase(), epr.getBase());
+        bundleCore.setTransactionWrite(true);
+
+        bundleCore.searchAddBundle();
+        bundleCore.commitTransaction();
+
+        assertEquals(patients + 1, epr.getRequests("POST", "/Patient").size());
+        List<StubEprServer.Request> posted = epr.getRequests("POST", "/Observation");
+        assertEquals(observations + 1, posted.size());
+
+        // The urn:uuid reference is rewritten to the created Patient before the Observation is sent
+        String subject = epr.parse(Observation.class, posted.get(posted.size() - 1)).getSubject().getReference();
+        assertFalse(subject, subject.startsWith("urn:uuid:"));
+        assertTrue(subject, subject.matches(".*Patient/\\d+.*"));
+
+        Observation resolved = (Observation) getResolved(bundleCore, Observation.class);
+        assertTrue(resolved.getSubject().getReference().matches(".*Patient/\\d+.*"));
+        assertFalse(resolved.getIdElement().getValue().startsWith("urn:uuid:"));
+    }
+
+    private List<Bundle> getTransactions() {
+        List<Bundle> transactions = new ArrayList<>();
+        for (StubEprServer.Request request : epr.getRequests("POST", "")) {
+            if (!request.uri.equals("/STU3") && !request.uri.equals("/STU3/")) continue;
+            Bundle posted = epr.parse(Bundle.class, request);
+            if (posted.getType() == Bundle.BundleType.TRANSACTION && isOfThisTest(posted)) {
+                transactions.add(posted);
+            }
+        }
+        return transactions;
+    }
+
+    // The server is shared by the tests of the class
+    private boolean isOfThisTest(Bundle transaction) {
+        String value = patientUrl.substring("urn:uuid:patient-".length());
+        for (Bundle.BundleEntryComponent entry : transaction.getEntry()) {
+            if (entry.getResource() instanceof Patient
+                    && value.equals(((Patient) entry.getResource()).getIdentifierFirstRep().getValue())) return true;
+        }
+        return false;
+    }
+
+    private Resource getResolved(BundleCore bundleCore, Class<? extends Resource> type) throws Exception {
+        for (Bundle.BundleEntryComponent entry : bundleCore.getUpdatedBundle().getEntry()) {
+            if (type.isInstance(entry.getResource())) return entry.getResource();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,103 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Condition;
+import org.hl7.fhir.dstu3.model.Encounter;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class BundleDependencyPlannerTest {
+
+    private static FhirContext ctx;
+
+    @BeforeClass
+    public static void setUpClass() {
+        ctx = FhirContext.forDstu3();
+    }
+
+    @Test
+    public void entriesAreLevelledAfterTheirDependencies() {
+        Patient patient = new Patient();
+        patient.setId("patient");
+        Organization organization = new Organization();
+        organization.setId("organization");
+        Encounter encounter = new Encounter();
+        encounter.setId("encounter");
+        encounter.setSubject(new Reference("Patient/patient"));
+        encounter.setServiceProvider(new Reference("urn:uuid:organization"));
+        Observation observation = new Observation();
+        observation.setId("observation");
+        observation.setSubject(new Reference("Patient/patient"));
+        observation.setContext(new Reference("Encounter/encounter"));
+        // Not in the bundle, so not a dependency
+        observation.addPerformer(new Reference("https://directory.spineservices.nhs.uk/STU3/Organization/RR8"));
+
+        BundleDependencyPlanner planner = plan(observation, encounter, patient, organization);
+
+        assertEquals(3, planner.getLevels().size());
+        assertEquals(set("patient", "organization"), new HashSet<>(planner.getLevels().get(0)));
+        assertEquals(Collections.singletonList("encounter"), planner.getLevels().get(1));
+        assertEquals(Collections.singletonList("observation"), planner.getLevels().get(2));
+        assertEquals(0, planner.getUnordered().size());
+    }
+
+    @Test
+    public void selfReferenceIsNotADependency() {
+        Organization organization = new Organization();
+        organization.setId("organization");
+        organization.setPartOf(new Reference("Organization/organization"));
+
+        BundleDependencyPlanner planner = plan(organization);
+
+        assertEquals(1, planner.getLevels().size());
+        assertEquals(Collections.singletonList("organization"), planner.getLevels().get(0));
+    }
+
+    @Test
+    public void cycleAndItsDependantsAreLeftUnordered() {
+        Patient patient = new Patient();
+        patient.setId("patient");
+        Encounter encounter = new Encounter();
+        encounter.setId("encounter");
+        encounter.setSubject(new Reference("Patient/patient"));
+        encounter.addDiagnosis().setCondition(new Reference("Condition/condition"));
+        Condition condition = new Condition();
+        condition.setId("condition");
+        condition.setSubject(new Reference("Patient/patient"));
+        condition.setContext(new Reference("Encounter/encounter"));
+        Observation observation = new Observation();
+        observation.setId("observation");
+        observation.setContext(new Reference("Encounter/encounter"));
+
+        BundleDependencyPlanner planner = plan(patient, encounter, condition, observation);
+
+        assertEquals(1, planner.getLevels().size());
+        assertEquals(Collections.singletonList("patient"), planner.getLevels().get(0));
+        assertEquals(set("encounter", "condition", "observation"), new HashSet<>(planner.getUnordered()));
+    }
+
+    private BundleDependencyPlanner plan(Resource... resources) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        for (Resource resource : resources) {
+            bundle.addEntry().setFullUrl("urn:uuid:" + resource.getId()).setResource(resource);
+        }
+        return new BundleDependencyPlanner(ctx, bundle, new BundleIndex(bundle));
+    }
+
+    private static HashSet<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,88 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BundleMessageTest {
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    private static StubEprServer epr;
+
+    private static DefaultCamelContext camelContext;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        HapiProperties.setProperty("epr.reference_cache", "false");
+        epr = new StubEprServer();
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        camelContext.stop();
+        epr.stop();
+    }
+
+    @Test
+    public void parsedBundleIsResolvedWithoutEncoding() throws Exception {
+        Bundle bundle = getBundle();
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(bundle);
+
+        new BundleMessage(ctx, epr.getBase(), epr.getBase()).process(exchange);
+
+        // The updated bundle is handed back as a model, not as XML
+        Object body = exchange.getIn().getBody();
+        assertTrue(body.getClass().getName(), body instanceof Bundle);
+        Observation observation = (Observation) ((Bundle) body).getEntry().get(1).getResource();
+        assertTrue(observation.getIdElement().getValue().contains("Observation/"));
+        assertTrue(observation.getSubject().getReference().contains("Patient/"));
+        assertFalse(exchange.getIn().getHeaders().containsKey(Exchange.HTTP_RESPONSE_CODE));
+    }
+
+    @Test
+    public void replayedXmlIsParsed() throws Exception {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(getBundle()));
+
+        new BundleMessage(ctx, epr.getBase(), epr.getBase()).process(exchange);
+
+        Object body = exchange.getIn().getBody();
+        assertTrue(body.getClass().getName(), body instanceof Bundle);
+        assertEquals(2, ((Bundle) body).getEntry().size());
+    }
+
+    private Bundle getBundle() {
+        String value = getClass().getSimpleName() + "-" + System.nanoTime();
+        Patient patient = new Patient();
+        patient.setId("urn:uuid:patient-" + value);
+        patient.addIdentifier().setSystem("https://fhir.nhs.uk/Id/nhs-number").setValue(value);
+
+        Observation observation = new Observation();
+        observation.setId("urn:uuid:observation-" + value);
+        observation.addIdentifier().setSystem("https://tools.ietf.org/html/rfc4122").setValue(value);
+        observation.setSubject(new Reference(patient.getId()));
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.MESSAGE);
+        bundle.addEntry().setFullUrl(patient.getId()).setResource(patient);
+        bundle.addEntry().setFullUrl(observation.getId()).setResource(observation);
+        return bundle;
+    }
+}
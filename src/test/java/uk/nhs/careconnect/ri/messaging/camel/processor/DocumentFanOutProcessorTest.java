@@ -0,0 +1,165 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Composition;
+import org.hl7.fhir.dstu3.model.DocumentReference;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentFanOutProcessorTest {
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    private static StubEprServer epr;
+
+    private DefaultCamelContext camelContext;
+
+    private ProducerTemplate template;
+
+    // Counted down by the EPR load, the EDMS post waits for it so the test only passes if both run at once
+    private CountDownLatch eprLoading;
+
+    private volatile boolean eprFails;
+
+    private volatile String edmsBody;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        epr = new StubEprServer();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        epr.stop();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        HapiProperties.setProperty("epr.reference_cache", "false");
+        HapiProperties.setProperty("edms.binary.dedup", "false");
+        eprLoading = new CountDownLatch(1);
+        eprFails = false;
+
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:EDMSServer").process(exchange -> {
+                    edmsBody = exchange.getIn().getBody(String.class);
+                    if (!eprLoading.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("EPR load not concurrent");
+                    // An existing Binary is answered with 200
+                    exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+                    exchange.getIn().setHeader("Location", epr.getBase() + "/Binary/88");
+                });
+                from("direct:FHIRBundleMessage").process(exchange -> {
+                    eprLoading.countDown();
+                    Bundle bundle = exchange.getIn().getBody(Bundle.class);
+                    if (eprFails) {
+                        OperationOutcome outcome = new OperationOutcome();
+                        outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setDiagnostics("EPR load failed");
+                        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "400");
+                        exchange.getIn().setBody(outcome);
+                        return;
+                    }
+                    // As BundleMessage, the entries come back in order with the ids the EPR gave them
+                    Bundle updated = new Bundle();
+                    int id = 100;
+                    for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                        Resource resolved = entry.getResource().copy();
+                        resolved.setId(resolved.getResourceType().name() + "/" + id++);
+                        updated.addEntry().setResource(resolved);
+                    }
+                    exchange.getIn().setBody(updated);
+                });
+            }
+        });
+        camelContext.start();
+        template = camelContext.createProducerTemplate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        camelContext.stop();
+    }
+
+    @Test
+    public void documentReferenceIsBuiltFromTheEprLoad() throws Exception {
+        Exchange exchange = process(getDocument());
+
+        assertEquals("201", exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE).toString());
+        assertTrue(edmsBody.contains("<Bundle"));
+        Bundle response = exchange.getIn().getBody(Bundle.class);
+        assertEquals(3, response.getEntry().size());
+        assertTrue(response.getEntry().get(2).getResource() instanceof DocumentReference);
+
+        // The DocumentReference sent to the EPR refers to the resolved Patient and the EDMS Binary
+        List<StubEprServer.Request> posted = epr.getRequests("POST", "/DocumentReference");
+        assertEquals(1, posted.size());
+        DocumentReference documentReference = epr.parse(DocumentReference.class, posted.get(0));
+        assertEquals("Patient/101", documentReference.getSubject().getReference());
+        assertEquals(epr.getBase() + "/Binary/88", documentReference.getContentFirstRep().getAttachment().getUrl());
+    }
+
+    @Test
+    public void failedEprLoadRemovesTheEdmsBinary() throws Exception {
+        eprFails = true;
+        int deletes = epr.getRequests("DELETE", "/Binary/88").size();
+
+        Exchange exchange = process(getDocument());
+
+        assertEquals("400", exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE).toString());
+        assertTrue(exchange.getIn().getBody() instanceof OperationOutcome);
+        assertEquals(deletes + 1, epr.getRequests("DELETE", "/Binary/88").size());
+    }
+
+    private Exchange process(Bundle document) throws Exception {
+        CompositionDocumentBundle compositionDocumentBundle = new CompositionDocumentBundle(ctx, epr.getBase(), epr.getBase());
+        DocumentFanOutProcessor processor = new DocumentFanOutProcessor(ctx, template, compositionDocumentBundle,
+                epr.getBase(), epr.getBase());
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(document);
+        processor.process(exchange);
+        return exchange;
+    }
+
+    private Bundle getDocument() {
+        String value = getClass().getSimpleName() + "-" + System.nanoTime();
+        Patient patient = new Patient();
+        patient.setId("urn:uuid:patient-" + value);
+        patient.addIdentifier().setSystem("https://fhir.nhs.uk/Id/nhs-number").setValue(value);
+
+        Composition composition = new Composition();
+        composition.setId("urn:uuid:composition-" + value);
+        composition.setStatus(Composition.CompositionStatus.FINAL);
+        composition.getSubject().setReference(patient.getId());
+        composition.setTitle("Discharge summary");
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.DOCUMENT);
+        bundle.getIdentifier().setSystem("https://tools.ietf.org/html/rfc4122").setValue(value);
+        bundle.addEntry().setFullUrl(composition.getId()).setResource(composition);
+        bundle.addEntry().setFullUrl(patient.getId()).setResource(patient);
+        return bundle;
+    }
+}
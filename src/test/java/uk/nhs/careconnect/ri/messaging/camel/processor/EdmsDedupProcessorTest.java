@@ -0,0 +1,134 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.hl7.fhir.dstu3.model.Binary;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.BinaryContentIndex;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EdmsDedupProcessorTest {
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private DefaultCamelContext camelContext;
+
+    private final AtomicInteger posts = new AtomicInteger();
+
+    private Path indexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        indexFile = folder.getRoot().toPath().resolve("binary-index.log");
+        HapiProperties.setProperty("edms.binary.dedup", "true");
+        HapiProperties.setProperty("edms.binary.dedup.file", indexFile.toString());
+        HapiProperties.setProperty("edms.binary.streaming", "false");
+        BinaryContentIndex.invalidateAll();
+
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                // Stands in for the EDMS endpoint, each post creates a Binary
+                from("direct:EDMSServer").process(exchange -> {
+                    int id = 70 + posts.incrementAndGet();
+                    exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 201);
+                    exchange.getIn().setHeader("Location", "http://edms/STU3/Binary/" + id);
+                });
+            }
+        });
+        camelContext.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        camelContext.stop();
+    }
+
+    @Test
+    public void repeatedDocumentIsAnsweredFromTheIndex() throws Exception {
+        String document = "<Bundle xmlns=\"http://hl7.org/fhir\"><id value=\"letter\"/></Bundle>";
+
+        Exchange first = lookup(document);
+        assertFalse(first.getIn().getHeader(EdmsDedupProcessor.DUPLICATE_HEADER, Boolean.class));
+        // As EDMS answers the post
+        first.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 201);
+        first.getIn().setHeader("Location", "http://edms/STU3/Binary/77");
+        new EdmsDedupProcessor(EdmsDedupProcessor.Mode.RECORD).process(first);
+
+        Exchange repeat = lookup(document);
+        assertTrue(repeat.getIn().getHeader(EdmsDedupProcessor.DUPLICATE_HEADER, Boolean.class));
+        assertEquals("201", repeat.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE).toString());
+        assertEquals("Binary/77", repeat.getIn().getHeader("Location"));
+
+        Exchange other = lookup(document.replace("letter", "leaflet"));
+        assertFalse(other.getIn().getHeader(EdmsDedupProcessor.DUPLICATE_HEADER, Boolean.class));
+    }
+
+    @Test
+    public void failedPostIsNotRecorded() throws Exception {
+        String document = "<Bundle xmlns=\"http://hl7.org/fhir\"><id value=\"rejected\"/></Bundle>";
+
+        Exchange first = lookup(document);
+        first.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 500);
+        new EdmsDedupProcessor(EdmsDedupProcessor.Mode.RECORD).process(first);
+
+        assertFalse(lookup(document).getIn().getHeader(EdmsDedupProcessor.DUPLICATE_HEADER, Boolean.class));
+    }
+
+    @Test
+    public void repeatedBinaryIsUploadedOnce() throws Exception {
+        byte[] content = "letterhead".getBytes(StandardCharsets.UTF_8);
+
+        Binary first = searchAddBinary(content, "image/png");
+        Binary repeat = searchAddBinary(content, "image/png");
+        // Same bytes of another type are different content
+        Binary other = searchAddBinary(content, "application/pdf");
+
+        assertEquals(2, posts.get());
+        assertEquals("71", first.getIdElement().getIdPart());
+        assertEquals("71", repeat.getIdElement().getIdPart());
+        assertEquals("72", other.getIdElement().getIdPart());
+        // Persisted as the digest and the EDMS id
+        assertTrue(new String(Files.readAllBytes(indexFile), StandardCharsets.UTF_8).contains(" 71\n"));
+    }
+
+    private Exchange lookup(String document) throws Exception {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setHeader(Exchange.HTTP_METHOD, "POST");
+        exchange.getIn().setHeader(Exchange.HTTP_PATH, "Bundle");
+        exchange.getIn().setBody(document);
+        new EdmsDedupProcessor(EdmsDedupProcessor.Mode.LOOKUP).process(exchange);
+        return exchange;
+    }
+
+    private Binary searchAddBinary(byte[] content, String contentType) throws Exception {
+        Binary binary = new Binary();
+        binary.setId("urn:uuid:binary-" + System.nanoTime());
+        binary.setContentType(contentType);
+        binary.setContent(content);
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl(binary.getId()).setResource(binary);
+        return new BundleCore(ctx, camelContext, bundle, "http://epr/STU3", "http://edms/STU3").searchAddBinary(binary.getId(), binary);
+    }
+}
@@ -0,0 +1,209 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.IdempotencyStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IdempotentProcessorTest {
+
+    private static final int DUPLICATES = 4;
+
+    private static FhirContext ctx;
+
+    private static CamelContext camelContext;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @BeforeClass
+    public static void setUpClass() {
+        ctx = FhirContext.forDstu3();
+        camelContext = new DefaultCamelContext();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        HapiProperties.setProperty("idempotency", "true");
+        HapiProperties.setProperty("idempotency.directory", folder.newFolder("idempotency").getPath());
+        HapiProperties.setProperty("idempotency.wait_seconds", "30");
+    }
+
+    @Test
+    public void resubmissionIsAnsweredFromTheStore() throws Exception {
+        IdempotentProcessor processor = new IdempotentProcessor(ctx, "test", exchange -> {
+            calls.incrementAndGet();
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+        });
+
+        Exchange first = newExchange("bundle-1", "hash-1");
+        processor.process(first);
+        Exchange second = newExchange("bundle-1", "hash-1");
+        processor.process(second);
+        // Different content under the same identifier is processed
+        processor.process(newExchange("bundle-1", "hash-2"));
+
+        assertEquals(2, calls.get());
+        assertEquals("200", second.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        Bundle stored = ctx.newXmlParser().parseResource(Bundle.class, second.getIn().getBody(String.class));
+        assertEquals("bundle-1", stored.getIdentifier().getValue());
+    }
+
+    @Test
+    public void concurrentDuplicatesAreProcessedOnce() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IdempotentProcessor processor = new IdempotentProcessor(ctx, "test", exchange -> {
+            calls.incrementAndGet();
+            entered.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+        });
+
+        List<Exchange> exchanges = processConcurrently(processor, entered, release);
+
+        assertEquals(1, calls.get());
+        for (Exchange exchange : exchanges) {
+            assertEquals("200", exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        }
+    }
+
+    @Test
+    public void failedOriginalIsTakenOverByOneDuplicate() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IdempotentProcessor processor = new IdempotentProcessor(ctx, "test", exchange -> {
+            if (calls.incrementAndGet() == 1) {
+                entered.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                // Not a final response, so not stored
+                exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "503");
+                return;
+            }
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+        });
+
+        List<Exchange> exchanges = processConcurrently(processor, entered, release);
+
+        assertEquals(2, calls.get());
+        int failed = 0;
+        for (Exchange exchange : exchanges) {
+            if ("503".equals(exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE))) failed++;
+        }
+        assertEquals(1, failed);
+    }
+
+    @Test
+    public void duplicateStillInFlightIsAnsweredWithConflict() throws Exception {
+        HapiProperties.setProperty("idempotency.wait_seconds", "1");
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IdempotentProcessor processor = new IdempotentProcessor(ctx, "test", exchange -> {
+            calls.incrementAndGet();
+            entered.countDown();
+            release.await(10, TimeUnit.SECONDS);
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> original = executor.submit(() -> {
+                processor.process(newExchange("bundle-1", "hash-1"));
+                return null;
+            });
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            Exchange duplicate = newExchange("bundle-1", "hash-1");
+            processor.process(duplicate);
+            release.countDown();
+            original.get(10, TimeUnit.SECONDS);
+
+            assertEquals(1, calls.get());
+            assertEquals("409", duplicate.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+            assertEquals("1", duplicate.getIn().getHeader("Retry-After"));
+            OperationOutcome outcome = duplicate.getIn().getBody(OperationOutcome.class);
+            assertEquals(OperationOutcome.IssueType.CONFLICT, outcome.getIssueFirstRep().getCode());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void bundleWithoutIdentifierIsNotChecked() throws Exception {
+        IdempotentProcessor processor = new IdempotentProcessor(ctx, "test", exchange -> calls.incrementAndGet());
+
+        processor.process(newExchange(null, "hash-1"));
+        processor.process(newExchange(null, "hash-1"));
+
+        assertEquals(2, calls.get());
+    }
+
+    /*
+        Holds the first exchange in the delegate until the duplicates are waiting on it.
+     */
+    private List<Exchange> processConcurrently(Processor processor, CountDownLatch entered, CountDownLatch release) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(DUPLICATES);
+        try {
+            List<Exchange> exchanges = new ArrayList<>();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < DUPLICATES; i++) {
+                Exchange exchange = newExchange("bundle-1", "hash-1");
+                exchanges.add(exchange);
+                futures.add(executor.submit(() -> {
+                    processor.process(exchange);
+                    return null;
+                }));
+                if (i == 0) assertTrue(entered.await(10, TimeUnit.SECONDS));
+            }
+            // Duplicates arriving after the original completes are answered from the store, so the count is the same
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            for (Exchange exchange : exchanges) {
+                assertNull(exchange.getException());
+            }
+            return exchanges;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Exchange newExchange(String identifier, String contentHash) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.MESSAGE);
+        if (identifier != null) {
+            bundle.getIdentifier().setSystem("https://tools.ietf.org/html/rfc4122").setValue(identifier);
+        }
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(bundle);
+        exchange.getIn().setHeader(IdempotencyStore.CONTENT_HASH_HEADER, contentHash);
+        return exchange;
+    }
+}
@@ -0,0 +1,166 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExchangePattern;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.hl7.fhir.dstu3.model.BaseResource;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalValidationProcessorTest {
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    private static final String PROFILE = "https://fhir.hl7.org.uk/STU3/StructureDefinition/CareConnect-Patient-1";
+
+    private DefaultCamelContext camelContext;
+
+    private ProducerTemplate template;
+
+    private final AtomicInteger tkwCalls = new AtomicInteger();
+
+    // The outcome the local validator gives and the resource it was given
+    private final AtomicReference<OperationOutcome.IssueSeverity> localSeverity = new AtomicReference<>();
+
+    private final AtomicReference<BaseResource> validated = new AtomicReference<>();
+
+    private final AtomicReference<OperationOutcome.IssueSeverity> failOn = new AtomicReference<>();
+
+    @Before
+    public void setUp() throws Exception {
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                // As CamelRoute builds it for validation.backend local-then-remote and local
+                from("direct:localThenRemote")
+                        .doTry()
+                            .process(new StubValidationProcessor(true))
+                        .doCatch(Exception.class)
+                            .to("direct:TKWServer")
+                        .end();
+                from("direct:local").process(new StubValidationProcessor(false));
+
+                from("direct:TKWServer").process(exchange -> {
+                    tkwCalls.incrementAndGet();
+                    exchange.getIn().setBody(getOutcome(OperationOutcome.IssueSeverity.INFORMATION, "TKW"));
+                });
+            }
+        });
+        camelContext.start();
+        template = camelContext.createProducerTemplate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        camelContext.stop();
+    }
+
+    @Test
+    public void fatalLocalOutcomeFallsBackToTkw() {
+        localSeverity.set(OperationOutcome.IssueSeverity.FATAL);
+
+        Exchange exchange = validate("direct:localThenRemote", null, null);
+
+        assertEquals(1, tkwCalls.get());
+        assertEquals("TKW", exchange.getIn().getBody(OperationOutcome.class).getIssueFirstRep().getDiagnostics());
+        // Only a fatal issue matters with fallback
+        assertEquals(OperationOutcome.IssueSeverity.FATAL, failOn.get());
+    }
+
+    @Test
+    public void localErrorsAreReturnedWithoutTkw() {
+        localSeverity.set(OperationOutcome.IssueSeverity.ERROR);
+
+        Exchange exchange = validate("direct:localThenRemote", null, null);
+
+        assertEquals(0, tkwCalls.get());
+        assertEquals("local", exchange.getIn().getBody(OperationOutcome.class).getIssueFirstRep().getDiagnostics());
+    }
+
+    @Test
+    public void fatalOutcomeIsReturnedWithoutFallback() {
+        localSeverity.set(OperationOutcome.IssueSeverity.FATAL);
+
+        Exchange exchange = validate("direct:local", null, null);
+
+        assertEquals(0, tkwCalls.get());
+        assertEquals(OperationOutcome.IssueSeverity.FATAL, exchange.getIn().getBody(OperationOutcome.class).getIssueFirstRep().getSeverity());
+        assertNull(failOn.get());
+    }
+
+    @Test
+    public void profileIsValidatedOnACopy() {
+        localSeverity.set(OperationOutcome.IssueSeverity.INFORMATION);
+        Patient patient = getPatient();
+
+        template.send("direct:localThenRemote", ExchangePattern.InOut, exchange -> {
+            exchange.getIn().setBody(patient);
+            exchange.getIn().setHeader(LocalValidationProcessor.PROFILE_HEADER, PROFILE);
+        });
+
+        assertTrue(((Resource) validated.get()).getMeta().hasProfile(PROFILE));
+        assertTrue(patient.getMeta().getProfile().isEmpty());
+        assertEquals(0, tkwCalls.get());
+    }
+
+    @Test
+    public void deleteModeGoesToTkw() {
+        localSeverity.set(OperationOutcome.IssueSeverity.INFORMATION);
+
+        validate("direct:localThenRemote", null, "delete");
+
+        assertEquals(1, tkwCalls.get());
+        assertNull(validated.get());
+    }
+
+    private Exchange validate(String endpoint, String profile, String mode) {
+        return template.send(endpoint, ExchangePattern.InOut, exchange -> {
+            exchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(getPatient()));
+            if (profile != null) exchange.getIn().setHeader(LocalValidationProcessor.PROFILE_HEADER, profile);
+            if (mode != null) exchange.getIn().setHeader(LocalValidationProcessor.MODE_HEADER, mode);
+        });
+    }
+
+    private static Patient getPatient() {
+        Patient patient = new Patient();
+        patient.setId("Patient/1");
+        patient.addName().setFamily("Test");
+        return patient;
+    }
+
+    private static OperationOutcome getOutcome(OperationOutcome.IssueSeverity severity, String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(severity).setCode(OperationOutcome.IssueType.PROCESSING).setDiagnostics(diagnostics);
+        return outcome;
+    }
+
+    // Answers with the outcome the test sets rather than running the validator
+    private class StubValidationProcessor extends LocalValidationProcessor {
+
+        StubValidationProcessor(boolean fallback) {
+            super(ctx, fallback);
+        }
+
+        @Override
+        OperationOutcome validate(BaseResource resource, OperationOutcome.IssueSeverity severity) {
+            validated.set(resource);
+            failOn.set(severity);
+            return getOutcome(localSeverity.get(), "local");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.HumanName;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.support.MessageStatusStore;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageStatusProcessorTest {
+
+    private static FhirContext ctx;
+
+    @BeforeClass
+    public static void setUpClass() {
+        ctx = FhirContext.forDstu3();
+    }
+
+    @Test
+    public void completedStatusKeepsTheLocationNotTheResponse() throws Exception {
+        String statusId = MessageStatusStore.submit();
+        Bundle response = new Bundle();
+        response.setId("Bundle/processed");
+        for (int i = 0; i < 100; i++) {
+            response.addEntry().setResource(new Patient().addName(new HumanName().setFamily("Entry" + i)));
+        }
+
+        complete(statusId, "201", response);
+
+        MessageStatusStore.MessageStatus status = MessageStatusStore.get(statusId);
+        assertEquals(MessageStatusStore.State.COMPLETE, status.getState());
+        assertEquals(201, status.getResponseCode());
+        assertEquals("Bundle/processed", status.getLocation());
+        assertEquals(OperationOutcome.IssueType.INFORMATIONAL, status.getOutcome().getIssueFirstRep().getCode());
+    }
+
+    @Test
+    public void completedStatusKeepsABoundedOutcome() throws Exception {
+        String statusId = MessageStatusStore.submit();
+        OperationOutcome response = new OperationOutcome();
+        for (int i = 0; i < MessageStatusStore.MAX_ISSUES + 10; i++) {
+            response.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.INVALID)
+                    .setDiagnostics("Issue " + i);
+        }
+
+        // As the route hands it back, encoded
+        complete(statusId, "422", ctx.newXmlParser().encodeResourceToString(response));
+
+        MessageStatusStore.MessageStatus status = MessageStatusStore.get(statusId);
+        assertEquals(422, status.getResponseCode());
+        assertEquals("", status.getLocation());
+        assertEquals(MessageStatusStore.MAX_ISSUES, status.getOutcome().getIssue().size());
+        assertEquals("Issue 0", status.getOutcome().getIssueFirstRep().getDiagnostics());
+        // The response itself is untouched
+        assertEquals(MessageStatusStore.MAX_ISSUES + 10, response.getIssue().size());
+    }
+
+    private void complete(String statusId, String responseCode, Object body) throws Exception {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader(MessageStatusStore.STATUS_HEADER, statusId);
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, responseCode);
+        exchange.getIn().setBody(body);
+        new MessageStatusProcessor(ctx, MessageStatusStore.State.COMPLETE).process(exchange);
+    }
+}
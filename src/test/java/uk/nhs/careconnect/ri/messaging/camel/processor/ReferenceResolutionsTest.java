@@ -0,0 +1,146 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.junit.After;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.support.OperationOutcomeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReferenceResolutionsTest {
+
+    private final ReferenceResolutions resolutions = new ReferenceResolutions();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void sharedReferenceIsResolvedOnce() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(4);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Organization organization = new Organization();
+
+        List<Future<Resource>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(() -> {
+                started.countDown();
+                return resolutions.resolve("https://directory.spineservices.nhs.uk/STU3/Organization/RR8", referenceId -> {
+                    calls.incrementAndGet();
+                    entered.countDown();
+                    await(release);
+                    return organization;
+                });
+            }));
+            if (i == 0) assertTrue(entered.await(10, TimeUnit.SECONDS));
+        }
+        // Every caller is running, the sleep lets the late ones reach the resolution in progress
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        release.countDown();
+
+        for (Future<Resource> future : futures) {
+            assertSame(organization, future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void failureIsReportedToEveryCaller() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Resource>> futures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            futures.add(executor.submit(() -> {
+                started.countDown();
+                return resolutions.resolve("Patient/1", referenceId -> {
+                    entered.countDown();
+                    await(release);
+                    throw new OperationOutcomeException("Not found", referenceId, OperationOutcome.IssueType.NOTFOUND);
+                });
+            }));
+            if (i == 0) assertTrue(entered.await(10, TimeUnit.SECONDS));
+        }
+        // Every caller is running, the sleep lets the late ones reach the resolution in progress
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        release.countDown();
+
+        for (Future<Resource> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("Expected the resolution to fail");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof OperationOutcomeException);
+            }
+        }
+        // Nothing is left in progress, the reference can be tried again
+        assertEquals(null, resolutions.resolve("Patient/1", referenceId -> null));
+    }
+
+    @Test
+    public void crossedReferencesDoNotDeadlock() throws Exception {
+        // Each thread resolves one reference which needs the other's, the lock ordering a per-reference monitor deadlocked on
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        Future<Resource> first = executor.submit(() -> resolutions.resolve("Encounter/1", referenceId -> {
+            bothStarted.countDown();
+            await(bothStarted);
+            return resolutions.resolve("Condition/1", nested -> new Patient());
+        }));
+        Future<Resource> second = executor.submit(() -> resolutions.resolve("Condition/1", referenceId -> {
+            bothStarted.countDown();
+            await(bothStarted);
+            return resolutions.resolve("Encounter/1", nested -> new Patient());
+        }));
+
+        assertTrue(first.get(10, TimeUnit.SECONDS) instanceof Patient);
+        assertTrue(second.get(10, TimeUnit.SECONDS) instanceof Patient);
+    }
+
+    @Test
+    public void nestedResolutionOfTheSameReferenceOnOneThreadRunsInline() throws Exception {
+        AtomicInteger depth = new AtomicInteger();
+        Resource resource = resolutions.resolve("Encounter/1", referenceId -> {
+            depth.incrementAndGet();
+            return resolutions.resolve("Encounter/1", nested -> {
+                depth.incrementAndGet();
+                return new Patient();
+            });
+        });
+
+        assertTrue(resource instanceof Patient);
+        assertEquals(2, depth.get());
+    }
+
+    // Resolvers can't throw InterruptedException
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
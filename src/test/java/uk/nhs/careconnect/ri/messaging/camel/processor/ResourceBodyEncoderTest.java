@@ -0,0 +1,73 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ResourceBodyEncoderTest {
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    @Test
+    public void encodingsMatchTheParser() {
+        Patient patient = getPatient("Zoë Ångström");
+        String expected = ctx.newXmlParser().encodeResourceToString(patient);
+
+        assertEquals(expected, ResourceBodyEncoder.encodeToString(ctx, patient));
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), ResourceBodyEncoder.encodeToUtf8(ctx, patient));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResourceBodyEncoder.encodeTo(ctx, patient, out);
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void reusedBufferHoldsOnlyTheLastResource() {
+        Bundle large = new Bundle();
+        for (int i = 0; i < 2000; i++) {
+            large.addEntry().setResource(getPatient("Patient " + i));
+        }
+        ResourceBodyEncoder.encodeToString(ctx, large);
+
+        Patient small = getPatient("Small");
+        assertEquals(ctx.newXmlParser().encodeResourceToString(small), ResourceBodyEncoder.encodeToString(ctx, small));
+        assertArrayEquals(ctx.newXmlParser().encodeResourceToString(small).getBytes(StandardCharsets.UTF_8),
+                ResourceBodyEncoder.encodeToUtf8(ctx, small));
+    }
+
+    @Test
+    public void onlyResourceBodiesAreEncoded() throws Exception {
+        ResourceBodyEncoder encoder = new ResourceBodyEncoder(ctx);
+
+        Exchange resourceExchange = new DefaultExchange(new DefaultCamelContext());
+        Patient patient = getPatient("Encoded");
+        resourceExchange.getIn().setBody(patient);
+        encoder.process(resourceExchange);
+        assertEquals(ctx.newXmlParser().encodeResourceToString(patient), resourceExchange.getIn().getBody());
+        assertEquals("application/fhir+xml", resourceExchange.getIn().getHeader(Exchange.CONTENT_TYPE));
+
+        Exchange textExchange = new DefaultExchange(new DefaultCamelContext());
+        String text = "<Patient xmlns=\"http://hl7.org/fhir\"/>";
+        textExchange.getIn().setBody(text);
+        encoder.process(textExchange);
+        assertSame(text, textExchange.getIn().getBody());
+    }
+
+    private Patient getPatient(String name) {
+        Patient patient = new Patient();
+        patient.setId("Patient/1");
+        patient.addName().setText(name);
+        return patient;
+    }
+}
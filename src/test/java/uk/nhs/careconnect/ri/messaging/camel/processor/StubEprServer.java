@@ -0,0 +1,208 @@
+package uk.nhs.careconnect.ri.messaging.camel.processor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.CapabilityStatement;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Stands in for the EPR in the BundleCore tests. Answers identifier searches from the resources put in it, creates
+    resources with sequential ids, and answers batch and transaction Bundles. Every request is recorded.
+ */
+class StubEprServer {
+
+    static class Request {
+        final String method;
+        final String uri;
+        final String body;
+
+        Request(String method, String uri, String body) {
+            this.method = method;
+            this.uri = uri;
+            this.body = body;
+        }
+    }
+
+    private final FhirContext ctx = FhirContext.forDstu3();
+
+    private final HttpServer server;
+
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+
+    // resourceName|system|value -> resource answering the identifier search
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    private volatile int batchStatus = 200;
+
+    private volatile int transactionStatus = 200;
+
+    StubEprServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    String getBase() {
+        return "http://localhost:" + server.getAddress().getPort() + "/STU3";
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    void put(String resourceName, String system, String value, Resource resource) {
+        resources.put(resourceName + "|" + system + "|" + value, resource);
+    }
+
+    // Status answering batch and transaction Bundles, e.g. 500 or 501 (not supported)
+    void setBatchStatus(int batchStatus) {
+        this.batchStatus = batchStatus;
+    }
+
+    void setTransactionStatus(int transactionStatus) {
+        this.transactionStatus = transactionStatus;
+    }
+
+    List<Request> getRequests(String method, String uriPrefix) {
+        List<Request> found = new CopyOnWriteArrayList<>();
+        for (Request request : requests) {
+            if (request.method.equals(method) && request.uri.startsWith("/STU3" + uriPrefix)) found.add(request);
+        }
+        return found;
+    }
+
+    <T extends IBaseResource> T parse(Class<T> type, Request request) {
+        return getParser(request.body).parseResource(type, request.body);
+    }
+
+    // The client sends XML unless told otherwise
+    private IParser getParser(String body) {
+        return body.trim().startsWith("<") ? ctx.newXmlParser() : ctx.newJsonParser();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String uri = exchange.getRequestURI().toString();
+        String body = read(exchange.getRequestBody());
+        String path = exchange.getRequestURI().getPath().substring("/STU3".length());
+
+        if (path.equals("/metadata")) {
+            CapabilityStatement capabilityStatement = new CapabilityStatement();
+            capabilityStatement.setFhirVersion("3.0.1");
+            send(exchange, 200, capabilityStatement, null);
+            return;
+        }
+        requests.add(new Request(method, uri, body));
+
+        if (method.equals("GET") && exchange.getRequestURI().getRawQuery() == null) {
+            send(exchange, 404, new OperationOutcome(), null);
+        } else if (method.equals("GET")) {
+            String resourceName = path.substring(1);
+            String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), "UTF-8");
+            send(exchange, 200, search(resourceName, query), null);
+        } else if (method.equals("POST") && (path.isEmpty() || path.equals("/"))) {
+            Bundle bundle = getParser(body).parseResource(Bundle.class, body);
+            boolean batch = bundle.getType() == Bundle.BundleType.BATCH;
+            int status = batch ? batchStatus : transactionStatus;
+            if (status != 200) {
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setDiagnostics("Not supported");
+                send(exchange, status, outcome, null);
+                return;
+            }
+            send(exchange, 200, batch ? answerBatch(bundle) : answerTransaction(bundle), null);
+        } else if (method.equals("POST")) {
+            Resource resource = (Resource) getParser(body).parseResource(body);
+            IdType id = create(resource);
+            send(exchange, 201, resource, getBase() + "/" + id.getValue());
+        } else if (method.equals("PUT")) {
+            send(exchange, 200, getParser(body).parseResource(body), null);
+        } else {
+            send(exchange, 405, new OperationOutcome(), null);
+        }
+    }
+
+    private Bundle search(String resourceName, String query) {
+        Bundle searchSet = new Bundle();
+        searchSet.setType(Bundle.BundleType.SEARCHSET);
+        // identifier=system|value
+        Resource resource = resources.get(resourceName + "|" + query.substring(query.indexOf('=') + 1));
+        if (resource != null) searchSet.addEntry().setResource(resource);
+        return searchSet;
+    }
+
+    private Bundle answerBatch(Bundle batch) throws IOException {
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (Bundle.BundleEntryComponent entry : batch.getEntry()) {
+            String url = entry.getRequest().getUrl();
+            String query = URLDecoder.decode(url.substring(url.indexOf('?') + 1), "UTF-8");
+            response.addEntry().setResource(search(url.substring(0, url.indexOf('?')), query))
+                    .getResponse().setStatus("200 OK");
+        }
+        return response;
+    }
+
+    private Bundle answerTransaction(Bundle transaction) {
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+        for (Bundle.BundleEntryComponent entry : transaction.getEntry()) {
+            if (entry.getRequest().getMethod() == Bundle.HTTPVerb.POST) {
+                IdType id = create(entry.getResource());
+                response.addEntry().getResponse().setStatus("201 Created").setLocation(id.getValue() + "/_history/1");
+            } else {
+                response.addEntry().getResponse().setStatus("200 OK").setLocation(entry.getRequest().getUrl() + "/_history/2");
+            }
+        }
+        return response;
+    }
+
+    private IdType create(Resource resource) {
+        IdType id = new IdType(resource.getResourceType().name(), String.valueOf(nextId.getAndIncrement()));
+        resource.setId(id);
+        return id;
+    }
+
+    private void send(HttpExchange exchange, int status, IBaseResource resource, String location) throws IOException {
+        byte[] body = ctx.newJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json;charset=UTF-8");
+        if (location != null) exchange.getResponseHeaders().add("Location", location);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,173 @@
+package uk.nhs.careconnect.ri.messaging.r3.providers;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.seda.SedaComponent;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.MessageHeader;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.AcceptedException;
+import uk.nhs.careconnect.ri.messaging.support.MessageStatusStore;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BundleResourceProviderTest {
+
+    private static FhirContext ctx;
+
+    private DefaultCamelContext camelContext;
+
+    private BundleResourceProvider provider;
+
+    @BeforeClass
+    public static void setUpClass() {
+        ctx = FhirContext.forDstu3();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        HapiProperties.setProperty("messaging.async", "false");
+        HapiProperties.setProperty("messaging.journal", "false");
+        HapiProperties.setProperty("idempotency", "false");
+
+        camelContext = new DefaultCamelContext();
+        // Room for one queued bundle and nothing draining the queue
+        SedaComponent seda = new SedaComponent();
+        seda.setQueueSize(1);
+        camelContext.addComponent("seda", seda);
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:FHIRBundleMessage").process(exchange -> {
+                    Bundle response = exchange.getIn().getBody(Bundle.class).copy();
+                    response.setId("Bundle/processed");
+                    exchange.getIn().setBody(response);
+                });
+            }
+        });
+        camelContext.start();
+
+        provider = new BundleResourceProvider();
+        provider.context = camelContext;
+        provider.ctx = ctx;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        camelContext.stop();
+    }
+
+    @Test
+    public void messageIsProcessedSynchronouslyByDefault() throws Exception {
+        MethodOutcome outcome = provider.create(newRequest(false), newMessage(), newRequestDetails());
+
+        assertEquals("processed", outcome.getId().getIdPart());
+    }
+
+    @Test
+    public void asyncMessageIsAcceptedWithItsStatusLocation() throws Exception {
+        try {
+            provider.create(newRequest(true), newMessage(), newRequestDetails());
+            fail("Expected 202");
+        } catch (AcceptedException ex) {
+            assertEquals(202, ex.getStatusCode());
+            List<String> location = ex.getResponseHeaders().get("Content-Location");
+            assertTrue(location.get(0).startsWith("http://localhost/async/"));
+
+            String statusId = location.get(0).substring(location.get(0).lastIndexOf('/') + 1);
+            assertEquals(MessageStatusStore.State.QUEUED, MessageStatusStore.get(statusId).getState());
+        }
+    }
+
+    @Test
+    public void asyncMessageIsRefusedWhenTheQueueIsFull() throws Exception {
+        try {
+            provider.create(newRequest(true), newMessage(), newRequestDetails());
+            fail("Expected 202");
+        } catch (AcceptedException ex) {
+            // queued
+        }
+        try {
+            provider.create(newRequest(true), newMessage(), newRequestDetails());
+            fail("Expected 503");
+        } catch (AcceptedException ex) {
+            fail("Queue of one accepted a second bundle");
+        } catch (BaseServerResponseException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+    }
+
+    @Test
+    public void bundleWithoutEntriesIsNotAccepted() throws Exception {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.MESSAGE);
+        try {
+            provider.create(newRequest(true), bundle, newRequestDetails());
+            fail("Expected 422");
+        } catch (UnprocessableEntityException ex) {
+            assertEquals(422, ex.getStatusCode());
+        }
+    }
+
+    @Test
+    public void messageNotLedByItsHeaderIsNotAccepted() throws Exception {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.MESSAGE);
+        bundle.addEntry().setResource(new Patient());
+        bundle.addEntry().setResource(new MessageHeader());
+        try {
+            provider.create(newRequest(true), bundle, newRequestDetails());
+            fail("Expected 422");
+        } catch (UnprocessableEntityException ex) {
+            assertEquals(422, ex.getStatusCode());
+        }
+    }
+
+    @Test
+    public void entryWithoutResourceIsABadRequest() throws Exception {
+        Bundle bundle = newMessage();
+        bundle.addEntry().setFullUrl("urn:uuid:missing");
+        try {
+            provider.create(newRequest(false), bundle, newRequestDetails());
+            fail("Expected 400");
+        } catch (InvalidRequestException ex) {
+            assertEquals(400, ex.getStatusCode());
+        }
+    }
+
+    private MockHttpServletRequest newRequest(boolean respondAsync) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/STU3/Bundle");
+        if (respondAsync) request.addHeader("Prefer", "respond-async");
+        return request;
+    }
+
+    private ServletRequestDetails newRequestDetails() {
+        ServletRequestDetails requestDetails = new ServletRequestDetails();
+        requestDetails.setRequestContents("<Bundle xmlns=\"http://hl7.org/fhir\"/>".getBytes());
+        return requestDetails;
+    }
+
+    private Bundle newMessage() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.MESSAGE);
+        bundle.addEntry().setResource(new MessageHeader());
+        bundle.addEntry().setResource(new Patient());
+        return bundle;
+    }
+}
@@ -0,0 +1,120 @@
+package uk.nhs.careconnect.ri.messaging.r3.providers;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.ValidationModeEnum;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+import uk.nhs.careconnect.ri.messaging.support.ValidationResultCache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ResourceTestProviderTest {
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    private DefaultCamelContext camelContext;
+
+    private ResourceTestProvider provider;
+
+    private final AtomicInteger validations = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        HapiProperties.setProperty("validate.flag", "true");
+        HapiProperties.setProperty("validation.backend", "remote");
+        HapiProperties.setProperty("validation.remote_version", "1.0");
+        HapiProperties.setProperty("validation.cache", "true");
+        ValidationResultCache.invalidateAll();
+
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                // Stands in for the TKW $validate
+                from("direct:FHIRValidate").process(exchange -> {
+                    validations.incrementAndGet();
+                    OperationOutcome outcome = new OperationOutcome();
+                    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.WARNING)
+                            .setCode(OperationOutcome.IssueType.INFORMATIONAL).setDiagnostics("TKW");
+                    exchange.getIn().setBody(ctx.newXmlParser().encodeResourceToString(outcome));
+                });
+            }
+        });
+        camelContext.start();
+
+        provider = new ResourceTestProvider();
+        provider.context = camelContext;
+        provider.ctx = ctx;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        camelContext.stop();
+        HapiProperties.setProperty("validate.flag", "false");
+        HapiProperties.setProperty("validation.remote_version", "");
+    }
+
+    @Test
+    public void resubmittedResourceIsAnsweredFromTheCache() {
+        MethodOutcome first = provider.testResource(getPatient(), ValidationModeEnum.CREATE, null);
+        MethodOutcome repeat = provider.testResource(getPatient(), ValidationModeEnum.CREATE, null);
+
+        assertEquals(1, validations.get());
+        assertNotNull(repeat.getOperationOutcome());
+        assertEquals("TKW", ((OperationOutcome) repeat.getOperationOutcome()).getIssueFirstRep().getDiagnostics());
+        assertEquals(((OperationOutcome) first.getOperationOutcome()).getIssue().size(),
+                ((OperationOutcome) repeat.getOperationOutcome()).getIssue().size());
+
+        // Another profile or mode is another validation
+        provider.testResource(getPatient(), ValidationModeEnum.UPDATE, null);
+        provider.testResource(getPatient(), ValidationModeEnum.CREATE, "https://fhir.hl7.org.uk/STU3/StructureDefinition/CareConnect-Patient-1");
+        assertEquals(3, validations.get());
+    }
+
+    @Test
+    public void newValidatorVersionIsValidatedAgain() {
+        provider.testResource(getPatient(), ValidationModeEnum.CREATE, null);
+
+        HapiProperties.setProperty("validation.remote_version", "1.1");
+        provider.testResource(getPatient(), ValidationModeEnum.CREATE, null);
+        provider.testResource(getPatient(), ValidationModeEnum.CREATE, null);
+
+        assertEquals(2, validations.get());
+    }
+
+    @Test
+    public void keyIncludesTheValidatorVersion() {
+        String key = ValidationResultCache.getKey(ctx, getPatient(), true, null, "remote/1.0");
+
+        assertEquals(key, ValidationResultCache.getKey(ctx, getPatient(), true, null, "remote/1.0"));
+        assertNotEquals(key, ValidationResultCache.getKey(ctx, getPatient(), true, null, "remote/1.1"));
+    }
+
+    @Test
+    public void noVersionIsNotCached() {
+        HapiProperties.setProperty("validation.remote_version", "");
+
+        provider.testResource(getPatient(), ValidationModeEnum.CREATE, null);
+        provider.testResource(getPatient(), ValidationModeEnum.CREATE, null);
+
+        assertEquals(2, validations.get());
+    }
+
+    private static Patient getPatient() {
+        Patient patient = new Patient();
+        patient.setId("Patient/1");
+        patient.addName().setFamily("Cached");
+        return patient;
+    }
+}
@@ -0,0 +1,116 @@
+package uk.nhs.careconnect.ri.messaging.r3.providers;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ValidationFactoryTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        // The pool is sized on first use
+        HapiProperties.setProperty("validation.parallelism", "4");
+        ValidationFactory.warmUp();
+    }
+
+    @Test
+    public void missingElementsAreErrors() {
+        OperationOutcome outcome = ValidationFactory.validateResource(getObservation(1));
+
+        List<String> errors = getIssues(outcome, OperationOutcome.IssueSeverity.ERROR);
+        assertFalse(errors.isEmpty());
+        // Each issue once, and located on the resource
+        assertEquals(errors.size(), errors.stream().distinct().count());
+        assertEquals("Observation/1", outcome.getIssueFirstRep().getLocation().get(0).getValue());
+    }
+
+    @Test
+    public void sharedValidatorGivesTheSameIssuesOnEveryThread() throws Exception {
+        List<String> expected = getIssues(ValidationFactory.validateResource(getObservation(1)), null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<String>>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(() -> getIssues(ValidationFactory.validateResource(getObservation(1)), null)));
+            }
+            for (Future<List<String>> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void bundleIssuesAreMergedInEntryOrder() {
+        OperationOutcome outcome = ValidationFactory.validateResource(getBundle(12));
+
+        List<Integer> entries = new ArrayList<>();
+        for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+            String location = issue.getLocation().get(0).getValue();
+            int entry = Integer.parseInt(location.substring(location.indexOf('/') + 1));
+            if (entries.isEmpty() || entries.get(entries.size() - 1) != entry) entries.add(entry);
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 1; i <= 12; i++) expected.add(i);
+        assertEquals(expected, entries);
+    }
+
+    @Test
+    public void failOnFatalValidatesEveryEntryWithErrors() {
+        assertEquals(getIssues(ValidationFactory.validateResource(getBundle(6)), null),
+                getIssues(ValidationFactory.validateResource(getBundle(6), OperationOutcome.IssueSeverity.FATAL), null));
+    }
+
+    @Test
+    public void failOnErrorStopsAtTheFirstFailure() {
+        OperationOutcome outcome = ValidationFactory.validateResource(getBundle(40), OperationOutcome.IssueSeverity.ERROR);
+
+        OperationOutcome.OperationOutcomeIssueComponent last = outcome.getIssue().get(outcome.getIssue().size() - 1);
+        assertEquals(OperationOutcome.IssueSeverity.INFORMATION, last.getSeverity());
+        assertTrue(last.getDiagnostics().startsWith("Validation stopped"));
+        assertTrue(getIssues(outcome, OperationOutcome.IssueSeverity.ERROR).size()
+                < getIssues(ValidationFactory.validateResource(getBundle(40)), OperationOutcome.IssueSeverity.ERROR).size());
+    }
+
+    private static Bundle getBundle(int entries) {
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        for (int i = 1; i <= entries; i++) {
+            bundle.addEntry().setResource(getObservation(i));
+        }
+        return bundle;
+    }
+
+    // No status, and a code without a coding
+    private static Observation getObservation(int id) {
+        Observation observation = new Observation();
+        observation.setId("Observation/" + id);
+        observation.getCode().setText("Observation " + id);
+        return observation;
+    }
+
+    private static List<String> getIssues(OperationOutcome outcome, OperationOutcome.IssueSeverity severity) {
+        List<String> issues = new ArrayList<>();
+        for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+            if (severity == null || issue.getSeverity() == severity) {
+                assertTrue(issue.hasDiagnostics());
+                issues.add(issue.getSeverity().toCode() + " " + issue.getDiagnostics());
+            }
+        }
+        return issues;
+    }
+}
@@ -0,0 +1,145 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownstreamTest {
+
+    @Test
+    public void breakerOpensOnceTheFailurePercentIsReached() throws Exception {
+        Downstream downstream = newDownstream("opens", 60000);
+
+        downstream.acquire().release(true);
+        downstream.acquire().release(false);
+        downstream.acquire().release(true);
+        assertEquals(Downstream.State.CLOSED, downstream.getState());
+
+        // Two of the four calls failed, min_calls reached
+        downstream.acquire().release(false);
+        assertEquals(Downstream.State.OPEN, downstream.getState());
+
+        assertRejected(downstream);
+        assertEquals(1, downstream.getRejections());
+        assertEquals(4, downstream.getCalls());
+    }
+
+    @Test
+    public void timedOutCallCountsAsAFailure() throws Exception {
+        Downstream downstream = newDownstream("timeout", 60000);
+
+        for (int i = 0; i < 4; i++) {
+            Downstream.Permit permit = downstream.acquire();
+            permit.timedOut();
+            assertEquals(i < 3 ? Downstream.State.CLOSED : Downstream.State.OPEN, downstream.getState());
+            // Finishing afterwards doesn't record the call again
+            permit.release(true);
+        }
+        assertEquals(4, downstream.getTimeouts());
+        assertEquals(4, downstream.getFailures());
+    }
+
+    @Test
+    public void successfulProbeClosesTheBreaker() throws Exception {
+        Downstream downstream = newDownstream("probe-success", 50);
+        open(downstream);
+        Thread.sleep(100);
+        assertEquals(Downstream.State.HALF_OPEN, downstream.getState());
+
+        Downstream.Permit probe = downstream.acquire();
+        // half_open_calls is 1, so the next call waits for the probe
+        assertRejected(downstream);
+        probe.release(true);
+
+        assertEquals(Downstream.State.CLOSED, downstream.getState());
+        // The window starts again, one failure doesn't reopen it
+        downstream.acquire().release(false);
+        assertEquals(Downstream.State.CLOSED, downstream.getState());
+    }
+
+    @Test
+    public void failedProbeOpensTheBreakerAgain() throws Exception {
+        Downstream downstream = newDownstream("probe-failure", 50);
+        open(downstream);
+        Thread.sleep(100);
+
+        downstream.acquire().release(false);
+
+        assertEquals(Downstream.State.OPEN, downstream.getState());
+        assertRejected(downstream);
+    }
+
+    @Test
+    public void fullBulkheadRejectsCalls() throws Exception {
+        Downstream downstream = newDownstream("bulkhead", 60000);
+
+        Downstream.Permit first = downstream.acquire();
+        Downstream.Permit second = downstream.acquire();
+        assertEquals(2, downstream.getActive());
+
+        // No queue, so the third call is rejected at once
+        assertRejected(downstream);
+        first.release(true);
+        downstream.acquire().release(true);
+        second.release(true);
+
+        assertEquals(1, downstream.getRejections());
+        assertEquals(0, downstream.getActive());
+        // Rejections are not failures, the breaker stays closed
+        assertEquals(Downstream.State.CLOSED, downstream.getState());
+    }
+
+    @Test
+    public void queuedCallIsRejectedAfterTheQueueTimeout() throws Exception {
+        Downstream downstream = newDownstream("queued", 60000, 1);
+        Downstream.Permit first = downstream.acquire();
+        Downstream.Permit second = downstream.acquire();
+
+        long started = System.currentTimeMillis();
+        assertRejected(downstream);
+
+        assertTrue(System.currentTimeMillis() - started >= 50);
+        assertEquals(0, downstream.getWaiting());
+        first.release(true);
+        second.release(true);
+    }
+
+    private Downstream newDownstream(String name, int openMillis) {
+        return newDownstream(name, openMillis, 0);
+    }
+
+    /*
+        Two slots, a breaker over the last four calls opening at 50% failures.
+     */
+    private Downstream newDownstream(String name, int openMillis, int maxQueue) {
+        String prefix = "resilience.test-" + name + ".";
+        HapiProperties.setProperty(prefix + "max_concurrent", "2");
+        HapiProperties.setProperty(prefix + "max_queue", Integer.toString(maxQueue));
+        HapiProperties.setProperty(prefix + "queue_timeout_millis", "50");
+        HapiProperties.setProperty(prefix + "breaker.window", "4");
+        HapiProperties.setProperty(prefix + "breaker.min_calls", "4");
+        HapiProperties.setProperty(prefix + "breaker.failure_percent", "50");
+        HapiProperties.setProperty(prefix + "breaker.open_millis", Integer.toString(openMillis));
+        HapiProperties.setProperty(prefix + "breaker.half_open_calls", "1");
+        return Downstream.get("test-" + name);
+    }
+
+    private void open(Downstream downstream) throws Exception {
+        for (int i = 0; i < 4; i++) {
+            downstream.acquire().release(false);
+        }
+        assertEquals(Downstream.State.OPEN, downstream.getState());
+    }
+
+    private void assertRejected(Downstream downstream) {
+        try {
+            downstream.acquire().release(true);
+            fail("Expected " + downstream.getName() + " to reject the call");
+        } catch (DownstreamUnavailableException ex) {
+            // expected
+        }
+    }
+}
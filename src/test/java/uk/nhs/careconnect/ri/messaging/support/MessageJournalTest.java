@@ -0,0 +1,171 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("journal").toPath();
+        HapiProperties.setProperty("messaging.journal.directory", directory.toString());
+        HapiProperties.setProperty("messaging.journal.segment_bytes", "65536");
+        HapiProperties.setProperty("messaging.journal.fsync", "none");
+    }
+
+    @After
+    public void tearDown() {
+        MessageJournal.close();
+    }
+
+    @Test
+    public void uncommittedAppendsAreRecoveredAfterRestart() {
+        long first = MessageJournal.append("status-1", "hash-1", bytes("<Bundle>1</Bundle>"));
+        MessageJournal.append("status-2", null, bytes("<Bundle>2</Bundle>"));
+        MessageJournal.commit(first);
+
+        restart();
+        List<MessageJournal.JournalEntry> entries = MessageJournal.recover();
+
+        assertEquals(1, entries.size());
+        assertEquals("status-2", entries.get(0).getStatusId());
+        assertNull(entries.get(0).getContentHash());
+        assertEquals("<Bundle>2</Bundle>", entries.get(0).getBody());
+        // Handed out once
+        assertEquals(0, MessageJournal.recover().size());
+    }
+
+    @Test
+    public void contentHashSurvivesRestart() {
+        MessageJournal.append("status-1", "hash-1", bytes("<Bundle/>"));
+
+        restart();
+        List<MessageJournal.JournalEntry> entries = MessageJournal.recover();
+
+        assertEquals(1, entries.size());
+        assertEquals("hash-1", entries.get(0).getContentHash());
+        assertEquals("<Bundle/>", entries.get(0).getBody());
+    }
+
+    @Test
+    public void tornRecordEndsTheSegment() throws IOException {
+        MessageJournal.append("status-1", "hash-1", bytes("<Bundle>1</Bundle>"));
+        MessageJournal.append("status-2", "hash-2", bytes("<Bundle>2</Bundle>"));
+        MessageJournal.close();
+
+        // The length is written last, a crash before it leaves zero
+        Path segment = getSegments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 0), getSecondRecordOffset(channel));
+        }
+
+        List<MessageJournal.JournalEntry> entries = MessageJournal.recover();
+        assertEquals(1, entries.size());
+        assertEquals("status-1", entries.get(0).getStatusId());
+
+        // Appends carry on after the recovered records
+        long next = MessageJournal.append("status-3", null, bytes("<Bundle>3</Bundle>"));
+        restart();
+        entries = MessageJournal.recover();
+        assertEquals(2, entries.size());
+        assertEquals(next, entries.get(1).getSequence());
+    }
+
+    @Test
+    public void damagedRecordIsIgnored() throws IOException {
+        MessageJournal.append("status-1", "hash-1", bytes("<Bundle>1</Bundle>"));
+        MessageJournal.append("status-2", "hash-2", bytes("<Bundle>2</Bundle>"));
+        MessageJournal.close();
+
+        // Flip the first payload byte of the second record, its crc no longer matches
+        Path segment = getSegments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long payload = getSecondRecordOffset(channel) + 4 + 13;
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, payload);
+            value.put(0, (byte) (value.get(0) ^ 0xff));
+            value.rewind();
+            channel.write(value, payload);
+        }
+
+        List<MessageJournal.JournalEntry> entries = MessageJournal.recover();
+        assertEquals(1, entries.size());
+        assertEquals("status-1", entries.get(0).getStatusId());
+    }
+
+    @Test
+    public void committedSegmentsAreCompactedOldestFirst() throws IOException {
+        // Smaller than a record, so every record rolls a segment of its own
+        HapiProperties.setProperty("messaging.journal.segment_bytes", "16");
+        long first = MessageJournal.append("status-1", null, bytes("<Bundle>1</Bundle>"));
+        long second = MessageJournal.append("status-2", null, bytes("<Bundle>2</Bundle>"));
+        long third = MessageJournal.append("status-3", null, bytes("<Bundle>3</Bundle>"));
+        List<Path> appended = getSegments();
+        assertEquals(3, appended.size());
+
+        // The oldest segment is still outstanding, so nothing after it goes either
+        MessageJournal.commit(second);
+        assertTrue(Files.exists(appended.get(0)));
+        assertTrue(Files.exists(appended.get(1)));
+
+        MessageJournal.commit(first);
+        assertFalse(Files.exists(appended.get(0)));
+        assertFalse(Files.exists(appended.get(1)));
+        assertTrue(Files.exists(appended.get(2)));
+
+        // Only the active segment, holding the last commit, is kept
+        MessageJournal.commit(third);
+        assertEquals(1, getSegments().size());
+
+        restart();
+        assertEquals(0, MessageJournal.recover().size());
+    }
+
+    private void restart() {
+        MessageJournal.close();
+    }
+
+    private long getSecondRecordOffset(FileChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        channel.read(length, 0);
+        return 4 + length.getInt(0);
+    }
+
+    private List<Path> getSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path file : files) segments.add(file);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
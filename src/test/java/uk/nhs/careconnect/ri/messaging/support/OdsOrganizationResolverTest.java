@@ -0,0 +1,187 @@
+package uk.nhs.careconnect.ri.messaging.support;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.dstu3.model.CapabilityStatement;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.nhs.careconnect.ri.messaging.HapiProperties;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OdsOrganizationResolverTest {
+
+    private static HttpServer server;
+
+    // ODS code -> reads of it
+    private static final Map<String, AtomicInteger> reads = new ConcurrentHashMap<>();
+
+    // ODS code -> name served for it
+    private static final Map<String, String> names = new ConcurrentHashMap<>();
+
+    // Held until counted down, for reads of codes in the map
+    private static final Map<String, CountDownLatch> holds = new ConcurrentHashMap<>();
+
+    private static final Map<String, CountDownLatch> entered = new ConcurrentHashMap<>();
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        // Stands in for the spine directory, server.base.ods points at it
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", OdsOrganizationResolverTest::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        HapiProperties.setProperty("server.base.ods", "http://localhost:" + server.getAddress().getPort() + "/STU3");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop(0);
+    }
+
+    @Before
+    public void setUp() {
+        HapiProperties.setProperty("ods.source.file", "");
+        HapiProperties.setProperty("ods.cache.directory", "");
+        HapiProperties.setProperty("ods.cache.ttl_seconds", "3600");
+        HapiProperties.setProperty("ods.cache.stale_seconds", "7200");
+    }
+
+    @Test
+    public void freshEntryIsNotFetchedAgain() {
+        names.put("RR8", "LEEDS TEACHING HOSPITALS NHS TRUST");
+
+        Organization first = OdsOrganizationResolver.getOrganization("RR8");
+        Organization second = OdsOrganizationResolver.getOrganization("RR8");
+
+        assertEquals("LEEDS TEACHING HOSPITALS NHS TRUST", second.getName());
+        assertEquals(1, getReads("RR8"));
+        // Callers get a copy each
+        first.setName("CHANGED");
+        assertEquals("LEEDS TEACHING HOSPITALS NHS TRUST", OdsOrganizationResolver.getOrganization("RR8").getName());
+    }
+
+    @Test
+    public void concurrentRequestsShareOneRead() throws Exception {
+        names.put("RAE", "BRADFORD TEACHING HOSPITALS NHS FOUNDATION TRUST");
+        CountDownLatch release = new CountDownLatch(1);
+        entered.put("RAE", new CountDownLatch(1));
+        holds.put("RAE", release);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Organization>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> OdsOrganizationResolver.getOrganization("RAE")));
+            }
+            assertTrue(entered.get("RAE").await(10, TimeUnit.SECONDS));
+            // Let the other requests reach the read in flight
+            Thread.sleep(200);
+            release.countDown();
+
+            for (Future<Organization> future : futures) {
+                assertEquals("BRADFORD TEACHING HOSPITALS NHS FOUNDATION TRUST", future.get(10, TimeUnit.SECONDS).getName());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, getReads("RAE"));
+    }
+
+    @Test
+    public void staleEntryIsReturnedWhileItIsRefreshed() throws Exception {
+        HapiProperties.setProperty("ods.cache.ttl_seconds", "0");
+        names.put("RCF", "AIREDALE NHS FOUNDATION TRUST");
+        assertEquals("AIREDALE NHS FOUNDATION TRUST", OdsOrganizationResolver.getOrganization("RCF").getName());
+
+        // The refresh is held, the stale copy must not wait for it
+        names.put("RCF", "AIREDALE NHS FOUNDATION TRUST (RENAMED)");
+        CountDownLatch release = new CountDownLatch(1);
+        entered.put("RCF", new CountDownLatch(1));
+        holds.put("RCF", release);
+        assertEquals("AIREDALE NHS FOUNDATION TRUST", OdsOrganizationResolver.getOrganization("RCF").getName());
+        assertTrue(entered.get("RCF").await(10, TimeUnit.SECONDS));
+        // A refresh already in flight is not started again
+        assertEquals("AIREDALE NHS FOUNDATION TRUST", OdsOrganizationResolver.getOrganization("RCF").getName());
+        assertEquals(2, getReads("RCF"));
+
+        holds.remove("RCF");
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!OdsOrganizationResolver.getOrganization("RCF").getName().endsWith("(RENAMED)")) {
+            assertTrue("Refresh did not complete", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void entryPastTheStaleWindowIsReadOnTheCallingThread() {
+        HapiProperties.setProperty("ods.cache.ttl_seconds", "0");
+        HapiProperties.setProperty("ods.cache.stale_seconds", "0");
+        names.put("RXF", "MID YORKSHIRE HOSPITALS NHS TRUST");
+        OdsOrganizationResolver.getOrganization("RXF");
+
+        names.put("RXF", "MID YORKSHIRE TEACHING NHS TRUST");
+
+        assertEquals("MID YORKSHIRE TEACHING NHS TRUST", OdsOrganizationResolver.getOrganization("RXF").getName());
+        assertEquals(2, getReads("RXF"));
+    }
+
+    private static int getReads(String odsCode) {
+        AtomicInteger count = reads.get(odsCode);
+        return (count != null) ? count.get() : 0;
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        IBaseResource resource;
+        if (path.endsWith("/metadata")) {
+            CapabilityStatement capabilityStatement = new CapabilityStatement();
+            capabilityStatement.setFhirVersion("3.0.1");
+            resource = capabilityStatement;
+        } else {
+            String odsCode = path.substring(path.lastIndexOf('/') + 1);
+            reads.computeIfAbsent(odsCode, code -> new AtomicInteger()).incrementAndGet();
+            CountDownLatch hold = holds.get(odsCode);
+            if (hold != null) {
+                entered.get(odsCode).countDown();
+                try {
+                    hold.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Organization organization = new Organization();
+            organization.setId(odsCode);
+            organization.addIdentifier().setSystem("https://fhir.nhs.uk/Id/ods-organization-code").setValue(odsCode);
+            organization.setName(names.get(odsCode));
+            resource = organization;
+        }
+        byte[] body = FhirClientRegistry.getContext().newJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json;charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}